@@ -0,0 +1,138 @@
+package jasmine.jragon;
+
+import jasmine.jragon.dropbox.DropboxTransport;
+import jasmine.jragon.mega.MegaFunctionManager;
+import jasmine.jragon.mega.MegaUploadManifest;
+import jasmine.jragon.mega.eliux.v2.MegaSession;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+/**
+ * The {@code BulkRemover} collects the removals of a stage and runs them all when the stage calls
+ * {@link #flush()}. Paths are grouped into multi-path commands of up to {@value BATCH_SIZE}, and up to
+ * {@value REMOVAL_CONCURRENCY} commands run at once. Dropbox and Mega Cloud batches take turns in the queue,
+ * so both copies of a file are being removed at the same time.
+ */
+final class BulkRemover {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkRemover.class);
+    private static final int BATCH_SIZE = 50;
+    private static final int REMOVAL_CONCURRENCY = 4;
+
+    private final DropboxTransport dropboxTransport;
+    private final MegaSession megaSession;
+    private final MegaUploadManifest uploadManifest;
+    private final List<String> dropboxFiles, dropboxFolders, megaFiles;
+
+    /**
+     * @param uploadManifest forgets the Mega Cloud files as they're removed
+     */
+    BulkRemover(@NonNull DropboxTransport dropboxTransport, @NonNull MegaSession megaSession,
+                @NonNull MegaUploadManifest uploadManifest) {
+        this.dropboxTransport = dropboxTransport;
+        this.megaSession = megaSession;
+        this.uploadManifest = uploadManifest;
+        dropboxFiles = new ArrayList<>();
+        dropboxFolders = new ArrayList<>();
+        megaFiles = new ArrayList<>();
+    }
+
+    void removeDropboxFile(@NonNull String dropboxPath) {
+        dropboxFiles.add(dropboxPath);
+    }
+
+    /**
+     * Never forced, so a folder that got anything put into it since the listing stays
+     */
+    void removeDropboxFolder(@NonNull String dropboxPath) {
+        dropboxFolders.add(dropboxPath);
+    }
+
+    void removeMegaFile(@NonNull String megaCloudPath) {
+        megaFiles.add(megaCloudPath);
+    }
+
+    void removeFromBoth(@NonNull String dropboxPath, @NonNull String megaCloudPath) {
+        removeDropboxFile(dropboxPath);
+        removeMegaFile(megaCloudPath);
+    }
+
+    /**
+     * Runs every removal collected so far and waits for all of them. Failed paths are only logged,
+     * same as the single removals.
+     */
+    void flush() throws InterruptedException {
+        List<Callable<Void>> dropboxBatches = new ArrayList<>();
+        List<Callable<Void>> megaBatches = new ArrayList<>();
+
+        for (var batch : partition(dropboxFiles)) {
+            dropboxBatches.add(() -> {
+                dropboxTransport.removeResources(batch);
+                return null;
+            });
+        }
+        for (var batch : partition(dropboxFolders)) {
+            dropboxBatches.add(() -> {
+                dropboxTransport.removeEmptyFolders(batch);
+                return null;
+            });
+        }
+        for (var batch : partition(megaFiles)) {
+            megaBatches.add(() -> {
+                MegaFunctionManager.removeOldFiles(megaSession, batch);
+                uploadManifest.recordRemovals(batch);
+                return null;
+            });
+        }
+
+        int pathCount = dropboxFiles.size() + dropboxFolders.size() + megaFiles.size();
+        dropboxFiles.clear();
+        dropboxFolders.clear();
+        megaFiles.clear();
+
+        if (pathCount == 0) {
+            return;
+        }
+
+        List<Callable<Void>> interleavedBatches = new ArrayList<>();
+        for (int i = 0; i < Math.max(dropboxBatches.size(), megaBatches.size()); i++) {
+            if (i < dropboxBatches.size()) {
+                interleavedBatches.add(dropboxBatches.get(i));
+            }
+            if (i < megaBatches.size()) {
+                interleavedBatches.add(megaBatches.get(i));
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        var executor = Executors.newFixedThreadPool(Math.min(REMOVAL_CONCURRENCY, interleavedBatches.size()));
+        try {
+            for (var future : executor.invokeAll(interleavedBatches)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    LOG.error("Removal Batch Error: ", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        LOG.info("{} path(s) removed in {} batch(es) - {} ms", pathCount, interleavedBatches.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    private static List<List<String>> partition(List<String> paths) {
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i += BATCH_SIZE) {
+            batches.add(List.copyOf(paths.subList(i, Math.min(i + BATCH_SIZE, paths.size()))));
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,128 @@
+package jasmine.jragon;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+/**
+ * The {@code CircuitBreaker} keeps track of whether a remote is answering. After
+ * {@code failureThreshold} failures in a row, it opens, and work for that remote is turned away without being
+ * tried. Once the cooldown is over, a single call is let through as a probe. If the probe goes through, the breaker
+ * closes again, and if it fails, the breaker stays open for another cooldown.
+ * <p>
+ * Only failures that say something about the remote count, like a broken connection. A missing file doesn't.
+ */
+public final class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String remote;
+    private final int failureThreshold;
+    private final long cooldownMillis;
+
+    private State state;
+    private int consecutiveFailures;
+    private long openedAt, probeStartedAt;
+    private int timesOpened, rejectedCalls;
+
+    public CircuitBreaker(@NonNull String remote, int failureThreshold, @NonNull Duration cooldown) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("At least one failure should open the breaker: " + failureThreshold);
+        }
+
+        this.remote = remote;
+        this.failureThreshold = failureThreshold;
+        cooldownMillis = cooldown.toMillis();
+        state = State.CLOSED;
+    }
+
+    /**
+     * Every call that goes through has to report back with {@link #recordSuccess()} or {@link #recordFailure()}.
+     * A probe that never reports back is given up on after a cooldown, and another probe is let through.
+     *
+     * @return whether the call can go ahead, which is never the case while the breaker is open
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.currentTimeMillis();
+
+        switch (state) {
+            case CLOSED -> {
+                return true;
+            }
+            case OPEN -> {
+                if (now - openedAt < cooldownMillis) {
+                    rejectedCalls++;
+                    return false;
+                }
+                moveTo(State.HALF_OPEN);
+                probeStartedAt = now;
+                return true;
+            }
+            default -> {
+                if (now - probeStartedAt < cooldownMillis) {
+                    rejectedCalls++;
+                    return false;
+                }
+                probeStartedAt = now;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return whether work for the remote would be turned away right now, without counting as a rejection
+     */
+    public synchronized boolean isOpen() {
+        return state == State.OPEN && System.currentTimeMillis() - openedAt < cooldownMillis;
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            moveTo(State.CLOSED);
+        }
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+            timesOpened++;
+            moveTo(State.OPEN);
+        }
+    }
+
+    private void moveTo(State next) {
+        switch (next) {
+            case OPEN -> LOG.warn("{} circuit opened after {} failure(s) in a row. Turning work away for {} ms",
+                    remote, consecutiveFailures, cooldownMillis);
+            case HALF_OPEN -> LOG.info("{} circuit half open. Probing with the next call", remote);
+            case CLOSED -> LOG.info("{} circuit closed. {} is answering again", remote, remote);
+        }
+        state = next;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getTimesOpened() {
+        return timesOpened;
+    }
+
+    public synchronized int getRejectedCalls() {
+        return rejectedCalls;
+    }
+
+    @Override
+    public synchronized @NotNull String toString() {
+        return String.format("%s circuit: %s - opened %d time(s), %d call(s) turned away",
+                remote, state, timesOpened, rejectedCalls);
+    }
+}
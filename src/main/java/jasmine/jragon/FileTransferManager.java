@@ -1,13 +1,17 @@
 package jasmine.jragon;
 
-import jasmine.jragon.dropbox.cli.command.DropboxSession;
-import jasmine.jragon.dropbox.cli.command.GetCommand;
+import jasmine.jragon.dropbox.DropboxTransport;
 import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
 import jasmine.jragon.dropbox.model.v2.IntermediateFile;
 import jasmine.jragon.dropbox.model.v2.movement.advanced.PageContentIndex;
+import jasmine.jragon.dropbox.model.v2.movement.advanced.PageFeatureFeed;
+import jasmine.jragon.dropbox.model.v2.movement.advanced.PageVersionArchive;
+import jasmine.jragon.dropbox.model.v2.revision.RevisionStore;
+import jasmine.jragon.mega.MegaFunctionManager;
+import jasmine.jragon.mega.MegaUploadManifest;
+import jasmine.jragon.mega.MegaUploadStage;
 import jasmine.jragon.mega.eliux.v2.MegaSession;
 import jasmine.jragon.pdf.PDFEditor;
-import jasmine.jragon.stream.support.IntermediateUtils;
 import jasmine.jragon.tuple.type.Duo;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -15,24 +19,26 @@ import me.tongfei.progressbar.ProgressBar;
 import me.tongfei.progressbar.ProgressBarStyle;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
 
-import static jasmine.jragon.LocalResourceManager.attemptFileDeletion;
-import static jasmine.jragon.dropbox.DropboxFunctionManager.downloadFile;
-import static jasmine.jragon.mega.MegaFunctionManager.sendFileToMega;
 import static jasmine.jragon.progress.bar.ProgressBarGenerator.generateProgressBar;
 import static jasmine.jragon.progress.bar.ProgressBarGenerator.generateProgressBarStyle;
 import static jasmine.jragon.progress.bar.ProgressBarGenerator.generateSubProgressBar;
@@ -42,6 +48,7 @@ public final class FileTransferManager {
 
     private static final int CONCURRENCY_THRESHOLD = 20;
     private static final int CONCURRENCY_COUNT = 4;
+    private static final int FULL_INDEX_CAPACITY = 2500;
     private static final int DOWNSIZED_CAPACITY = 50;
 
     private static final String PROGRESS_BAR_TITLE = "Transporting Documents";
@@ -51,25 +58,27 @@ public final class FileTransferManager {
     private static final ProgressBarStyle RUNTIME_SUB_BAR_STYLE = generateProgressBarStyle();
 
     static @NotNull Duo<List<String>, PageContentIndex> conductFileTransfer(
-            @NonNull List<DbxLongListFileInfo> dropboxFiles, @NonNull DropboxSession dropboxSession,
+            @NonNull List<DbxLongListFileInfo> dropboxFiles, @NonNull DropboxTransport dropboxTransport,
             @NonNull MegaSession megaCloudSession, @NonNull String downloadDestinationDirectory,
-            boolean crashDirectory) {
+            @NonNull RevisionStore revisionStore, @NonNull MegaUploadManifest uploadManifest,
+            boolean crashDirectory, double similarityThreshold,
+            @Nullable PageVersionArchive versionArchive, @Nullable PageFeatureFeed featureFeed) {
         int transferSize = dropboxFiles.size();
         boolean remainSequential = transferSize < CONCURRENCY_THRESHOLD;
 
-        var contentIndex = crashDirectory ?
-                new PageContentIndex(!remainSequential) :
-                new PageContentIndex(!remainSequential, DOWNSIZED_CAPACITY);
+        var contentIndex = createContentIndex(crashDirectory, similarityThreshold, versionArchive, featureFeed);
 
         List<String> erroneousFiles = remainSequential ?
                 new ArrayList<>() :
                 new CopyOnWriteArrayList<>();
 
+        var uploadStage = openUploadStage(megaCloudSession, downloadDestinationDirectory, erroneousFiles);
+
         try (var topLevelProgressBar = generateProgressBar(transferSize,
                 PROGRESS_BAR_TITLE, UNIT_NAME, UNIT_COUNT, generateProgressBarStyle())) {
             var fileTransferAction = curryTransferFunction(
-                    dropboxSession, megaCloudSession, downloadDestinationDirectory,
-                    contentIndex, erroneousFiles, topLevelProgressBar
+                    dropboxTransport, downloadDestinationDirectory, contentIndex, revisionStore, uploadManifest,
+                    uploadStage, erroneousFiles, topLevelProgressBar
             );
 
             if (remainSequential) {
@@ -80,19 +89,59 @@ public final class FileTransferManager {
                 LOG.debug("Concurrency Enabled");
                 conductConcurrentFileTransfer(dropboxFiles, fileTransferAction);
             }
+        } finally {
+            uploadStage.finish();
         }
 
         return Duo.of(erroneousFiles, contentIndex);
     }
 
-    private static BiConsumer<List<DbxLongListFileInfo>, ProgressBar> curryTransferFunction(
-            DropboxSession dropboxSession, MegaSession megaCloudSession,
-            String downloadDestinationDirectory, PageContentIndex contentIndex,
-            List<String> erroneousFiles, ProgressBar topLevelProgressBar) {
-        Function<DbxLongListFileInfo, GetCommand> createDropboxGetCommand = downloadDestinationDirectory.isBlank() ?
-                file -> dropboxSession.getFile(file.toString()) :
-                file -> dropboxSession.getFile(file.toString(), downloadDestinationDirectory);
+    /**
+     * Opens a transfer that takes files one at a time while the Dropbox listing is still being read.
+     * Call {@link StreamingTransfer#finish()} once the listing is done to wait for the last transfers.
+     */
+    static @NotNull StreamingTransfer openStreamingTransfer(
+            @NonNull DropboxTransport dropboxTransport, @NonNull MegaSession megaCloudSession,
+            @NonNull String downloadDestinationDirectory, @NonNull RevisionStore revisionStore,
+            @NonNull MegaUploadManifest uploadManifest, boolean crashDirectory, double similarityThreshold,
+            @Nullable PageVersionArchive versionArchive, @Nullable PageFeatureFeed featureFeed) {
+        var contentIndex = createContentIndex(crashDirectory, similarityThreshold, versionArchive, featureFeed);
+        List<String> erroneousFiles = new CopyOnWriteArrayList<>();
+        //The total isn't known until the listing is done, so the bar grows as files come in
+        var topLevelProgressBar = generateProgressBar(0,
+                PROGRESS_BAR_TITLE, UNIT_NAME, UNIT_COUNT, generateProgressBarStyle());
+
+        var uploadStage = openUploadStage(megaCloudSession, downloadDestinationDirectory, erroneousFiles);
+        var fileTransferAction = curryTransferFunction(
+                dropboxTransport, downloadDestinationDirectory, contentIndex, revisionStore, uploadManifest,
+                uploadStage, erroneousFiles, topLevelProgressBar
+        );
+
+        return new StreamingTransfer(fileTransferAction, contentIndex, revisionStore, uploadStage, erroneousFiles,
+                topLevelProgressBar);
+    }
 
+    private static PageContentIndex createContentIndex(boolean crashDirectory, double similarityThreshold,
+                                                       @Nullable PageVersionArchive versionArchive,
+                                                       @Nullable PageFeatureFeed featureFeed) {
+        return crashDirectory ?
+                new PageContentIndex(FULL_INDEX_CAPACITY, similarityThreshold, versionArchive, featureFeed) :
+                new PageContentIndex(DOWNSIZED_CAPACITY, similarityThreshold, versionArchive, featureFeed);
+    }
+
+    /**
+     * Staged next to the downloads, so moving a finished file in doesn't copy it
+     */
+    private static MegaUploadStage openUploadStage(MegaSession megaCloudSession, String downloadDestinationDirectory,
+                                                   List<String> erroneousFiles) {
+        return new MegaUploadStage(megaCloudSession,
+                new File(downloadDestinationDirectory + MegaUploadStage.DEFAULT_STAGING_DIRECTORY), erroneousFiles);
+    }
+
+    private static BiConsumer<List<DbxLongListFileInfo>, ProgressBar> curryTransferFunction(
+            DropboxTransport dropboxTransport, String downloadDestinationDirectory,
+            PageContentIndex contentIndex, RevisionStore revisionStore, MegaUploadManifest uploadManifest,
+            MegaUploadStage uploadStage, List<String> erroneousFiles, ProgressBar topLevelProgressBar) {
         Function<String, IntermediateFile> createIntermediateFile = downloadDestinationDirectory.isBlank() ?
                 IntermediateFile::new :
                 dropboxFile -> new IntermediateFile(dropboxFile, downloadDestinationDirectory);
@@ -110,21 +159,40 @@ public final class FileTransferManager {
                     subProgressBar.reset();
                     subProgressBar.setExtraMessage(dbxFile.getFileName());
                 })
-                .map(createDropboxGetCommand)
-                .map(getCommand -> {
-                    var downloadOpt = downloadFile(getCommand, erroneousFiles);
+                .filter(dbxFile -> {
+                    //Mega Cloud already holds it, most likely from a run that died before recording it
+                    if (uploadManifest.isUploaded(createIntermediateFile.apply(dbxFile.toString()).getMegaCloudPath(),
+                            MegaUploadManifest.fingerprintOf(dbxFile))) {
+                        LOG.debug("{} is already in Mega Cloud. Skipping", dbxFile);
+                        revisionStore.recordTransfer(dbxFile);
+                        subProgressBar.reset();
+                        topLevelProgressBar.step();
+                        return false;
+                    }
+
+                    //Nowhere to upload it to, so it's left for the next run
+                    if (MegaFunctionManager.CIRCUIT_BREAKER.isOpen()) {
+                        erroneousFiles.add(dbxFile.toString());
+                        revisionStore.recordFailure(dbxFile);
+                        subProgressBar.reset();
+                        return false;
+                    }
+
+                    var downloadOpt = dropboxTransport.downloadFile(dbxFile.toString(),
+                            downloadDestinationDirectory, erroneousFiles);
 
                     if (downloadOpt.isPresent()) {
                         subProgressBar.step();
-                    } else {
-                        subProgressBar.reset();
+                        return true;
                     }
-                    return downloadOpt;
+                    revisionStore.recordFailure(dbxFile);
+                    subProgressBar.reset();
+                    return false;
                 })
-                .flatMap(IntermediateUtils::eliminateOptional)
-                //Create the intermediate file
-                .map(createIntermediateFile)
-                .forEach(file -> {
+                .forEach(dbxFile -> {
+                    //Create the intermediate file
+                    var file = createIntermediateFile.apply(dbxFile.toString());
+
                     /*
                      * Populating a content index to look for more complicated file moves
                      * that include a change in file names or
@@ -136,9 +204,18 @@ public final class FileTransferManager {
                     PDFEditor.customizeDocFile(file);
                     subProgressBar.step();
 
-                    sendFileToMega(file, megaCloudSession, erroneousFiles);
+                    //Committed one file at a time as its folder goes up, so a run that dies halfway keeps
+                    //what it got done
+                    uploadStage.stage(file, (isUploaded, size) -> {
+                        if (isUploaded) {
+                            revisionStore.recordTransfer(dbxFile);
+                            uploadManifest.recordUpload(file.getMegaCloudPath(),
+                                    MegaUploadManifest.fingerprintOf(dbxFile), size);
+                        } else {
+                            revisionStore.recordFailure(dbxFile);
+                        }
+                    });
                     subProgressBar.step();
-                    attemptFileDeletion(file.createLocalFileObject());
                     subProgressBar.setExtraMessage("");
 
                     topLevelProgressBar.step();
@@ -196,6 +273,89 @@ public final class FileTransferManager {
 //        return output;
 //    }
 
+    /**
+     * Files are spread over a fixed set of single-threaded lanes by their filename. Files with the same name
+     * download to the same local file, so keeping them on one lane does what the filename sort does for
+     * the batch transfer: 2 of them are never in flight at the same time.
+     */
+    static final class StreamingTransfer {
+        private final BiConsumer<List<DbxLongListFileInfo>, ProgressBar> transferAction;
+        private final PageContentIndex contentIndex;
+        private final RevisionStore revisionStore;
+        private final MegaUploadStage uploadStage;
+        private final List<String> erroneousFiles;
+        private final ProgressBar topLevelProgressBar;
+        private final ExecutorService[] lanes;
+        private final ProgressBar[] laneProgressBars;
+        private int submittedCount;
+
+        private StreamingTransfer(BiConsumer<List<DbxLongListFileInfo>, ProgressBar> transferAction,
+                                  PageContentIndex contentIndex, RevisionStore revisionStore,
+                                  MegaUploadStage uploadStage, List<String> erroneousFiles,
+                                  ProgressBar topLevelProgressBar) {
+            this.transferAction = transferAction;
+            this.contentIndex = contentIndex;
+            this.revisionStore = revisionStore;
+            this.uploadStage = uploadStage;
+            this.erroneousFiles = erroneousFiles;
+            this.topLevelProgressBar = topLevelProgressBar;
+            lanes = new ExecutorService[CONCURRENCY_COUNT];
+            laneProgressBars = new ProgressBar[CONCURRENCY_COUNT];
+            submittedCount = 0;
+
+            for (int i = 0; i < CONCURRENCY_COUNT; i++) {
+                var laneName = "Transfer Lane " + (i + 1);
+                lanes[i] = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, laneName));
+                laneProgressBars[i] = generateSubProgressBar(laneName, RUNTIME_SUB_BAR_STYLE);
+            }
+        }
+
+        /**
+         * Only meant to be called by the thread reading the listing
+         */
+        void submit(@NonNull DbxLongListFileInfo dropboxFile) {
+            int lane = Math.floorMod(dropboxFile.getFileName().hashCode(), CONCURRENCY_COUNT);
+            topLevelProgressBar.maxHint(++submittedCount);
+            lanes[lane].execute(() -> {
+                try {
+                    transferAction.accept(List.of(dropboxFile), laneProgressBars[lane]);
+                } catch (RuntimeException e) {
+                    //Nothing would see the exception on the lane, so the file is marked for the next run instead
+                    LOG.error("{} Transfer Error: ", dropboxFile, e);
+                    erroneousFiles.add(dropboxFile.toString());
+                    revisionStore.recordFailure(dropboxFile);
+                }
+            });
+        }
+
+        /**
+         * Waits for every submitted file to be transferred
+         *
+         * @return the files that failed to transfer and the content index of every transferred file
+         */
+        @NotNull Duo<List<String>, PageContentIndex> finish() throws InterruptedException {
+            for (var lane : lanes) {
+                lane.shutdown();
+            }
+            try {
+                for (var lane : lanes) {
+                    while (!lane.awaitTermination(1, TimeUnit.MINUTES)) {
+                        LOG.trace("Waiting on the transfer lanes");
+                    }
+                }
+            } finally {
+                for (var progressBar : laneProgressBars) {
+                    progressBar.close();
+                }
+                topLevelProgressBar.close();
+                uploadStage.finish();
+            }
+
+            LOG.debug("{} streamed file(s) transferred", submittedCount);
+            return Duo.of(erroneousFiles, contentIndex);
+        }
+    }
+
     @RequiredArgsConstructor
     private static final class FileTransferTask extends RecursiveAction {
         private static final int LIST_PARTITION_SIZE = 10;
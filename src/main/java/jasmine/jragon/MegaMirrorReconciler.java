@@ -0,0 +1,119 @@
+package jasmine.jragon;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import jasmine.jragon.dropbox.model.v2.IntermediateFile;
+import jasmine.jragon.dropbox.model.v2.revision.RevisionStore;
+import jasmine.jragon.mega.MegaFunctionManager;
+import jasmine.jragon.mega.eliux.v2.MegaSession;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static jasmine.jragon.dropbox.model.v2.IntermediateFile.MEGA_CLOUD_NOTE_BASE_PATH;
+
+/**
+ * The {@code MegaMirrorReconciler} brings the note directory in Mega Cloud back in line with Dropbox, without
+ * wiping it. The directory is listed once and every path Dropbox has is looked up in it.
+ * <ul>
+ *     <li>A copy that's missing, or empty, is taken out of the revisions, so the run uploads it again</li>
+ *     <li>A copy Mega Cloud only has under a path Dropbox doesn't have anymore is moved over, as long as the
+ *     revisions say it's the same content</li>
+ *     <li>Any other path Dropbox doesn't have is removed</li>
+ * </ul>
+ * Uploaded copies have text boxes added to them, so their size never matches the one in Dropbox. Size only tells
+ * whether an upload made it through.
+ */
+final class MegaMirrorReconciler {
+    private static final Logger LOG = LoggerFactory.getLogger(MegaMirrorReconciler.class);
+
+    private final MegaSession megaSession;
+    private final RevisionStore revisionStore;
+    private final BulkRemover bulkRemover;
+
+    MegaMirrorReconciler(@NonNull MegaSession megaSession, @NonNull RevisionStore revisionStore,
+                         @NonNull BulkRemover bulkRemover) {
+        this.megaSession = megaSession;
+        this.revisionStore = revisionStore;
+        this.bulkRemover = bulkRemover;
+    }
+
+    /**
+     * Removals are only queued, so they go out with the next flush of the remover
+     *
+     * @param dropboxFiles every file in Dropbox
+     */
+    void reconcile(@NonNull List<DbxLongListFileInfo> dropboxFiles) {
+        var mirrorOpt = MegaFunctionManager.listMegaFiles(MEGA_CLOUD_NOTE_BASE_PATH);
+        if (mirrorOpt.isEmpty()) {
+            LOG.warn("Mega Cloud listing failed. Skipping reconciliation");
+            return;
+        }
+
+        Map<String, Long> mirror = new HashMap<>();
+        mirrorOpt.get().forEach(file -> mirror.put(file.path(), file.size()));
+
+        //2 base directories in Dropbox can lead to the same path in Mega Cloud, where the first one wins
+        Map<String, DbxLongListFileInfo> expected = new LinkedHashMap<>();
+        for (var file : dropboxFiles) {
+            if (file.isFile()) {
+                expected.putIfAbsent(toMegaPath(file.toString()), file);
+            }
+        }
+
+        List<DbxLongListFileInfo> missingFiles = new ArrayList<>();
+        expected.forEach((megaPath, file) -> {
+            Long size = mirror.get(megaPath);
+            if (size == null || size == 0) {
+                missingFiles.add(file);
+            }
+        });
+
+        Map<String, Long> orphans = new HashMap<>(mirror);
+        orphans.keySet().removeAll(expected.keySet());
+
+        int movedCount = 0;
+        for (var file : missingFiles) {
+            if (adoptOrphan(file, orphans)) {
+                movedCount++;
+            } else {
+                revisionStore.recordFailure(file);
+            }
+        }
+
+        orphans.keySet().forEach(bulkRemover::removeMegaFile);
+        LOG.info("Mirror Drift: {} Missing - {} Moved - {} Removed - {} In Line", missingFiles.size() - movedCount,
+                movedCount, orphans.size(), expected.size() - missingFiles.size());
+    }
+
+    /**
+     * @return whether the copy of the revision under its old path could be moved to where it's missing
+     */
+    private boolean adoptOrphan(DbxLongListFileInfo file, Map<String, Long> orphans) {
+        var oldPathOpt = revisionStore.findTransferredPath(file.getCurrentFileHash());
+        if (oldPathOpt.isEmpty()) {
+            return false;
+        }
+
+        var oldMegaPath = toMegaPath(oldPathOpt.get());
+        Long size = orphans.get(oldMegaPath);
+        if (size == null || size == 0 ||
+                !MegaFunctionManager.moveMegaFile(megaSession, oldMegaPath, toMegaPath(file.toString()))) {
+            return false;
+        }
+
+        LOG.debug("Drift Move: {} -> {}", oldMegaPath, file);
+        orphans.remove(oldMegaPath);
+        revisionStore.recordTransfer(file);
+        return true;
+    }
+
+    private static String toMegaPath(String dropboxPath) {
+        return new IntermediateFile(dropboxPath).getMegaCloudPath();
+    }
+}
@@ -0,0 +1,234 @@
+package jasmine.jragon;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import jasmine.jragon.dropbox.model.v2.IntermediateFile;
+import jasmine.jragon.dropbox.model.v2.snapshot.ListingSnapshot;
+import jasmine.jragon.mega.MegaFunctionManager;
+import jasmine.jragon.mega.MegaUploadManifest;
+import jasmine.jragon.mega.eliux.v2.MegaSession;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiPredicate;
+
+import static jasmine.jragon.dropbox.model.v2.IntermediateFile.MEGA_CLOUD_NOTE_BASE_PATH;
+
+/**
+ * The {@code MegaRelocator} collects the Dropbox moves of a stage and carries them out in Mega Cloud with
+ * {@code mega-mv} when the stage calls {@link #flush()}, so a moved file doesn't have to be downloaded, converted
+ * and uploaded again.
+ * <p>
+ * Moves that share a renamed folder are made with a single move of that folder, as long as nothing else was in the
+ * Mega folder and nothing is in it anymore. Both Dropbox note bases end up in the same Mega folders, so that goes
+ * by the Mega paths of both listings rather than by the Dropbox paths of the moves. For moves where that doesn't
+ * hold, the next folder down is tried, and so on until it's down to moving the files one at a time.
+ */
+final class MegaRelocator {
+    private static final Logger LOG = LoggerFactory.getLogger(MegaRelocator.class);
+
+    private final BiPredicate<String, String> moveFolder, moveFile;
+    private final ListingSnapshot previousSnapshot;
+    private final Collection<DbxLongListFileInfo> listing;
+    private final List<Relocation> relocations;
+    /**
+     * Built the first time a folder move comes up, since most stages only move single files
+     */
+    private NavigableSet<String> previousMegaPaths, listedMegaPaths;
+
+    /**
+     * @param previousSnapshot what was in the folders before the moves
+     * @param listing          what's in the folders now
+     */
+    /**
+     * @param uploadManifest carries the uploads over to where they were moved
+     */
+    MegaRelocator(@NonNull MegaSession megaSession, @NonNull MegaUploadManifest uploadManifest,
+                  @NonNull ListingSnapshot previousSnapshot, @NonNull Collection<DbxLongListFileInfo> listing) {
+        this(recordingMoves((from, to) -> MegaFunctionManager.moveMegaFolder(megaSession, from, to), uploadManifest),
+                recordingMoves((from, to) -> MegaFunctionManager.moveMegaFile(megaSession, from, to), uploadManifest),
+                previousSnapshot, listing);
+    }
+
+    /**
+     * @param moveFolder moves a Mega folder with everything in it, and says whether it's under its new path now
+     * @param moveFile   moves a Mega file, and says whether it's under its new path now
+     */
+    MegaRelocator(@NonNull BiPredicate<String, String> moveFolder, @NonNull BiPredicate<String, String> moveFile,
+                  @NonNull ListingSnapshot previousSnapshot, @NonNull Collection<DbxLongListFileInfo> listing) {
+        this.moveFolder = moveFolder;
+        this.moveFile = moveFile;
+        this.previousSnapshot = previousSnapshot;
+        this.listing = List.copyOf(listing);
+        relocations = new ArrayList<>();
+    }
+
+    private static BiPredicate<String, String> recordingMoves(BiPredicate<String, String> move,
+                                                              MegaUploadManifest uploadManifest) {
+        return (from, to) -> {
+            if (!move.test(from, to)) {
+                return false;
+            }
+            uploadManifest.recordMove(from, to);
+            return true;
+        };
+    }
+
+    void relocate(@NonNull String fromDropboxPath, @NonNull String toDropboxPath) {
+        relocations.add(new Relocation(fromDropboxPath, toDropboxPath));
+    }
+
+    /**
+     * @return the Dropbox paths Mega Cloud now holds the files under. The rest are still under their old path.
+     */
+    Set<String> flush() {
+        Set<String> relocatedPaths = new HashSet<>();
+        if (relocations.isEmpty()) {
+            return relocatedPaths;
+        }
+
+        long start = System.currentTimeMillis();
+        int operationCount = relocate(List.copyOf(relocations), 0, relocatedPaths);
+        LOG.info("{}/{} file(s) moved in Mega Cloud with {} move(s) - {} ms", relocatedPaths.size(),
+                relocations.size(), operationCount, System.currentTimeMillis() - start);
+
+        relocations.clear();
+        return relocatedPaths;
+    }
+
+    /**
+     * @param level how many folders up from the shallowest one the moves could share
+     * @return how many moves were made
+     */
+    private int relocate(List<Relocation> pending, int level, Set<String> relocatedPaths) {
+        Map<Relocation, List<Relocation>> byFolders = new LinkedHashMap<>();
+        List<Relocation> singleFiles = new ArrayList<>();
+
+        for (var relocation : pending) {
+            var folders = relocation.folders(level);
+            if (folders == null) {
+                singleFiles.add(relocation);
+            } else {
+                byFolders.computeIfAbsent(folders, key -> new ArrayList<>()).add(relocation);
+            }
+        }
+
+        int operationCount = 0;
+        for (var entry : byFolders.entrySet()) {
+            var folders = entry.getKey();
+            var group = entry.getValue();
+
+            if (canMoveWhole(folders, group)) {
+                operationCount++;
+                if (moveFolder.test(toMegaPath(folders.from()), toMegaPath(folders.to()))) {
+                    LOG.info("Folder Move: {} -> {} ({} file(s))", folders.from(), folders.to(), group.size());
+                    group.forEach(relocation -> relocatedPaths.add(relocation.to()));
+                    continue;
+                }
+            }
+            operationCount += relocate(group, level + 1, relocatedPaths);
+        }
+
+        for (var relocation : singleFiles) {
+            operationCount++;
+            if (moveFile.test(toMegaPath(relocation.from()), toMegaPath(relocation.to()))) {
+                relocatedPaths.add(relocation.to());
+            }
+        }
+        return operationCount;
+    }
+
+    /**
+     * The group has to be everything that was in the Mega folder, and the folder has to be gone from Dropbox,
+     * or moving it would take files along that stayed where they were, whichever Dropbox note base they're under
+     */
+    private boolean canMoveWhole(Relocation folders, List<Relocation> group) {
+        var fromMegaPath = toMegaPath(folders.from());
+        var toMegaPath = toMegaPath(folders.to());
+        if (!isUnderNoteBase(fromMegaPath) || !isUnderNoteBase(toMegaPath) || fromMegaPath.equals(toMegaPath)) {
+            return false;
+        }
+
+        if (previousMegaPaths == null) {
+            previousMegaPaths = toMegaPaths(previousSnapshot.paths());
+            listedMegaPaths = toMegaPaths(listing.stream()
+                    .map(DbxLongListFileInfo::toString)
+                    .toList());
+        }
+
+        var prefix = fromMegaPath + '/';
+        var nextListedPath = listedMegaPaths.ceiling(prefix);
+        if (nextListedPath != null && nextListedPath.startsWith(prefix)) {
+            return false;
+        }
+
+        long movedCount = group.stream()
+                .map(relocation -> toMegaPath(relocation.from()))
+                .distinct()
+                .count();
+        return countUnder(previousMegaPaths, prefix) == movedCount;
+    }
+
+    private static NavigableSet<String> toMegaPaths(Collection<String> dropboxPaths) {
+        NavigableSet<String> megaPaths = new TreeSet<>();
+        dropboxPaths.forEach(dropboxPath -> megaPaths.add(toMegaPath(dropboxPath)));
+        return megaPaths;
+    }
+
+    private static int countUnder(NavigableSet<String> paths, String prefix) {
+        int count = 0;
+        for (var path : paths.tailSet(prefix, true)) {
+            if (!path.startsWith(prefix)) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private static boolean isUnderNoteBase(String megaPath) {
+        return megaPath.startsWith(MEGA_CLOUD_NOTE_BASE_PATH + '/');
+    }
+
+    private static String toMegaPath(String dropboxPath) {
+        return new IntermediateFile(dropboxPath).getMegaCloudPath();
+    }
+
+    record Relocation(String from, String to) {
+        /**
+         * Paths that end the same way had the folder right above that ending renamed or moved
+         *
+         * @return the folders the move goes between at the level, or {@code null} once the level is past the
+         * folder right above the file
+         */
+        Relocation folders(int level) {
+            var fromSegments = from.split("/");
+            var toSegments = to.split("/");
+
+            int sharedSegments = 0;
+            while (sharedSegments < fromSegments.length - 1 && sharedSegments < toSegments.length - 1 &&
+                    fromSegments[fromSegments.length - 1 - sharedSegments]
+                            .equals(toSegments[toSegments.length - 1 - sharedSegments])) {
+                sharedSegments++;
+            }
+
+            int droppedSegments = sharedSegments - level;
+            if (droppedSegments < 1) {
+                return null;
+            }
+            return new Relocation(
+                    String.join("/", List.of(fromSegments).subList(0, fromSegments.length - droppedSegments)),
+                    String.join("/", List.of(toSegments).subList(0, toSegments.length - droppedSegments))
+            );
+        }
+    }
+}
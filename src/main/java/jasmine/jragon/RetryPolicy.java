@@ -0,0 +1,161 @@
+package jasmine.jragon;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * The {@code RetryPolicy} decides how often, and how far apart, a remote operation is tried. The bound on each wait
+ * doubles from the base delay up to the cap, and the wait itself is drawn anywhere between zero and that bound,
+ * so workers that failed together don't all come back together. Retrying stops once the attempts run out or the
+ * next wait would go past the time budget, whichever comes first.
+ * <p>
+ * Failures come in two shapes. {@link #retryWhile} is for calls that report a failure in their result, like a
+ * dbxcli response, and {@link #retryOn} is for calls that throw it.
+ * <p>
+ * Every attempt reports to the {@link CircuitBreaker} of the remote. A retryable failure counts against the remote,
+ * and anything else shows that it's answering. Retries stop as soon as the breaker opens. Clearing the first attempt
+ * with the breaker is left to the caller, who knows what to do with work that's turned away.
+ */
+public final class RetryPolicy {
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+    private final String operation;
+    private final CircuitBreaker circuitBreaker;
+    private final int maxAttempts;
+    private final long baseDelayMillis, maxDelayMillis, timeBudgetMillis;
+
+    /**
+     * @param operation      what's being retried, for the logs
+     * @param circuitBreaker breaker of the remote the operation goes to
+     * @param maxAttempts    attempts in total, the first one included
+     * @param timeBudget     time from the start of the first attempt past which no more attempts are started
+     */
+    public RetryPolicy(@NonNull String operation, @NonNull CircuitBreaker circuitBreaker, int maxAttempts,
+                       @NonNull Duration baseDelay, @NonNull Duration maxDelay, @NonNull Duration timeBudget) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed: " + maxAttempts);
+        } else if (baseDelay.isNegative() || maxDelay.compareTo(baseDelay) < 0) {
+            throw new IllegalArgumentException("Delays should go from " + baseDelay + " up to " + maxDelay);
+        }
+
+        this.operation = operation;
+        this.circuitBreaker = circuitBreaker;
+        this.maxAttempts = maxAttempts;
+        baseDelayMillis = baseDelay.toMillis();
+        maxDelayMillis = maxDelay.toMillis();
+        timeBudgetMillis = timeBudget.toMillis();
+    }
+
+    /**
+     * @return the first result that isn't retryable, or the last one once the attempts or the time budget run out
+     */
+    public <T> T retryWhile(@NonNull Object target, @NonNull Predicate<? super T> isRetryable,
+                            @NonNull Attempt<T, RuntimeException> attempt) throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            var result = attempt.run(attemptNumber);
+            if (!isRetryable.test(result)) {
+                circuitBreaker.recordSuccess();
+                return result;
+            }
+
+            circuitBreaker.recordFailure();
+            if (!awaitNextAttempt(target, attemptNumber, start, result)) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Failures that aren't of the failure type, or that aren't retryable, are thrown right away
+     *
+     * @throws E the last failure, once the attempts or the time budget run out
+     */
+    public <T, E extends Exception> T retryOn(@NonNull Object target, @NonNull Class<E> failureType,
+                                              @NonNull Predicate<? super E> isRetryable,
+                                              @NonNull Attempt<T, E> attempt) throws E, InterruptedException {
+        long start = System.currentTimeMillis();
+
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            try {
+                var result = attempt.run(attemptNumber);
+                circuitBreaker.recordSuccess();
+                return result;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                //Anything that isn't a failure of the attempt's own type is unchecked
+                if (!failureType.isInstance(e)) {
+                    throw (RuntimeException) e;
+                }
+
+                var failure = failureType.cast(e);
+                if (!isRetryable.test(failure)) {
+                    circuitBreaker.recordSuccess();
+                    throw failure;
+                }
+
+                circuitBreaker.recordFailure();
+                if (!awaitNextAttempt(target, attemptNumber, start, failure.getMessage())) {
+                    throw failure;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether there's another attempt to make, after waiting for it
+     */
+    private boolean awaitNextAttempt(Object target, int attemptNumber, long start, Object failure)
+            throws InterruptedException {
+        if (attemptNumber >= maxAttempts) {
+            LOG.warn("{} of {} failed {} time(s). Giving up", operation, target, attemptNumber);
+            return false;
+        }
+
+        long delay = drawDelay(attemptNumber);
+        if (System.currentTimeMillis() - start + delay > timeBudgetMillis) {
+            LOG.warn("{} of {} failed {} time(s) and is out of its {} ms budget. Giving up",
+                    operation, target, attemptNumber, timeBudgetMillis);
+            return false;
+        }
+
+        LOG.debug("{} of {} failed (attempt {}/{}). Retrying in {} ms: {}",
+                operation, target, attemptNumber, maxAttempts, delay, failure);
+        Thread.sleep(delay);
+
+        if (!circuitBreaker.tryAcquire()) {
+            LOG.warn("{} of {} failed {} time(s) and its circuit is open. Giving up",
+                    operation, target, attemptNumber);
+            return false;
+        }
+        return true;
+    }
+
+    private long drawDelay(int attemptNumber) {
+        //Past 2^30, the bound is long past any cap that makes sense
+        long bound = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attemptNumber - 1, 30));
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return String.format("%s: %d attempt(s), %d-%d ms, %d ms budget",
+                operation, maxAttempts, baseDelayMillis, maxDelayMillis, timeBudgetMillis);
+    }
+
+    @FunctionalInterface
+    public interface Attempt<T, E extends Exception> {
+        /**
+         * @param attemptNumber starts at 1
+         */
+        T run(int attemptNumber) throws E, InterruptedException;
+    }
+}
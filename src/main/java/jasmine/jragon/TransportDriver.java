@@ -1,12 +1,22 @@
 package jasmine.jragon;
 
 import jasmine.jragon.dropbox.DropboxFunctionManager;
+import jasmine.jragon.dropbox.DropboxTransport;
 import jasmine.jragon.dropbox.cli.command.DropboxSession;
+import jasmine.jragon.dropbox.http.DropboxHttpClient;
 import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import jasmine.jragon.dropbox.model.v2.DirectoryTrie;
 import jasmine.jragon.dropbox.model.v2.IntermediateFile;
+import jasmine.jragon.dropbox.model.v2.ListingScope;
 import jasmine.jragon.dropbox.model.v2.movement.simple.FileMove;
 import jasmine.jragon.dropbox.model.v2.movement.advanced.PageContentIndex;
+import jasmine.jragon.dropbox.model.v2.movement.advanced.PageFeatureFeed;
+import jasmine.jragon.dropbox.model.v2.movement.advanced.PageVersionArchive;
+import jasmine.jragon.dropbox.model.v2.revision.RevisionStore;
+import jasmine.jragon.dropbox.model.v2.snapshot.ListingDelta;
+import jasmine.jragon.dropbox.model.v2.snapshot.ListingSnapshot;
 import jasmine.jragon.mega.MegaFunctionManager;
+import jasmine.jragon.mega.MegaUploadManifest;
 import jasmine.jragon.mega.eliux.v2.Mega;
 import jasmine.jragon.mega.eliux.v2.MegaSession;
 import jasmine.jragon.mega.eliux.v2.auth.MegaAuthSessionID;
@@ -15,30 +25,27 @@ import jasmine.jragon.tuple.type.Duo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.time.DayOfWeek;
 import java.time.Duration;
-import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static jasmine.jragon.FileTransferManager.conductFileTransfer;
+import static jasmine.jragon.FileTransferManager.openStreamingTransfer;
 import static jasmine.jragon.LocalResourceManager.attemptFileDeletion;
-import static jasmine.jragon.dropbox.DropboxFunctionManager.wipeEmptyDirectories;
-import static jasmine.jragon.dropbox.DropboxFunctionManager.splitDropboxFoldersAndFiles;
+import static jasmine.jragon.dropbox.DropboxFunctionManager.findEmptyDirectories;
 import static jasmine.jragon.dropbox.DropboxFunctionManager.reduceRetrievalList;
 import static jasmine.jragon.dropbox.DropboxFunctionManager.retrieveSimpleFileMovements;
 import static jasmine.jragon.mega.MegaFunctionManager.crashCloudDirectory;
@@ -50,10 +57,25 @@ public final class TransportDriver {
     private static final String SESSION_ID =
             "AafZa0d24-6hidQSjsqk1AuwPwXuI6RxWi5fpLNOGA3pSFdCRWdtVThuaVlLTG8aSlPeNIS8PGvsRIbH";
 
+    /**
+     * Only read when the run goes over the Dropbox API, dbxcli keeps its own token
+     */
+    private static final String DROPBOX_TOKEN_VARIABLE = "DROPBOX_ACCESS_TOKEN";
+
     private static final String REVISION_FILE_NAME = "revision-list.txt";
+    private static final String PAGE_GRAPH_FILE_NAME = "page-graph.dot";
 
     private static final String CRASH_CLOUD_DIR_ARG = "Crash-Cloud-Path",
-            CLOUD_DIRECTORY_ARG = "Directory";
+            RECONCILE_CLOUD_DIR_ARG = "Reconcile-Cloud-Path",
+            CLOUD_DIRECTORY_ARG = "Directory",
+            SIMILARITY_THRESHOLD_ARG = "Similarity-Threshold",
+            EXPORT_PAGE_GRAPH_ARG = "Export-Page-Graph",
+            VERSION_ARCHIVE_ARG = "Version-Archive",
+            FEATURE_FEED_ARG = "Feature-Feed",
+            STREAM_LISTING_ARG = "Stream-Listing",
+            REBUILD_VERSION_ARG = "Rebuild-Version",
+            DROPBOX_TRANSPORT_ARG = "Dropbox-Transport",
+            SUBTREE_ARG = "Subtree";
 
     private static final boolean DBX_FILES = true, DBX_FOLDERS = false;
 
@@ -66,6 +88,11 @@ public final class TransportDriver {
             LOG.info("Command Map: {}", commandMap);
         }
 
+        if (commandMap.containsKey(REBUILD_VERSION_ARG)) {
+            rebuildArchivedVersion(commandMap.get(REBUILD_VERSION_ARG));
+            return;
+        }
+
         long start = System.nanoTime();
 
         try {
@@ -76,174 +103,561 @@ public final class TransportDriver {
             LOG.error("Fatal Runtime Exception occurred in the system: ", e);
         }
 
+        logCircuitBreakers();
         logRuntime(System.nanoTime() - start);
     }
 
     private static void executeFileTransfer(Map<String, String> commandMap) throws InterruptedException {
-        var dropboxSession = new DropboxSession(false);
+        try (var revisionStore = openRevisionStore();
+             var uploadManifest = MegaUploadManifest.open(new File(MegaUploadManifest.DEFAULT_MANIFEST_FILE))) {
+            executeFileTransfer(commandMap, revisionStore, uploadManifest);
+        } catch (IOException e) {
+            LOG.error("Revision Log Error: ", e);
+        }
+    }
+
+    private static void executeFileTransfer(Map<String, String> commandMap, RevisionStore revisionStore,
+                                            MegaUploadManifest uploadManifest) throws InterruptedException {
+        var dropboxTransport = openDropboxTransport(commandMap);
+        var listingScope = openListingScope(commandMap);
         var megaCloudSession = Mega.login(new MegaAuthSessionID(SESSION_ID));
 
         LOG.info("Logging into Mega Cloud - Who Am I: {}", megaCloudSession.whoAmI());
 
         var downloadDestinationDirectory = setFileDownloadLocation(commandMap);
+        double similarityThreshold = setSimilarityThreshold(commandMap);
+        var versionArchive = openVersionArchive(commandMap);
+        var featureFeed = openFeatureFeed(commandMap);
         boolean crashDirectory = commandMap.containsKey(CRASH_CLOUD_DIR_ARG) &&
                 commandMap.get(CRASH_CLOUD_DIR_ARG).equalsIgnoreCase("True");
+        if (crashDirectory && !listingScope.isEverything()) {
+            //Wiping the note directory would take everything outside of the scope with it
+            LOG.warn("{} ignored for a run scoped to {}", CRASH_CLOUD_DIR_ARG, listingScope);
+            crashDirectory = false;
+        }
+        boolean reconcileDirectory = "True".equalsIgnoreCase(commandMap.get(RECONCILE_CLOUD_DIR_ARG));
+        if (reconcileDirectory && (crashDirectory || !listingScope.isEverything())) {
+            //A wipe leaves nothing to reconcile, and a scoped listing would make everything else look orphaned
+            LOG.warn("{} ignored for a run that's wiping the note directory or scoped to {}",
+                    RECONCILE_CLOUD_DIR_ARG, listingScope);
+            reconcileDirectory = false;
+        }
+        boolean exportPageGraph = commandMap.containsKey(EXPORT_PAGE_GRAPH_ARG) &&
+                commandMap.get(EXPORT_PAGE_GRAPH_ARG).equalsIgnoreCase("True");
 
         if (crashDirectory) {
-            crashCloudDirectory(megaCloudSession, doesRevisionFileExist(), REVISION_FILE_NAME);
+            revisionStore.clear();
+            uploadManifest.clear();
+            crashCloudDirectory(megaCloudSession);
+        }
+
+        if (reconcileDirectory && "True".equalsIgnoreCase(commandMap.get(STREAM_LISTING_ARG))) {
+            //Whatever's missing in Mega Cloud can only be told apart once the whole listing is in
+            LOG.warn("{} ignored while reconciling the note directory", STREAM_LISTING_ARG);
+        } else if ("True".equalsIgnoreCase(commandMap.get(STREAM_LISTING_ARG))) {
+            var streamingTransfer = openStreamingTransfer(dropboxTransport, megaCloudSession,
+                    downloadDestinationDirectory, revisionStore, uploadManifest, crashDirectory, similarityThreshold,
+                    versionArchive.orElse(null), featureFeed.orElse(null));
+            executeStreamingFileTransfer(streamingTransfer, dropboxTransport, megaCloudSession, revisionStore,
+                    uploadManifest, listingScope, exportPageGraph);
+            return;
         }
 
-        var filesFoldersMapOptional = splitDropboxFoldersAndFiles(dropboxSession);
+        var filesFoldersMapOptional = dropboxTransport.splitFoldersAndFiles(listingScope);
 
         if (filesFoldersMapOptional.isEmpty()) {
             return;
         }
 
         var filesAndFolders = filesFoldersMapOptional.get();
-        var annotationsDirectoryFutureOpt = refreshAnnotationSubdirectories(
+        var annotationsDirectoryFuture = refreshAnnotationSubdirectories(
                 megaCloudSession,
                 filesAndFolders.get(DBX_FOLDERS)
         );
 
         var dropboxFilePaths = filesAndFolders.get(DBX_FILES);
         dropboxFilePaths.sort(DbxLongListFileInfo::compareByFilename);
+        var directoryTrie = DirectoryTrie.of(dropboxFilePaths, filesAndFolders.get(DBX_FOLDERS));
+        var bulkRemover = new BulkRemover(dropboxTransport, megaCloudSession, uploadManifest);
 
-        conductSimpleFileMovements(dropboxFilePaths, dropboxSession);
+        var simpleMoves = conductSimpleFileMovements(dropboxFilePaths, directoryTrie, bulkRemover);
+        bulkRemover.flush();
 
         var filePathsClone = new ArrayList<>(dropboxFilePaths);
+        var previousSnapshot = ListingSnapshot.read(new File(ListingSnapshot.DEFAULT_SNAPSHOT_FILE));
+        var listingDelta = logListingDelta(filePathsClone, previousSnapshot.filter(listingScope::contains));
+        var movedPaths = collectMovedPaths(listingDelta);
+        var megaMoves = findMegaMoves(simpleMoves, listingDelta, filePathsClone, revisionStore, previousSnapshot);
+        var relocatedPaths = relocateMegaCopies(megaCloudSession, revisionStore, uploadManifest, megaMoves,
+                filePathsClone, previousSnapshot, movedPaths);
+
+        if (reconcileDirectory) {
+            new MegaMirrorReconciler(megaCloudSession, revisionStore, bulkRemover).reconcile(filePathsClone);
+            bulkRemover.flush();
+        }
 
-        if (doesRevisionFileExist()) {
-            reduceRetrievalList(dropboxFilePaths, REVISION_FILE_NAME);
+        if (!revisionStore.isEmpty()) {
+            reduceRetrievalList(dropboxFilePaths, revisionStore::containsRevision);
+
+            //Mega Cloud only has them under the path they had before
+            filePathsClone.stream()
+                    .filter(file -> movedPaths.contains(file.toString()))
+                    .filter(file -> !relocatedPaths.contains(file.toString()))
+                    .filter(file -> !dropboxFilePaths.contains(file))
+                    .forEach(dropboxFilePaths::add);
         }
 
-        wipeEmptyDirectories(
-                filePathsClone.stream().map(DbxLongListFileInfo::toString).toList(),
-                filesAndFolders.get(DBX_FOLDERS).stream().map(DbxLongListFileInfo::toString).toList(),
-                dropboxSession
-        );
+        removeEmptyDirectories(directoryTrie, bulkRemover);
 
         if (dropboxFilePaths.isEmpty()) {
             LOG.info("No changes detected. Shutting down");
+            saveListingSnapshot(filePathsClone, List.of(), previousSnapshot, listingScope);
+            finishAnnotationSubdirGeneration(annotationsDirectoryFuture);
+            return;
+        }
+
+        var errorsContentIndexDuo = conductFileTransfer(dropboxFilePaths, dropboxTransport,
+                megaCloudSession, downloadDestinationDirectory, revisionStore, uploadManifest, crashDirectory,
+                similarityThreshold, versionArchive.orElse(null), featureFeed.orElse(null));
+
+        if (exportPageGraph) {
+            exportPageGraph(errorsContentIndexDuo.second());
+        }
+
+        conductAdvancedFileMoves(errorsContentIndexDuo.second(), bulkRemover);
+        removeRelocatedMegaCopies(megaMoves, relocatedPaths, errorsContentIndexDuo.first(), bulkRemover);
+        bulkRemover.flush();
+
+        finishRevisionChanges(revisionStore, filePathsClone, listingScope, errorsContentIndexDuo.first());
+        saveListingSnapshot(filePathsClone, errorsContentIndexDuo.first(), previousSnapshot, listingScope);
+
+        finishAnnotationSubdirGeneration(annotationsDirectoryFuture);
+    }
+
+    /**
+     * Same stages as the batch run, except that changed files start transferring while the listing is still
+     * coming in. Simple moves can only be found once the whole listing is in, so when the older file of a move
+     * was already transferred, its Mega copy is removed along with the Dropbox one.
+     */
+    private static void executeStreamingFileTransfer(FileTransferManager.StreamingTransfer streamingTransfer,
+                                                     DropboxTransport dropboxTransport, MegaSession megaCloudSession,
+                                                     RevisionStore revisionStore,
+                                                     MegaUploadManifest uploadManifest, ListingScope listingScope,
+                                                     boolean exportPageGraph)
+            throws InterruptedException {
+        //Taken before any transfer commits, so the files of this run don't count as already transferred
+        Set<String> knownRevisions = revisionStore.copyRevisions();
+        var previousSnapshot = ListingSnapshot.read(new File(ListingSnapshot.DEFAULT_SNAPSHOT_FILE));
+        Set<String> movedPaths = new HashSet<>();
+        Predicate<DbxLongListFileInfo> isKnown = file -> knownRevisions.contains(file.getCurrentFileHash());
+        //Only asked once the listing is in and the moves are known
+        Predicate<DbxLongListFileInfo> isAlreadyTransferred =
+                isKnown.and(file -> !movedPaths.contains(file.toString()));
+
+        Optional<Map<Boolean, List<DbxLongListFileInfo>>> filesFoldersMapOptional = Optional.empty();
+        List<ListingDelta.Move> megaMoves = new ArrayList<>();
+        Set<String> relocatedPaths = new HashSet<>();
+        Duo<List<String>, PageContentIndex> errorsContentIndexDuo;
+        try {
+            //Files with a known revision wait for the whole listing, which it takes to tell if they only moved
+            filesFoldersMapOptional = dropboxTransport.streamFoldersAndFiles(listingScope, isKnown,
+                    streamingTransfer::submit);
+
+            if (filesFoldersMapOptional.isPresent()) {
+                var dropboxFiles = filesFoldersMapOptional.get().get(DBX_FILES);
+                var listingDelta = logListingDelta(dropboxFiles, previousSnapshot.filter(listingScope::contains));
+                movedPaths.addAll(collectMovedPaths(listingDelta));
+                megaMoves.addAll(findMegaMoves(List.of(), listingDelta, dropboxFiles, revisionStore,
+                        previousSnapshot));
+
+                //A moved file with a new revision is already on its way up, so its old copy is only removed
+                var streamedPaths = dropboxFiles.stream()
+                        .filter(Predicate.not(isKnown))
+                        .map(DbxLongListFileInfo::toString)
+                        .collect(Collectors.toSet());
+                var relocatableMoves = megaMoves.stream()
+                        .filter(move -> !streamedPaths.contains(move.to()))
+                        .toList();
+                relocatedPaths.addAll(relocateMegaCopies(megaCloudSession, revisionStore, uploadManifest,
+                        relocatableMoves, dropboxFiles, previousSnapshot, movedPaths));
+
+                dropboxFiles.stream()
+                        .filter(isKnown)
+                        .filter(file -> movedPaths.contains(file.toString()))
+                        .filter(file -> !relocatedPaths.contains(file.toString()))
+                        .forEach(streamingTransfer::submit);
+            }
+        } finally {
+            errorsContentIndexDuo = streamingTransfer.finish();
+        }
+
+        if (filesFoldersMapOptional.isEmpty()) {
+            //Moves, pruning and the revision removals all need the full listing, so they wait for the next run
+            LOG.warn("Listing incomplete. {} Error File(s): {}",
+                    errorsContentIndexDuo.first().size(), errorsContentIndexDuo.first());
+            return;
+        }
+
+        var filesAndFolders = filesFoldersMapOptional.get();
+        var annotationsDirectoryFuture = refreshAnnotationSubdirectories(
+                megaCloudSession,
+                filesAndFolders.get(DBX_FOLDERS)
+        );
+
+        var dropboxFilePaths = filesAndFolders.get(DBX_FILES);
+        dropboxFilePaths.sort(DbxLongListFileInfo::compareByFilename);
+        var directoryTrie = DirectoryTrie.of(dropboxFilePaths, filesAndFolders.get(DBX_FOLDERS));
+        var bulkRemover = new BulkRemover(dropboxTransport, megaCloudSession, uploadManifest);
+
+        conductSimpleFileMovements(dropboxFilePaths, directoryTrie, bulkRemover).stream()
+                .map(FileMove::getOlderFile)
+                .flatMap(IntermediateUtils::eliminateOptional)
+                .filter(Predicate.not(isAlreadyTransferred))
+                .map(olderFile -> new IntermediateFile(olderFile.toString()).getMegaCloudPath())
+                .forEach(bulkRemover::removeMegaFile);
+        bulkRemover.flush();
+
+        removeEmptyDirectories(directoryTrie, bulkRemover);
+
+        boolean noChanges = dropboxFilePaths.stream()
+                .allMatch(isAlreadyTransferred);
+        if (noChanges) {
+            LOG.info("No changes detected. Shutting down");
+            saveListingSnapshot(dropboxFilePaths, List.of(), previousSnapshot, listingScope);
+            finishAnnotationSubdirGeneration(annotationsDirectoryFuture);
             return;
         }
 
-        var overwriteRevisionFileFuture = runAsync(() -> overwriteRevisionFile(filePathsClone));
+        if (exportPageGraph) {
+            exportPageGraph(errorsContentIndexDuo.second());
+        }
+
+        conductAdvancedFileMoves(errorsContentIndexDuo.second(), bulkRemover);
+        removeRelocatedMegaCopies(megaMoves, relocatedPaths, errorsContentIndexDuo.first(), bulkRemover);
+        bulkRemover.flush();
+
+        finishRevisionChanges(revisionStore, dropboxFilePaths, listingScope, errorsContentIndexDuo.first());
+        saveListingSnapshot(dropboxFilePaths, errorsContentIndexDuo.first(), previousSnapshot, listingScope);
+
+        finishAnnotationSubdirGeneration(annotationsDirectoryFuture);
+    }
 
-        var errorsContentIndexDuo = conductFileTransfer(dropboxFilePaths, dropboxSession,
-                megaCloudSession, downloadDestinationDirectory, crashDirectory);
+    private static ListingDelta logListingDelta(List<DbxLongListFileInfo> dropboxFiles,
+                                                ListingSnapshot previousSnapshot) {
+        var listingDelta = ListingSnapshot.of(dropboxFiles).diff(previousSnapshot);
 
-        conductAdvancedFileMoves(errorsContentIndexDuo.second(), megaCloudSession, dropboxSession);
+        LOG.info("Listing Delta: {}", listingDelta);
+        if (!listingDelta.moved().isEmpty()) {
+            LOG.debug("Moved Files: {}", listingDelta.moved());
+        }
+        return listingDelta;
+    }
 
-        finishRevisionFileChanges(overwriteRevisionFileFuture, errorsContentIndexDuo.first());
+    private static Set<String> collectMovedPaths(ListingDelta listingDelta) {
+        return listingDelta.moved()
+                .stream()
+                .map(ListingDelta.Move::to)
+                .collect(Collectors.toSet());
+    }
 
-        annotationsDirectoryFutureOpt.ifPresent(TransportDriver::finishAnnotationSubdirGeneration);
+    /**
+     * Moves where Mega Cloud holds the older copy under the path it came from. A file that only moved since the
+     * last run goes along with its content, and the older file of a simple move goes to where the newer file is,
+     * so the upload of the newer file lands on it.
+     * <p>
+     * A move in the listing delta only counts if the revision the previous snapshot had under the old path
+     * was transferred there.
+     */
+    private static List<ListingDelta.Move> findMegaMoves(List<FileMove> simpleMoves, ListingDelta listingDelta,
+                                                         List<DbxLongListFileInfo> dropboxFiles,
+                                                         RevisionStore revisionStore,
+                                                         ListingSnapshot previousSnapshot) {
+        var filesByPath = dropboxFiles.stream()
+                .collect(Collectors.toMap(DbxLongListFileInfo::toString, Function.identity(), (l, r) -> l));
+
+        var simpleMegaMoves = simpleMoves.stream()
+                .filter(move -> {
+                    //Every simple move that was conducted has both files
+                    var olderFile = move.getOlderFile().orElseThrow();
+                    var newerHash = move.getNewerFile().orElseThrow().getCurrentFileHash();
+
+                    //A newer file with the same content shows up as moved in the listing delta
+                    return !newerHash.equals(olderFile.getCurrentFileHash()) &&
+                            revisionStore.isTransferredAt(olderFile.getCurrentFileHash(), olderFile.toString());
+                })
+                .map(move -> new ListingDelta.Move(move.getOlderFile().orElseThrow().toString(),
+                        move.getNewerFile().orElseThrow().toString()));
+        var movedFiles = listingDelta.moved()
+                .stream()
+                .filter(move -> filesByPath.containsKey(move.to()))
+                .filter(move -> previousSnapshot.findRevision(move.from())
+                        .filter(revision -> revisionStore.isTransferredAt(revision, move.from()))
+                        .isPresent());
+
+        return Stream.concat(simpleMegaMoves, movedFiles).toList();
+    }
+
+    /**
+     * Files that only moved are up to date under their new path once they're moved, so their revisions
+     * go along with them. That includes a moved file with a new revision but the same content.
+     *
+     * @param movedPaths the paths files only moved to since the last run
+     * @return the Dropbox paths Mega Cloud now holds a copy under
+     */
+    private static Set<String> relocateMegaCopies(MegaSession megaCloudSession, RevisionStore revisionStore,
+                                                  MegaUploadManifest uploadManifest,
+                                                  List<ListingDelta.Move> megaMoves,
+                                                  List<DbxLongListFileInfo> dropboxFiles,
+                                                  ListingSnapshot previousSnapshot, Set<String> movedPaths) {
+        var relocator = new MegaRelocator(megaCloudSession, uploadManifest, previousSnapshot, dropboxFiles);
+        megaMoves.forEach(move -> relocator.relocate(move.from(), move.to()));
+        var relocatedPaths = relocator.flush();
+
+        dropboxFiles.stream()
+                .filter(file -> relocatedPaths.contains(file.toString()))
+                .filter(file -> movedPaths.contains(file.toString()) ||
+                        revisionStore.containsRevision(file.getCurrentFileHash()))
+                .forEach(revisionStore::recordTransfer);
+        return relocatedPaths;
+    }
+
+    /**
+     * A file that couldn't be moved in Mega Cloud was uploaded under its new path instead, so the copy under its
+     * old path goes. If the upload failed, the old copy is the only one left and stays until the next run.
+     */
+    private static void removeRelocatedMegaCopies(List<ListingDelta.Move> megaMoves, Set<String> relocatedPaths,
+                                                  List<String> erroneousFiles, BulkRemover bulkRemover) {
+        var erroneousFileSet = new HashSet<>(erroneousFiles);
+
+        megaMoves.stream()
+                .filter(move -> !relocatedPaths.contains(move.to()))
+                .filter(move -> !erroneousFileSet.contains(move.to()))
+                .peek(move -> LOG.info("Content Move: {} -> {}", move.from(), move.to()))
+                .map(move -> new IntermediateFile(move.from()).getMegaCloudPath())
+                .forEach(bulkRemover::removeMegaFile);
+    }
+
+    /**
+     * Files that failed to transfer are left out, so the next run sees them as added or changed again.
+     * A scoped run keeps the records outside of its scope from the previous snapshot.
+     */
+    private static void saveListingSnapshot(List<DbxLongListFileInfo> dropboxFiles, List<String> erroneousFiles,
+                                            ListingSnapshot previousSnapshot, ListingScope listingScope) {
+        var erroneousFileSet = new HashSet<>(erroneousFiles);
+        var transferredFiles = dropboxFiles.stream()
+                .filter(file -> !erroneousFileSet.contains(file.toString()))
+                .toList();
+
+        var snapshot = listingScope.isEverything() ?
+                ListingSnapshot.of(transferredFiles) :
+                ListingSnapshot.of(transferredFiles)
+                        .merge(previousSnapshot.filter(Predicate.not(listingScope::contains)));
+
+        try {
+            snapshot.write(new File(ListingSnapshot.DEFAULT_SNAPSHOT_FILE));
+        } catch (IOException e) {
+            LOG.warn("Listing Snapshot Write Error", e);
+        }
+    }
+
+    /**
+     * dbxcli is the default, {@code Dropbox-Transport:Http} goes over the Dropbox API with the token in
+     * {@value DROPBOX_TOKEN_VARIABLE} instead
+     */
+    private static DropboxTransport openDropboxTransport(Map<String, String> commandMap) {
+        if ("Http".equalsIgnoreCase(commandMap.get(DROPBOX_TRANSPORT_ARG))) {
+            var accessToken = System.getenv(DROPBOX_TOKEN_VARIABLE);
+
+            if (accessToken != null && !accessToken.isBlank()) {
+                LOG.info("Dropbox Transport: HTTP");
+                return DropboxTransport.overHttp(new DropboxHttpClient(accessToken.trim()));
+            }
+            LOG.warn("{} is not set. Falling back to dbxcli", DROPBOX_TOKEN_VARIABLE);
+        }
+        return DropboxTransport.overCli(new DropboxSession(false));
+    }
+
+    /**
+     * {@code Subtree:Physics,Math/Algebra} limits the run to those folders under the note base directories
+     */
+    private static ListingScope openListingScope(Map<String, String> commandMap) {
+        var subtrees = commandMap.get(SUBTREE_ARG);
+        if (subtrees == null) {
+            return ListingScope.everything();
+        }
+
+        var listingScope = ListingScope.of(Arrays.asList(subtrees.split(",")));
+        LOG.info("Listing Scope: {}", listingScope);
+        return listingScope;
     }
 
     private static String setFileDownloadLocation(Map<String, String> commandMap) {
         return commandMap.getOrDefault(CLOUD_DIRECTORY_ARG, "");
     }
 
-    private static Optional<CompletableFuture<Void>> refreshAnnotationSubdirectories(MegaSession megaCloudSession, List<DbxLongListFileInfo> dropboxFolders) {
-        var dayOfTheWeek = LocalDate.now().getDayOfWeek();
-        return dayOfTheWeek == DayOfWeek.SATURDAY ?
-                Optional.of(runAsync(() -> createAnnotationSubdirectories(
-                        megaCloudSession, dropboxFolders))) :
-                Optional.empty();
+    /**
+     * The threshold is given as a whole percentage, like {@code Similarity-Threshold:85},
+     * since the argument format doesn't allow decimal points. Near-duplicate matching leads to deletions
+     * on an estimate, so it's off unless a threshold is given.
+     */
+    private static double setSimilarityThreshold(Map<String, String> commandMap) {
+        var percentage = commandMap.get(SIMILARITY_THRESHOLD_ARG);
+
+        if (percentage == null) {
+            return PageContentIndex.NO_SIMILARITY_MATCHING;
+        } else if (percentage.matches("\\d{1,3}")) {
+            int value = Integer.parseInt(percentage);
+
+            if (value > 0 && value <= 100) {
+                return value / 100.0;
+            }
+        }
+
+        LOG.warn("'{}' is not a percentage from 1 to 100. Near-duplicate matching is off", percentage);
+        return PageContentIndex.NO_SIMILARITY_MATCHING;
     }
 
-    private static boolean doesRevisionFileExist() {
-        var f = new File(REVISION_FILE_NAME);
-        boolean isFound = f.exists() && !f.isDirectory();
-        LOG.debug("Revision File Exists: {}", isFound);
-        return isFound;
+    /**
+     * The archive keeps a copy of every new page of every notebook that goes through a run, so it's only kept
+     * when asked for with {@code Version-Archive:True}
+     */
+    private static Optional<PageVersionArchive> openVersionArchive(Map<String, String> commandMap) {
+        if (!"True".equalsIgnoreCase(commandMap.get(VERSION_ARCHIVE_ARG))) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(new PageVersionArchive(new File(PageVersionArchive.DEFAULT_ARCHIVE_DIRECTORY)));
+        } catch (IOException e) {
+            LOG.warn("Version archive unavailable. Proceeding without history", e);
+            return Optional.empty();
+        }
     }
 
-    private static void conductSimpleFileMovements(List<DbxLongListFileInfo> dropboxFilePaths,
-                                                   DropboxSession dropboxSession) {
-        var fileMovements = retrieveSimpleFileMovements(dropboxFilePaths);
+    /**
+     * The feed is on by default, since a run without it would leave its changed pages out for good.
+     * {@code Feature-Feed:False} turns it off for a run
+     */
+    private static Optional<PageFeatureFeed> openFeatureFeed(Map<String, String> commandMap) {
+        if ("False".equalsIgnoreCase(commandMap.get(FEATURE_FEED_ARG))) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(new PageFeatureFeed(new File(PageFeatureFeed.DEFAULT_FEED_FILE)));
+        } catch (IOException e) {
+            LOG.warn("Feature feed unavailable. Proceeding without it", e);
+            return Optional.empty();
+        }
+    }
+
+    private static void rebuildArchivedVersion(String versionId) {
+        try {
+            var versionArchive = new PageVersionArchive(new File(PageVersionArchive.DEFAULT_ARCHIVE_DIRECTORY));
+            var versionOpt = versionArchive.findVersion(versionId);
+
+            if (versionOpt.isEmpty()) {
+                LOG.warn("No archived version with ID {}", versionId);
+                return;
+            }
+
+            var dropboxPath = versionOpt.get().absolutePath();
+            var outputFile = new File(versionId + '-' + dropboxPath.substring(dropboxPath.lastIndexOf('/') + 1));
+            versionArchive.rebuildVersion(versionId, outputFile);
+        } catch (IOException e) {
+            LOG.error("Version archive unavailable", e);
+        }
+    }
+
+    /**
+     * Removes the empty folders a level at a time, the deepest first, so a folder only goes once the folders
+     * in it are gone. Neither transport removes a folder that still holds something.
+     */
+    private static void removeEmptyDirectories(DirectoryTrie directoryTrie,
+                                               BulkRemover bulkRemover) throws InterruptedException {
+        for (var level : findEmptyDirectories(directoryTrie)) {
+            level.forEach(bulkRemover::removeDropboxFolder);
+            bulkRemover.flush();
+        }
+    }
+
+    /**
+     * Runs every time, since only the folders Mega Cloud is missing get created
+     */
+    private static CompletableFuture<Void> refreshAnnotationSubdirectories(MegaSession megaCloudSession, List<DbxLongListFileInfo> dropboxFolders) {
+        return runAsync(() -> createAnnotationSubdirectories(megaCloudSession, dropboxFolders));
+    }
+
+    /**
+     * @return the moves whose older files were removed from Dropbox and from the list
+     */
+    private static List<FileMove> conductSimpleFileMovements(List<DbxLongListFileInfo> dropboxFilePaths,
+                                                                        DirectoryTrie directoryTrie,
+                                                                        BulkRemover bulkRemover) {
+        var fileMovements = retrieveSimpleFileMovements(directoryTrie);
         if (fileMovements.isEmpty()) {
             LOG.debug("No simple movements conducted");
-            return;
+            return List.of();
         }
 
-        fileMovements.stream()
+        var conductedMoves = fileMovements.stream()
                 .peek(fileMove -> LOG.info(String.valueOf(fileMove)))
+                .filter(fileMove -> fileMove.getOlderFile().isPresent())
+                .toList();
+        conductedMoves.stream()
                 .map(FileMove::getOlderFile)
                 .flatMap(IntermediateUtils::eliminateOptional)
                 .peek(dropboxFilePaths::remove)
+                .peek(directoryTrie::removeFile)
                 .map(DbxLongListFileInfo::toString)
-                .map(dropboxSession::remove)
-                .forEach(DropboxFunctionManager::removeDropboxResource);
+                .forEach(bulkRemover::removeDropboxFile);
+        return conductedMoves;
     }
 
-    private static void conductAdvancedFileMoves(PageContentIndex contentIndex, MegaSession megaSession,
-                                                 DropboxSession dropboxSession) {
+    private static void conductAdvancedFileMoves(PageContentIndex contentIndex, BulkRemover bulkRemover) {
         contentIndex.streamOlderDocVersions()
                 .map(IntermediateFile::new)
 //                .forEach(intermediateFile -> LOG.info("Results: {}", intermediateFile)); //For testing
-                .map(intermediateFile -> Duo.of(
-                        intermediateFile.getMegaCloudPath(),
-                        dropboxSession.remove(intermediateFile.getDropboxFilePath())
-                ))
-                .forEach(removalDuo -> {
-                    MegaFunctionManager.removeOldFile(megaSession, removalDuo.first());
-                    DropboxFunctionManager.removeDropboxResource(removalDuo.second());
-                });
+                .forEach(intermediateFile -> bulkRemover.removeFromBoth(
+                        intermediateFile.getDropboxFilePath(),
+                        intermediateFile.getMegaCloudPath()
+                ));
     }
 
-    private static void overwriteRevisionFile(List<DbxLongListFileInfo> fileInfoList) {
-        var sb = new StringBuilder();
-        fileInfoList.forEach(file -> sb.append(file.getCurrentFileHash())
-                .append(',')
-                .append(file)
-                .append('\n'));
-
-        try (var writer = new BufferedWriter(new FileWriter(REVISION_FILE_NAME))) {
-            writer.write(sb.toString());
-            LOG.info("Revision file overwritten");
+    private static void exportPageGraph(PageContentIndex contentIndex) {
+        try {
+            contentIndex.exportGraph(new File(PAGE_GRAPH_FILE_NAME));
         } catch (IOException e) {
-            LOG.warn("Overwrite File Error", e);
+            LOG.warn("Page Graph Export Error", e);
         }
     }
 
-    private static void finishRevisionFileChanges(CompletableFuture<Void> overwriteRevisionFileFuture,
-                                                  List<String> erroneousFiles) {
-        try {
-            overwriteRevisionFileFuture.get();
-        }  catch (ExecutionException | InterruptedException e) {
-            LOG.error("Revision File Overwrite Error: ", e);
-        }
-
+    /**
+     * Transfers were committed one by one as they happened, so all that's left is catching the store up on moves
+     * and removals. Files that failed are already out of it.
+     */
+    private static void finishRevisionChanges(RevisionStore revisionStore, List<DbxLongListFileInfo> dropboxFiles,
+                                              ListingScope listingScope, List<String> erroneousFiles) {
         if (!erroneousFiles.isEmpty()) {
             LOG.warn("{} Error File(s): {}", erroneousFiles.size(), erroneousFiles);
-            clearErrorsFromRevisionFile(erroneousFiles);
         }
-    }
 
-    private static void clearErrorsFromRevisionFile(List<String> erroneousFiles) {
-        String filteredFileContent;
-        var erroneousFileSet = new HashSet<>(erroneousFiles);
-        try (var reader = new BufferedReader(new FileReader(REVISION_FILE_NAME))) {
-            filteredFileContent = reader.lines()
-                    .map(line -> line.split(","))
-                    .filter(array -> !erroneousFileSet.contains(array[1]))
-                    .map(array -> String.format("%s,%s", array[0], array[1]))
-                    .collect(Collectors.joining("\n"));
-        } catch (IOException e) {
-            LOG.error("File Read error", e);
-            return;
-        }
+        revisionStore.retainListing(dropboxFiles, listingScope::contains);
+        LOG.info("Revisions updated");
+    }
 
-        if (!attemptFileDeletion(REVISION_FILE_NAME)) {
-            LOG.warn("Cannot rewrite Revision file");
-            return;
-        }
+    /**
+     * The revision list older runs left behind is taken into the log once
+     */
+    private static RevisionStore openRevisionStore() throws IOException {
+        var revisionStore = RevisionStore.open(new File(RevisionStore.DEFAULT_LOG_FILE));
+        var revisionFile = new File(REVISION_FILE_NAME);
 
-        try (var writer = new BufferedWriter(new FileWriter(REVISION_FILE_NAME))) {
-            writer.write(filteredFileContent);
-        } catch (IOException e) {
-            LOG.error("File Write error", e);
+        if (revisionStore.isEmpty() && revisionFile.isFile()) {
+            revisionStore.importRevisionList(revisionFile);
+            attemptFileDeletion(revisionFile);
         }
+        return revisionStore;
     }
 
     private static void finishAnnotationSubdirGeneration(CompletableFuture<Void> annotationFuture) {
@@ -256,7 +670,8 @@ public final class TransportDriver {
 
     private static Map<String, String> parseCommandLineArgs(String[] args) {
         Predicate<String> logBadArguments = arg -> {
-            if (arg.matches("[\\w\\-]+:[\\w\\-]+")) {
+            //Values can be folder paths, like the subtrees of a scoped run
+            if (arg.matches("[\\w\\-]+:[\\w\\- /+,]+")) {
                 return true;
             }
             LOG.warn("'{}' argument ignored", arg);
@@ -272,6 +687,11 @@ public final class TransportDriver {
                 ));
     }
 
+    private static void logCircuitBreakers() {
+        LOG.info("{}", DropboxFunctionManager.CIRCUIT_BREAKER);
+        LOG.info("{}", MegaFunctionManager.CIRCUIT_BREAKER);
+    }
+
     private static void logRuntime(long timeToRun) {
         Duration elapsedTime = Duration.ofNanos(timeToRun);
         long elapsedTimeInHours = elapsedTime.toHoursPart();
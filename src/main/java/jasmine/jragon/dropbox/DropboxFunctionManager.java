@@ -1,39 +1,94 @@
 package jasmine.jragon.dropbox;
 
+import jasmine.jragon.CircuitBreaker;
+import jasmine.jragon.RetryPolicy;
 import jasmine.jragon.dropbox.cli.command.DropboxSession;
 import jasmine.jragon.dropbox.cli.command.GetCommand;
 import jasmine.jragon.dropbox.cli.command.RemoveCommand;
 import jasmine.jragon.dropbox.cli.model.DropboxProcessResponse;
+import jasmine.jragon.dropbox.http.DropboxApiException;
+import jasmine.jragon.dropbox.http.DropboxHttpClient;
 import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import jasmine.jragon.dropbox.model.v2.DirectoryTrie;
+import jasmine.jragon.dropbox.model.v2.IntermediateFile;
+import jasmine.jragon.dropbox.model.v2.ListingScope;
 import jasmine.jragon.dropbox.model.v2.movement.simple.FileMove;
-import jasmine.jragon.stream.collector.restream.grouping.KeylessGroup;
 import lombok.NonNull;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Unmodifiable;
+import org.json.JSONException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static jasmine.jragon.LocalResourceManager.isRunningOnMac;
 
 public final class DropboxFunctionManager {
-    private static final double DROP_OFF_RATE = 0.5;
+    private static final double INITIAL_DROP_OFF = 1.5, DROP_OFF_RATE = 0.5;
     private static final Logger LOG = LoggerFactory.getLogger(DropboxFunctionManager.class);
 
     private static final String ROOT_DIR = "/Apps";
+    private static final String NOT_FOUND_ERROR = "not_found",
+            NOT_EMPTY_ERROR = "Directory not empty";
+    private static final int LISTING_CONCURRENCY = 4;
+    private static final List<String> NOTE_BASE_DIRECTORIES = Stream.of(IntermediateFile.class)
+            .map(Class::getDeclaredFields)
+            .flatMap(Arrays::stream)
+            .filter(FileMove::isPackageAccessStringConstant)
+            .peek(field -> field.setAccessible(true))
+            .map(FileMove::fetchValue)
+            .filter(Objects::nonNull)
+            .map(o -> (String)o)
+            .toList();
+    private static final String DBXCLI = "dbxcli",
+            LIST_COMMAND = "ls",
+            REMOVE_COMMAND = "rm",
+            RECURSIVE_FLAG = "-R",
+            LONG_LISTING_FLAG = "-l";
+    private static final long REMOVAL_SECONDS_PER_PATH = 10;
+    public static final CircuitBreaker CIRCUIT_BREAKER = new CircuitBreaker("Dropbox", 5, Duration.ofSeconds(30));
+    /*
+     * Nothing else can start without the listing, so it gets the most patience.
+     * A file that still fails to download or to be removed is picked up again by the next run.
+     */
+    private static final RetryPolicy LISTING_RETRY = new RetryPolicy("Listing", CIRCUIT_BREAKER, 5,
+            Duration.ofSeconds(2), Duration.ofSeconds(30), Duration.ofMinutes(5)),
+            DOWNLOAD_RETRY = new RetryPolicy("Download", CIRCUIT_BREAKER, 4,
+                    Duration.ofSeconds(1), Duration.ofSeconds(15), Duration.ofMinutes(2)),
+            REMOVAL_RETRY = new RetryPolicy("Removal", CIRCUIT_BREAKER, 3,
+                    Duration.ofSeconds(1), Duration.ofSeconds(10), Duration.ofMinutes(1));
 
     public static Optional<String> downloadFile(@NotNull GetCommand command, List<String> errorFileList) {
+        if (!CIRCUIT_BREAKER.tryAcquire()) {
+            LOG.debug("Dropbox circuit open. Skipping the download of {}", command.getFile());
+            errorFileList.add(command.getFile());
+            return Optional.empty();
+        }
+
         try {
-            var response = command.execute();
+            var response = DOWNLOAD_RETRY.retryWhile(command,
+                    result -> !result.isSuccessful() && !isMissing(result),
+                    attempt -> command.execute());
 
             if (response.isSuccessful()) {
                 logSuccessfulResponse(response.toString());
@@ -49,6 +104,34 @@ public final class DropboxFunctionManager {
         return Optional.empty();
     }
 
+    /**
+     * Same as the {@code dbxcli get}, the file lands in the destination directory under its own name
+     */
+    public static Optional<String> downloadFile(@NonNull DropboxHttpClient client, @NonNull String dropboxPath,
+                                                @NonNull String destinationDirectory, List<String> errorFileList) {
+        if (!CIRCUIT_BREAKER.tryAcquire()) {
+            LOG.debug("Dropbox circuit open. Skipping the download of {}", dropboxPath);
+            errorFileList.add(dropboxPath);
+            return Optional.empty();
+        }
+
+        var destination = new IntermediateFile(dropboxPath, destinationDirectory).createLocalFileObject().toPath();
+
+        try {
+            DOWNLOAD_RETRY.retryOn(dropboxPath, IOException.class, DropboxFunctionManager::isTransient,
+                    attempt -> client.download(dropboxPath, destination));
+            LOG.trace("Downloaded: {}", dropboxPath);
+            return Optional.of(dropboxPath);
+        } catch (IOException e) {
+            LOG.warn("Download Error at {}: {}", dropboxPath, e.getMessage());
+        } catch (InterruptedException e) {
+            LOG.error("Timeout Exception: ", e);
+        }
+
+        errorFileList.add(dropboxPath);
+        return Optional.empty();
+    }
+
     private static void logSuccessfulResponse(String rawResults) {
         var downloadSnippets = Arrays.stream(rawResults.split("\n"))
                 .map(s -> s.replace("Downloading ", ""))
@@ -62,108 +145,385 @@ public final class DropboxFunctionManager {
         );
     }
 
-    public static Optional<Map<Boolean, List<DbxLongListFileInfo>>> splitDropboxFoldersAndFiles(@NotNull DropboxSession session)
+    /**
+     * Lists every note base directory one level deep, then lists each folder found there recursively, with up to
+     * {@value LISTING_CONCURRENCY} dbxcli processes at a time. When dbxcli cuts a listing short, only that subtree
+     * is listed again, and the results are merged back into the same files/folders split the single recursive
+     * listing gave. A scoped run only lists its subtrees, each one recursively.
+     */
+    public static Optional<Map<Boolean, List<DbxLongListFileInfo>>> splitDropboxFoldersAndFiles(
+            @NotNull DropboxSession session, @NonNull ListingScope scope) throws InterruptedException {
+        return splitDropboxFoldersAndFiles((directory, recursive) -> listSubtree(session, directory, recursive), scope);
+    }
+
+    /**
+     * Same split over the Dropbox API, with up to {@value LISTING_CONCURRENCY} subtrees paging in at a time
+     */
+    public static Optional<Map<Boolean, List<DbxLongListFileInfo>>> splitDropboxFoldersAndFiles(
+            @NotNull DropboxHttpClient client, @NonNull ListingScope scope) throws InterruptedException {
+        return splitDropboxFoldersAndFiles((directory, recursive) -> listSubtree(client, directory, recursive), scope);
+    }
+
+    private static Optional<Map<Boolean, List<DbxLongListFileInfo>>> splitDropboxFoldersAndFiles(SubtreeLister lister,
+                                                                                                 ListingScope scope)
             throws InterruptedException {
-        DropboxProcessResponse<List<String>> listDirectoryResponse = null;
-        boolean retryCommand;
-        double dropOffMultiplier = 1.5;
+        var executor = Executors.newFixedThreadPool(LISTING_CONCURRENCY);
+
+        try {
+            if (!scope.isEverything()) {
+                var scopedListings = listSubtrees(executor, lister, scope.getDirectories(), true);
+                LOG.debug("Scoped listing of {}", scope);
+
+                return scopedListings.map(listing -> listing.stream()
+                        .collect(Collectors.partitioningBy(DbxLongListFileInfo::isFile)));
+            }
+
+            var baseListings = listSubtrees(executor, lister, NOTE_BASE_DIRECTORIES, false);
+            if (baseListings.isEmpty()) {
+                return Optional.empty();
+            }
+
+            var topLevelFolders = baseListings.get()
+                    .stream()
+                    .filter(DbxLongListFileInfo::isFolder)
+                    .map(DbxLongListFileInfo::toString)
+                    .toList();
+            var subtreeListings = listSubtrees(executor, lister, topLevelFolders, true);
+            if (subtreeListings.isEmpty()) {
+                return Optional.empty();
+            }
+
+            LOG.debug("{} base director(ies) and {} top level folder(s) listed",
+                    NOTE_BASE_DIRECTORIES.size(), topLevelFolders.size());
 
-        do {
-            var listDirectoryCommand = isRunningOnMac() ?
-                    session.list(true, true, ROOT_DIR) :
-                    session.list(true, true);
+            var fileFolderSplit = Stream.concat(baseListings.get().stream(), subtreeListings.get().stream())
+                    .collect(Collectors.partitioningBy(DbxLongListFileInfo::isFile));
+            return Optional.of(fileFolderSplit);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
+    /**
+     * @return every entry under the directories in the order of the directories, or nothing if any of them failed
+     */
+    private static Optional<List<DbxLongListFileInfo>> listSubtrees(ExecutorService executor, SubtreeLister lister,
+                                                                   List<String> directories, boolean recursive)
+            throws InterruptedException {
+        var listingTasks = directories.stream()
+                .map(directory -> (Callable<Optional<List<DbxLongListFileInfo>>>) () ->
+                        lister.list(directory, recursive))
+                .toList();
+
+        List<DbxLongListFileInfo> output = new ArrayList<>();
+        for (var future : executor.invokeAll(listingTasks)) {
             try {
-                listDirectoryResponse = listDirectoryCommand.execute(dropOffMultiplier);
-                retryCommand = false;
-            } catch (IllegalArgumentException e) {
-                LOG.warn("Probably premature return. Retrying command execution");
-                retryCommand = true;
-                dropOffMultiplier += DROP_OFF_RATE;
+                var subtreeOpt = future.get();
+                if (subtreeOpt.isEmpty()) {
+                    return Optional.empty();
+                }
+                output.addAll(subtreeOpt.get());
+            } catch (ExecutionException e) {
+                LOG.error("Listing Error. Aborting Operation: ", e.getCause());
+                return Optional.empty();
+            }
+        }
+        return Optional.of(output);
+    }
+
+    private static Optional<List<DbxLongListFileInfo>> listSubtree(DropboxSession session, String directory,
+                                                                  boolean recursive) throws InterruptedException {
+        DropboxProcessResponse<List<String>> listDirectoryResponse = LISTING_RETRY.retryWhile(directory,
+                response -> response == null || response.isError() && !isMissing(response),
+                attempt -> {
+                    try {
+                        //Each attempt gives dbxcli longer before its output counts as finished
+                        return session.list(recursive, true, directory)
+                                .execute(INITIAL_DROP_OFF + DROP_OFF_RATE * (attempt - 1));
+                    } catch (IllegalArgumentException e) {
+                        LOG.warn("Probably premature return for {}", directory);
+                        return null;
+                    }
+                });
+
+        if (listDirectoryResponse == null) {
+            LOG.error("Listing of {} kept returning early. Aborting Operation", directory);
+            return Optional.empty();
+        } else if (listDirectoryResponse.isError()) {
+            //A base directory that was never created on this account is just an empty subtree
+            if (isMissing(listDirectoryResponse)) {
+                LOG.debug("{} does not exist. Skipping", directory);
+                return Optional.of(List.of());
             }
-        } while (retryCommand);
 
-        if (listDirectoryResponse.isError()) {
             LOG.error("Error Code: {}\nErrorMessage: {}\nAborting Operation",
                     listDirectoryResponse.statusCode(),
                     listDirectoryResponse.errorMessage());
             return Optional.empty();
         }
 
-        var fileFolderSplit = listDirectoryResponse.successObject()
+        var subtree = listDirectoryResponse.successObject()
                 .stream()
-		        .skip(1)
+                .skip(1)
                 .map(String::trim)
+                .filter(line -> !line.isEmpty())
                 .map(DbxLongListFileInfo::new)
-                .collect(Collectors.partitioningBy(DbxLongListFileInfo::isFile));
-        return Optional.of(fileFolderSplit);
+                .toList();
+        return Optional.of(subtree);
     }
 
-    public static void reduceRetrievalList(@NotNull List<DbxLongListFileInfo> dropboxFilePaths,
-                                           String revisionFile) {
-        try (var reader = new BufferedReader(new FileReader(revisionFile))) {
-            final var mostRecentFileRevisions = reader.lines()
-                    .filter(line -> !line.isEmpty())
-                    .map(line -> line.split(",")[0])
-                    .collect(Collectors.toUnmodifiableSet());
-
-//            var fileIterator = dropboxFilePaths.iterator();
-//
-//            while (fileIterator.hasNext()) {
-//                String file = fileIterator.next();
-//                var revisionCommand = session.listRevisions(file);
-//                try {
-//                    var response = revisionCommand.execute();
-//
-//                    response.ifSuccessful(fileRevisionHistory -> {
-//                        if (isFileUpToDate(fileRevisionHistory, mostRecentFileRevisions)) {
-//                            fileIterator.remove();
-//                        }
-//                    });
-//                } catch (InterruptedException e) {
-//                    LOG.warn("Interruption Error at {}", file);
-//                }
-//            }
+    private static Optional<List<DbxLongListFileInfo>> listSubtree(DropboxHttpClient client, String directory,
+                                                                  boolean recursive) throws InterruptedException {
+        try {
+            var subtree = LISTING_RETRY.retryOn(directory, IOException.class, DropboxFunctionManager::isTransient,
+                    attempt -> {
+                        List<DbxLongListFileInfo> entries = new ArrayList<>();
+                        client.listFolder(directory, recursive, entries::add);
+                        return entries;
+                    });
+            return Optional.of(subtree);
+        } catch (DropboxApiException e) {
+            if (e.isNotFound()) {
+                LOG.debug("{} does not exist. Skipping", directory);
+                return Optional.of(List.of());
+            }
 
-            var permittedPaths = dropboxFilePaths.parallelStream()
-                    .filter(file -> !mostRecentFileRevisions.contains(file.getCurrentFileHash()))
-                    .toList();
+            LOG.error("Error Code: {}\nErrorMessage: {}\nAborting Operation", e.getStatusCode(), e.getErrorSummary());
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            LOG.error("Listing Error at {}. Aborting Operation: {}", directory, e.getMessage());
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Streaming version of {@link #splitDropboxFoldersAndFiles(DropboxSession, ListingScope)}. Every line is
+     * parsed as soon as dbxcli writes it, and every file that isn't already in Mega Cloud under its path is handed to
+     * the sink right away, so transfers can start while the rest of the archive is still being listed.
+     * A scoped run streams one subtree after the other.
+     * <p>
+     * Only the parsed listing itself is kept, since move detection and empty folder pruning need all of it.
+     * If the listing can't be read to the end, nothing is returned, so those stages never work from
+     * a partial listing. Files that already went to the sink are still transferred.
+     */
+    public static Optional<Map<Boolean, List<DbxLongListFileInfo>>> streamDropboxFoldersAndFiles(
+            @NonNull ListingScope scope,
+            @NonNull Predicate<DbxLongListFileInfo> isAlreadyTransferred,
+            @NonNull Consumer<DbxLongListFileInfo> changedFileSink)
+            throws InterruptedException {
+        var listing = new StreamedListing(isAlreadyTransferred, changedFileSink);
+        var command = List.of(DBXCLI, LIST_COMMAND, RECURSIVE_FLAG, LONG_LISTING_FLAG);
 
-            dropboxFilePaths.clear();
-            dropboxFilePaths.addAll(permittedPaths);
+        if (scope.isEverything()) {
+            var wholeListingCommand = new ArrayList<>(command);
+            if (isRunningOnMac()) {
+                wholeListingCommand.add(ROOT_DIR);
+            }
+            return streamListing(wholeListingCommand, false, listing) ?
+                    Optional.of(listing.toSplit()) :
+                    Optional.empty();
+        }
+
+        for (var directory : scope.getDirectories()) {
+            var subtreeCommand = new ArrayList<>(command);
+            subtreeCommand.add(directory);
+            if (!streamListing(subtreeCommand, true, listing)) {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(listing.toSplit());
+    }
+
+    /**
+     * A listing that breaks off, or a dbxcli process that fails, is streamed again from the start. Only the entries
+     * of the last attempt are kept, and files that already went to the sink don't go to it again. A line that can't
+     * be read would come out the same on every attempt, so it ends the listing right away.
+     *
+     * @param isMissingSkipped whether a directory that doesn't exist counts as empty instead of as an error
+     * @return whether the listing was read to the end
+     */
+    private static boolean streamListing(List<String> command, boolean isMissingSkipped, StreamedListing listing)
+            throws InterruptedException {
+        listing.mark();
+        try {
+            LISTING_RETRY.retryOn(String.join(" ", command), IOException.class, failure -> true, attempt -> {
+                listing.resetToMark();
+                readListingStream(command, isMissingSkipped, listing);
+                return null;
+            });
+            return true;
         } catch (IOException e) {
-            LOG.warn("IO Exception: ", e);
+            LOG.error("Listing stream broke off after {} line(s). Aborting Operation: {}",
+                    listing.size(), e.getMessage());
+        } catch (IllegalArgumentException e) {
+            LOG.error("Unreadable listing line after {} line(s). Aborting Operation: {}",
+                    listing.size(), e.getMessage());
         }
+        return false;
     }
 
-    public static List<FileMove> retrieveSimpleFileMovements(List<DbxLongListFileInfo> files) {
-        return files.stream()
-                //Extract the filename and use it as the group name
-                .collect(KeylessGroup.provide(DbxLongListFileInfo::getFileName))
-                //Any group that is only one file means it's got a unique name and has not been moved
-                .filter(fileInfoList -> fileInfoList.size() > 1)
-                .flatMap(DropboxFunctionManager::permuteListToFileMoves)
-                .toList();
+    /**
+     * @throws IOException              if dbxcli can't be started, its output breaks off or it fails
+     * @throws IllegalArgumentException if a line isn't a listing entry
+     */
+    private static void readListingStream(List<String> command, boolean isMissingSkipped,
+                                          StreamedListing listing) throws IOException, InterruptedException {
+        LOG.info("Streaming Command Executed: {}", String.join(" ", command));
+
+        var process = new ProcessBuilder(command).start();
+        //Drained on the side, so a chatty error stream can't block the listing
+        var errorMessage = CompletableFuture.supplyAsync(() -> readErrorStream(process));
+
+        try (var reader = process.inputReader()) {
+            //Column header
+            reader.readLine();
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    listing.accept(new DbxLongListFileInfo(line));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            process.destroy();
+            throw e;
+        }
+
+        int statusCode = process.waitFor();
+        if (statusCode != 0) {
+            var message = errorMessage.join();
+            if (isMissingSkipped && message.contains(NOT_FOUND_ERROR)) {
+                LOG.debug("{} does not exist. Skipping", command.get(command.size() - 1));
+                return;
+            }
+            throw new IOException("Error Code: " + statusCode + " - " + message);
+        }
     }
 
-    private static Stream<FileMove> permuteListToFileMoves(List<DbxLongListFileInfo> files) {
-	    Stream.Builder<FileMove> output = Stream.builder();
-        for (var left : files) {
-            for (var right : files) {
-                if (left != right) {
-                    output.accept(new FileMove(left, right));
+    /**
+     * Streaming version of {@link #splitDropboxFoldersAndFiles(DropboxHttpClient, ListingScope)}. Each base
+     * directory, or each subtree of a scoped run, is listed recursively, and the files of every page go to the sink
+     * as soon as the page comes in.
+     */
+    public static Optional<Map<Boolean, List<DbxLongListFileInfo>>> streamDropboxFoldersAndFiles(
+            @NonNull DropboxHttpClient client,
+            @NonNull ListingScope scope,
+            @NonNull Predicate<DbxLongListFileInfo> isAlreadyTransferred,
+            @NonNull Consumer<DbxLongListFileInfo> changedFileSink)
+            throws InterruptedException {
+        var listing = new StreamedListing(isAlreadyTransferred, changedFileSink);
+        var directories = scope.isEverything() ?
+                NOTE_BASE_DIRECTORIES :
+                scope.getDirectories();
+
+        for (var directory : directories) {
+            listing.mark();
+            try {
+                LISTING_RETRY.retryOn(directory, IOException.class, DropboxFunctionManager::isTransient, attempt -> {
+                    listing.resetToMark();
+                    client.listFolder(directory, true, listing);
+                    return null;
+                });
+            } catch (DropboxApiException e) {
+                if (!e.isNotFound()) {
+                    LOG.error("Error Code: {}\nErrorMessage: {}\nAborting Operation",
+                            e.getStatusCode(), e.getErrorSummary());
+                    return Optional.empty();
                 }
+                LOG.debug("{} does not exist. Skipping", directory);
+            } catch (IOException | JSONException | IllegalArgumentException e) {
+                LOG.error("Listing stream broke off after {} entr(ies). Aborting Operation: {}",
+                        listing.size(), e.getMessage());
+                return Optional.empty();
             }
         }
-        return output.build()
-                .filter(FileMove::isValidMove)
-                .distinct();
+        return Optional.of(listing.toSplit());
+    }
+
+    private static boolean isMissing(DropboxProcessResponse<?> response) {
+        return String.valueOf(response.errorMessage()).contains(NOT_FOUND_ERROR);
+    }
+
+    /**
+     * dbxcli refuses to remove a folder with anything in it without force, which no retry changes
+     */
+    private static boolean isNotEmpty(DropboxProcessResponse<?> response) {
+        return String.valueOf(response.errorMessage()).contains(NOT_EMPTY_ERROR);
+    }
+
+    /**
+     * A broken connection or a timeout is worth another try, an error Dropbox answered with only when it says so
+     */
+    private static boolean isTransient(IOException e) {
+        return !(e instanceof DropboxApiException apiException) || apiException.isTransient();
+    }
+
+    private static String readErrorStream(Process process) {
+        try (var reader = process.errorReader()) {
+            return reader.lines()
+                    .collect(Collectors.joining("\n"));
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    public static void reduceRetrievalList(@NotNull List<DbxLongListFileInfo> dropboxFilePaths,
+                                           @NonNull Predicate<String> isKnownRevision) {
+//        var fileIterator = dropboxFilePaths.iterator();
+//
+//        while (fileIterator.hasNext()) {
+//            String file = fileIterator.next();
+//            var revisionCommand = session.listRevisions(file);
+//            try {
+//                var response = revisionCommand.execute();
+//
+//                response.ifSuccessful(fileRevisionHistory -> {
+//                    if (isFileUpToDate(fileRevisionHistory, mostRecentFileRevisions)) {
+//                        fileIterator.remove();
+//                    }
+//                });
+//            } catch (InterruptedException e) {
+//                LOG.warn("Interruption Error at {}", file);
+//            }
+//        }
+
+        var permittedPaths = dropboxFilePaths.parallelStream()
+                .filter(file -> !isKnownRevision.test(file.getCurrentFileHash()))
+                .toList();
+
+        dropboxFilePaths.clear();
+        dropboxFilePaths.addAll(permittedPaths);
+    }
+
+    /**
+     * Only same-named files the trie lines up as a simple move are checked, instead of every pair of files
+     * that share a name
+     */
+    public static List<FileMove> retrieveSimpleFileMovements(@NonNull DirectoryTrie directoryTrie) {
+        Set<FileMove> fileMoves = new LinkedHashSet<>();
+        directoryTrie.forEachMoveCandidate((left, right) -> {
+            var fileMove = new FileMove(left, right);
+            if (fileMove.isValidMove()) {
+                fileMoves.add(fileMove);
+            }
+        });
+        return List.copyOf(fileMoves);
     }
 
     public static void removeDropboxResource(@NotNull RemoveCommand removeCommand) {
+        if (!CIRCUIT_BREAKER.tryAcquire()) {
+            LOG.warn("Dropbox circuit open. Not running: {}", removeCommand);
+            return;
+        }
+
         try {
-            var output = removeCommand.execute();
-            if (output.isError()) {
+            var output = REMOVAL_RETRY.retryWhile(removeCommand,
+                    response -> response.isError() && !isMissing(response) && !isNotEmpty(response),
+                    attempt -> removeCommand.execute());
+            //Gone already, whether an earlier attempt or a batch that failed partway through removed it
+            if (output.isError() && isMissing(output)) {
+                LOG.debug("{} already removed", removeCommand);
+            } else if (output.isError()) {
                 LOG.warn(output.errorMessage());
             }
         } catch (InterruptedException e) {
@@ -173,31 +533,189 @@ public final class DropboxFunctionManager {
         }
     }
 
-    public static void wipeEmptyDirectories(@NonNull @Unmodifiable List<String> files,
-                                            @NonNull @Unmodifiable List<String> folders,
-                                            @NonNull DropboxSession session) {
-        var fileGroups = files.stream()
-                .map(DropboxFunctionManager::getPathToResource)
-                .collect(Collectors.toUnmodifiableSet());
+    /**
+     * Removes every path with one {@code dbxcli rm}. When a batch fails, it's split in half until the paths at
+     * fault are down to their own command. dbxcli may have removed some of the paths before it failed, so a path
+     * that's no longer there by the time its own command runs counts as removed.
+     * A failed batch doesn't count against the circuit, since a single missing path fails it too.
+     */
+    public static void removeDropboxResources(@NonNull List<String> paths, @NonNull DropboxSession session)
+            throws InterruptedException {
+        if (paths.isEmpty()) {
+            return;
+        } else if (CIRCUIT_BREAKER.isOpen()) {
+            LOG.warn("Dropbox circuit open. {} path(s) not removed", paths.size());
+        } else if (paths.size() == 1) {
+            removeDropboxResource(session.remove(paths.get(0)));
+        } else if (!runBulkRemoval(paths)) {
+            int half = paths.size() / 2;
+            removeDropboxResources(paths.subList(0, half), session);
+            removeDropboxResources(paths.subList(half, paths.size()), session);
+        }
+    }
+
+    private static boolean runBulkRemoval(List<String> paths) throws InterruptedException {
+        var command = new ArrayList<>(List.of(DBXCLI, REMOVE_COMMAND));
+        command.addAll(paths);
+        LOG.info("Bulk Command Executed: {} {} - {} path(s)", DBXCLI, REMOVE_COMMAND, paths.size());
+
+        Process process;
+        try {
+            process = new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+        } catch (IOException e) {
+            LOG.warn("Bulk Removal Error: {}", e.getMessage());
+            return false;
+        }
+
+        var errorMessage = CompletableFuture.supplyAsync(() -> readErrorStream(process));
+        if (!process.waitFor(REMOVAL_SECONDS_PER_PATH * paths.size(), TimeUnit.SECONDS)) {
+            LOG.warn("Bulk removal of {} path(s) took too long", paths.size());
+            process.destroy();
+            return false;
+        } else if (process.exitValue() != 0) {
+            LOG.debug("Bulk removal of {} path(s) failed. Splitting the batch: {}", paths.size(), errorMessage.join());
+            return false;
+        }
+
+        CIRCUIT_BREAKER.recordSuccess();
+        return true;
+    }
+
+    /**
+     * Removes every path with one batch job. The API removes a folder with everything in it, so there's no
+     * force to ask for, and a path that can't be removed doesn't hold up the rest of the batch.
+     */
+    public static void removeDropboxResources(@NonNull List<String> paths, @NonNull DropboxHttpClient client)
+            throws InterruptedException {
+        if (paths.isEmpty()) {
+            return;
+        } else if (!CIRCUIT_BREAKER.tryAcquire()) {
+            LOG.warn("Dropbox circuit open. {} path(s) not removed", paths.size());
+            return;
+        }
+
+        try {
+            REMOVAL_RETRY.retryOn(paths.size() + " path(s)", IOException.class, DropboxFunctionManager::isTransient,
+                    attempt -> {
+                        var failures = client.deleteBatch(paths);
+                        //A batch that broke off may have removed some of the paths already
+                        if (attempt > 1) {
+                            failures.values().removeIf(reason -> reason.contains(NOT_FOUND_ERROR));
+                        }
+                        return failures;
+                    })
+                    .forEach((path, reason) -> LOG.warn("{} not removed: {}", path, reason));
+        } catch (IOException | JSONException e) {
+            LOG.warn("Bulk Removal Error: {}", e.getMessage());
+        }
+    }
 
-        var folderGroups = folders.stream()
-                .map(DropboxFunctionManager::getPathToResource)
-                .collect(Collectors.toUnmodifiableSet());
+    /**
+     * Removes the folders over the API, but only the ones Dropbox still shows with nothing in them. A folder
+     * delete over the API takes everything in it along and can't be told to stop at a non-empty folder, so each
+     * folder is listed right before the batch instead.
+     */
+    public static void removeEmptyDropboxFolders(@NonNull List<String> paths, @NonNull DropboxHttpClient client)
+            throws InterruptedException {
+        List<String> emptyFolders = new ArrayList<>(paths.size());
+        for (var path : paths) {
+            try {
+                if (client.isEmptyFolder(path)) {
+                    emptyFolders.add(path);
+                } else {
+                    LOG.debug("{} is no longer empty. Keeping it", path);
+                }
+            } catch (DropboxApiException e) {
+                if (!e.isNotFound()) {
+                    LOG.warn("{} not removed: {}", path, e.getErrorSummary());
+                }
+            } catch (IOException | JSONException e) {
+                LOG.warn("{} not removed: {}", path, e.getMessage());
+            }
+        }
+        removeDropboxResources(emptyFolders, client);
+    }
 
-        var reportedEmptyFolders = folders.stream()
-                .filter(f -> !fileGroups.contains(f) && !folderGroups.contains(f))
+    /**
+     * @return every folder the listing shows with no file left under it, which takes care of folders that only
+     * became empty once their files were moved or removed, by depth with the deepest level first. Removing one
+     * level at a time leaves each folder empty by the time its turn comes, so nothing ever needs a recursive
+     * removal.
+     */
+    public static @NotNull List<List<String>> findEmptyDirectories(@NonNull DirectoryTrie directoryTrie) {
+        var emptyFolders = directoryTrie.findEmptyFoldersByDepth()
+                .stream()
+                .map(level -> level.stream()
+                        .map(DbxLongListFileInfo::toString)
+                        .toList())
                 .toList();
 
-        if (!reportedEmptyFolders.isEmpty()) {
-            LOG.trace("Reported empty folders: {}", reportedEmptyFolders);
+        if (!emptyFolders.isEmpty()) {
+            LOG.trace("Reported empty folders: {}", emptyFolders);
+        }
+        return emptyFolders;
+    }
+
+    /**
+     * Collects a listing as it streams in and hands every file that isn't already transferred to the sink
+     */
+    private static final class StreamedListing implements Consumer<DbxLongListFileInfo> {
+        private final Predicate<DbxLongListFileInfo> isAlreadyTransferred;
+        private final Consumer<DbxLongListFileInfo> changedFileSink;
+        private final List<DbxLongListFileInfo> files, folders;
+        private final Set<String> streamedFiles;
+        private int fileMark, folderMark;
+
+        private StreamedListing(Predicate<DbxLongListFileInfo> isAlreadyTransferred,
+                                Consumer<DbxLongListFileInfo> changedFileSink) {
+            this.isAlreadyTransferred = isAlreadyTransferred;
+            this.changedFileSink = changedFileSink;
+            files = new ArrayList<>();
+            folders = new ArrayList<>();
+            streamedFiles = new HashSet<>();
+        }
+
+        @Override
+        public void accept(DbxLongListFileInfo fileInfo) {
+            if (fileInfo.isFolder()) {
+                folders.add(fileInfo);
+                return;
+            }
+
+            files.add(fileInfo);
+            if (!isAlreadyTransferred.test(fileInfo) && streamedFiles.add(fileInfo.toString())) {
+                changedFileSink.accept(fileInfo);
+            }
+        }
+
+        private void mark() {
+            fileMark = files.size();
+            folderMark = folders.size();
+        }
+
+        /**
+         * Drops everything listed since the mark, so a listing can be read again from there
+         */
+        private void resetToMark() {
+            files.subList(fileMark, files.size()).clear();
+            folders.subList(folderMark, folders.size()).clear();
+        }
+
+        private int size() {
+            return files.size() + folders.size();
+        }
 
-            reportedEmptyFolders.stream()
-                    .map(session::remove)
-                    .forEach(DropboxFunctionManager::removeDropboxResource);
+        private Map<Boolean, List<DbxLongListFileInfo>> toSplit() {
+            LOG.debug("{} file(s) and {} folder(s) listed - {} changed file(s) streamed",
+                    files.size(), folders.size(), streamedFiles.size());
+            return Map.of(true, files, false, folders);
         }
     }
 
-    private static String getPathToResource(String resource) {
-        return resource.substring(0, Math.max(resource.lastIndexOf('/'), 0));
+    @FunctionalInterface
+    private interface SubtreeLister {
+        Optional<List<DbxLongListFileInfo>> list(String directory, boolean recursive) throws InterruptedException;
     }
 }
@@ -0,0 +1,135 @@
+package jasmine.jragon.dropbox;
+
+import jasmine.jragon.dropbox.cli.command.DropboxSession;
+import jasmine.jragon.dropbox.http.DropboxHttpClient;
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import jasmine.jragon.dropbox.model.v2.ListingScope;
+import lombok.NonNull;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The {@code DropboxTransport} is every Dropbox operation a run needs: listing the note directories, downloading
+ * notes and removing paths. It either runs a {@code dbxcli} process per operation or calls the Dropbox API over
+ * one pooled {@link DropboxHttpClient}, and the rest of the run can't tell the two apart.
+ */
+public sealed interface DropboxTransport permits DropboxTransport.CliTransport, DropboxTransport.HttpTransport {
+    @Contract("_ -> new")
+    static @NotNull DropboxTransport overCli(@NonNull DropboxSession session) {
+        return new CliTransport(session);
+    }
+
+    @Contract("_ -> new")
+    static @NotNull DropboxTransport overHttp(@NonNull DropboxHttpClient client) {
+        return new HttpTransport(client);
+    }
+
+    /**
+     * @return the files under {@code true} and the folders under {@code false} within the scope, or nothing if any
+     * part of the listing failed
+     */
+    Optional<Map<Boolean, List<DbxLongListFileInfo>>> splitFoldersAndFiles(@NonNull ListingScope scope)
+            throws InterruptedException;
+
+    /**
+     * Same as {@link #splitFoldersAndFiles(ListingScope)}, except every file that isn't already transferred goes
+     * to the sink while the rest of the listing is still coming in
+     */
+    Optional<Map<Boolean, List<DbxLongListFileInfo>>> streamFoldersAndFiles(
+            @NonNull ListingScope scope,
+            @NonNull Predicate<DbxLongListFileInfo> isAlreadyTransferred,
+            @NonNull Consumer<DbxLongListFileInfo> changedFileSink) throws InterruptedException;
+
+    /**
+     * Downloads the file into the destination directory under its own name, or into the working directory when
+     * the destination is blank
+     *
+     * @return the Dropbox path of the downloaded file, or nothing once the path is added to the error list
+     */
+    Optional<String> downloadFile(@NonNull String dropboxPath, @NonNull String destinationDirectory,
+                                  @NonNull List<String> errorFileList);
+
+    void removeResources(@NonNull List<String> paths) throws InterruptedException;
+
+    /**
+     * Removes the folders, except the ones that aren't empty anymore
+     */
+    void removeEmptyFolders(@NonNull List<String> paths) throws InterruptedException;
+
+    record CliTransport(@NonNull DropboxSession session) implements DropboxTransport {
+        @Override
+        public Optional<Map<Boolean, List<DbxLongListFileInfo>>> splitFoldersAndFiles(@NonNull ListingScope scope)
+                throws InterruptedException {
+            return DropboxFunctionManager.splitDropboxFoldersAndFiles(session, scope);
+        }
+
+        @Override
+        public Optional<Map<Boolean, List<DbxLongListFileInfo>>> streamFoldersAndFiles(
+                @NonNull ListingScope scope,
+                @NonNull Predicate<DbxLongListFileInfo> isAlreadyTransferred,
+                @NonNull Consumer<DbxLongListFileInfo> changedFileSink) throws InterruptedException {
+            return DropboxFunctionManager.streamDropboxFoldersAndFiles(scope, isAlreadyTransferred, changedFileSink);
+        }
+
+        @Override
+        public Optional<String> downloadFile(@NonNull String dropboxPath, @NonNull String destinationDirectory,
+                                             @NonNull List<String> errorFileList) {
+            var getCommand = destinationDirectory.isBlank() ?
+                    session.getFile(dropboxPath) :
+                    session.getFile(dropboxPath, destinationDirectory);
+            return DropboxFunctionManager.downloadFile(getCommand, errorFileList);
+        }
+
+        @Override
+        public void removeResources(@NonNull List<String> paths) throws InterruptedException {
+            DropboxFunctionManager.removeDropboxResources(paths, session);
+        }
+
+        /**
+         * Without force, dbxcli refuses to remove a folder that still has anything in it
+         */
+        @Override
+        public void removeEmptyFolders(@NonNull List<String> paths) throws InterruptedException {
+            DropboxFunctionManager.removeDropboxResources(paths, session);
+        }
+    }
+
+    record HttpTransport(@NonNull DropboxHttpClient client) implements DropboxTransport {
+        @Override
+        public Optional<Map<Boolean, List<DbxLongListFileInfo>>> splitFoldersAndFiles(@NonNull ListingScope scope)
+                throws InterruptedException {
+            return DropboxFunctionManager.splitDropboxFoldersAndFiles(client, scope);
+        }
+
+        @Override
+        public Optional<Map<Boolean, List<DbxLongListFileInfo>>> streamFoldersAndFiles(
+                @NonNull ListingScope scope,
+                @NonNull Predicate<DbxLongListFileInfo> isAlreadyTransferred,
+                @NonNull Consumer<DbxLongListFileInfo> changedFileSink) throws InterruptedException {
+            return DropboxFunctionManager.streamDropboxFoldersAndFiles(client, scope, isAlreadyTransferred,
+                    changedFileSink);
+        }
+
+        @Override
+        public Optional<String> downloadFile(@NonNull String dropboxPath, @NonNull String destinationDirectory,
+                                             @NonNull List<String> errorFileList) {
+            return DropboxFunctionManager.downloadFile(client, dropboxPath, destinationDirectory, errorFileList);
+        }
+
+        @Override
+        public void removeResources(@NonNull List<String> paths) throws InterruptedException {
+            DropboxFunctionManager.removeDropboxResources(paths, client);
+        }
+
+        @Override
+        public void removeEmptyFolders(@NonNull List<String> paths) throws InterruptedException {
+            DropboxFunctionManager.removeEmptyDropboxFolders(paths, client);
+        }
+    }
+}
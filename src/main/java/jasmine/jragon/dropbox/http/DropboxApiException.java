@@ -0,0 +1,42 @@
+package jasmine.jragon.dropbox.http;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.Serial;
+
+/**
+ * An error the Dropbox API answered with, as opposed to the connection itself breaking
+ */
+@Getter
+public final class DropboxApiException extends IOException {
+    @Serial
+    private static final long serialVersionUID = 1L;
+    private static final String NOT_FOUND_ERROR = "not_found";
+    private static final int TOO_MANY_REQUESTS = 429, SERVER_ERROR = 500;
+
+    private final int statusCode;
+    /**
+     * Dropbox's own summary of the error, like {@code path/not_found/..}
+     */
+    @NonNull
+    private final String errorSummary;
+
+    DropboxApiException(int statusCode, @NonNull String errorSummary) {
+        super(statusCode + " - " + errorSummary);
+        this.statusCode = statusCode;
+        this.errorSummary = errorSummary;
+    }
+
+    public boolean isNotFound() {
+        return errorSummary.contains(NOT_FOUND_ERROR);
+    }
+
+    /**
+     * Rate limits and server errors can go away on their own, anything else comes back the same every time
+     */
+    public boolean isTransient() {
+        return statusCode == TOO_MANY_REQUESTS || statusCode >= SERVER_ERROR;
+    }
+}
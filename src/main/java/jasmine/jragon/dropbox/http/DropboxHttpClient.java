@@ -0,0 +1,249 @@
+package jasmine.jragon.dropbox.http;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import lombok.NonNull;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The {@code DropboxHttpClient} talks to the Dropbox API directly instead of through a {@code dbxcli} process per
+ * operation. Every request goes through the same {@link HttpClient}, which keeps its connections open, so the
+ * TLS handshake is paid once per host instead of once per file. Over HTTP/2, every request to a host shares a
+ * single connection.
+ * <p>
+ * The endpoints can be handed in, so a local server can stand in for Dropbox.
+ */
+public final class DropboxHttpClient {
+    private static final URI API_ENDPOINT = URI.create("https://api.dropboxapi.com/2/"),
+            CONTENT_ENDPOINT = URI.create("https://content.dropboxapi.com/2/");
+    private static final String LIST_FOLDER_ROUTE = "files/list_folder",
+            LIST_FOLDER_CONTINUE_ROUTE = "files/list_folder/continue",
+            DOWNLOAD_ROUTE = "files/download",
+            DELETE_BATCH_ROUTE = "files/delete_batch",
+            DELETE_BATCH_CHECK_ROUTE = "files/delete_batch/check";
+    private static final String API_ARGUMENT_HEADER = "Dropbox-API-Arg",
+            API_RESULT_HEADER = "Dropbox-API-Result";
+    private static final String TAG = ".tag";
+    private static final int HTTP_OK = 200;
+    private static final int LIST_PAGE_LIMIT = 2000;
+    private static final long BATCH_POLL_MILLIS = 500;
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30),
+            REQUEST_TIMEOUT = Duration.ofMinutes(1),
+            DOWNLOAD_TIMEOUT = Duration.ofMinutes(10);
+
+    private final HttpClient httpClient;
+    private final String authorization;
+    private final URI apiEndpoint, contentEndpoint;
+
+    public DropboxHttpClient(@NonNull String accessToken) {
+        this(accessToken, API_ENDPOINT, CONTENT_ENDPOINT);
+    }
+
+    /**
+     * @param apiEndpoint     base of the RPC routes, like {@code https://api.dropboxapi.com/2/}
+     * @param contentEndpoint base of the download route, like {@code https://content.dropboxapi.com/2/}
+     */
+    public DropboxHttpClient(@NonNull String accessToken, @NonNull URI apiEndpoint, @NonNull URI contentEndpoint) {
+        authorization = "Bearer " + accessToken;
+        this.apiEndpoint = apiEndpoint;
+        this.contentEndpoint = contentEndpoint;
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .build();
+    }
+
+    /**
+     * Hands every entry under the folder to the consumer, one page at a time as the pages come in.
+     * The folder itself isn't part of the listing.
+     *
+     * @throws IllegalArgumentException if a file under the folder isn't a note
+     */
+    public void listFolder(@NonNull String path, boolean recursive,
+                           @NonNull Consumer<DbxLongListFileInfo> entryConsumer)
+            throws IOException, InterruptedException {
+        var page = post(LIST_FOLDER_ROUTE, new JSONObject()
+                .put("path", path)
+                .put("recursive", recursive)
+                .put("limit", LIST_PAGE_LIMIT));
+
+        while (true) {
+            var now = Instant.now();
+            var entries = page.getJSONArray("entries");
+            for (int i = 0; i < entries.length(); i++) {
+                DropboxMetadata.toFileInfo(entries.getJSONObject(i), now)
+                        .ifPresent(entryConsumer);
+            }
+
+            if (!page.getBoolean("has_more")) {
+                return;
+            }
+            page = post(LIST_FOLDER_CONTINUE_ROUTE, new JSONObject().put("cursor", page.getString("cursor")));
+        }
+    }
+
+    /**
+     * @return whether the folder has nothing in it, not even an empty folder
+     */
+    public boolean isEmptyFolder(@NonNull String path) throws IOException, InterruptedException {
+        var page = post(LIST_FOLDER_ROUTE, new JSONObject()
+                .put("path", path)
+                .put("limit", 1));
+        return page.getJSONArray("entries").isEmpty();
+    }
+
+    /**
+     * Streams the file straight to the destination, which is never left half written when the download fails
+     *
+     * @return the metadata Dropbox sends along with the file
+     */
+    public @NotNull JSONObject download(@NonNull String path, @NonNull Path destination)
+            throws IOException, InterruptedException {
+        var request = newRequest(contentEndpoint.resolve(DOWNLOAD_ROUTE), DOWNLOAD_TIMEOUT)
+                .header(API_ARGUMENT_HEADER, toHeaderArgument(new JSONObject().put("path", path)))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+
+        //Only a successful body goes to the file, an error body is the JSON explaining it
+        HttpResponse.BodyHandler<String> bodyHandler = responseInfo -> responseInfo.statusCode() == HTTP_OK ?
+                HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofFile(destination,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+                ), file -> "") :
+                HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8);
+
+        boolean isDownloaded = false;
+        try {
+            var response = httpClient.send(request, bodyHandler);
+            if (response.statusCode() != HTTP_OK) {
+                throw toApiException(response);
+            }
+
+            isDownloaded = true;
+            return new JSONObject(response.headers()
+                    .firstValue(API_RESULT_HEADER)
+                    .orElse("{}"));
+        } finally {
+            if (!isDownloaded) {
+                Files.deleteIfExists(destination);
+            }
+        }
+    }
+
+    /**
+     * Removes every path in one batch job and waits for it to finish. Folders go with everything in them.
+     *
+     * @return every path that couldn't be removed, with Dropbox's reason, like {@code path_lookup/not_found}
+     */
+    public @NotNull Map<String, String> deleteBatch(@NonNull List<String> paths)
+            throws IOException, InterruptedException {
+        var entries = new JSONArray();
+        paths.forEach(path -> entries.put(new JSONObject().put("path", path)));
+
+        var status = post(DELETE_BATCH_ROUTE, new JSONObject().put("entries", entries));
+        var jobId = status.optString("async_job_id");
+
+        while (!"complete".equals(status.getString(TAG))) {
+            if ("failed".equals(status.getString(TAG))) {
+                throw new DropboxApiException(HTTP_OK, "delete_batch/" + describeTag(status));
+            }
+
+            Thread.sleep(BATCH_POLL_MILLIS);
+            status = post(DELETE_BATCH_CHECK_ROUTE, new JSONObject().put("async_job_id", jobId));
+        }
+
+        //Results come back in the order of the paths
+        Map<String, String> failures = new LinkedHashMap<>();
+        var results = status.getJSONArray("entries");
+        for (int i = 0; i < results.length(); i++) {
+            var result = results.getJSONObject(i);
+            if ("failure".equals(result.getString(TAG))) {
+                failures.put(paths.get(i), describeTag(result.getJSONObject("failure")));
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return the chain of nested tags, the way Dropbox words its error summaries
+     */
+    private static String describeTag(@Nullable JSONObject union) {
+        var description = new StringBuilder();
+        while (union != null && union.has(TAG)) {
+            var tag = union.getString(TAG);
+            if (!description.isEmpty()) {
+                description.append('/');
+            }
+            description.append(tag);
+            union = union.optJSONObject(tag);
+        }
+        return description.toString();
+    }
+
+    private JSONObject post(String route, JSONObject argument) throws IOException, InterruptedException {
+        var request = newRequest(apiEndpoint.resolve(route), REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(argument.toString()))
+                .build();
+
+        var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != HTTP_OK) {
+            throw toApiException(response);
+        }
+        return new JSONObject(response.body());
+    }
+
+    private HttpRequest.Builder newRequest(URI uri, Duration timeout) {
+        return HttpRequest.newBuilder(uri)
+                .timeout(timeout)
+                .header("Authorization", authorization);
+    }
+
+    /**
+     * Route errors come with a JSON summary, anything else, like a bad token, is plain text
+     */
+    private static DropboxApiException toApiException(HttpResponse<String> response) {
+        var body = String.valueOf(response.body());
+        try {
+            return new DropboxApiException(response.statusCode(), new JSONObject(body).optString("error_summary", body));
+        } catch (JSONException e) {
+            return new DropboxApiException(response.statusCode(), body);
+        }
+    }
+
+    /**
+     * A header has to be plain ASCII, so everything past it is escaped the way JSON allows, like the ä in a note name
+     */
+    private static String toHeaderArgument(JSONObject argument) {
+        var json = argument.toString();
+        var output = new StringBuilder(json.length());
+
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c < 0x7F) {
+                output.append(c);
+            } else {
+                output.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package jasmine.jragon.dropbox.http;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+
+/**
+ * Turns the metadata of the Dropbox API into listing entries. Sizes and ages are rounded exactly the way
+ * {@code dbxcli ls -l} prints them, so moves, revisions and snapshots come out the same whichever way the listing
+ * was read.
+ */
+final class DropboxMetadata {
+    private static final String TAG = ".tag", FILE_TAG = "file", FOLDER_TAG = "folder";
+    private static final double KIBIBYTE = 1024, MEBIBYTE = KIBIBYTE * 1024;
+
+    private static final Duration MONTH = Duration.ofDays(30), YEAR = MONTH.multipliedBy(12);
+    /**
+     * Same steps as the relative time dbxcli prints. An age under the limit is either the fixed age or the duration
+     * divided by the unit. A file modified within the last second, or by a clock ahead of this one, is 1 second old.
+     */
+    private static final AgeStep[] AGE_STEPS = {
+            new AgeStep(Duration.ofSeconds(2), 1, null, ChronoUnit.SECONDS),
+            new AgeStep(Duration.ofMinutes(1), 0, Duration.ofSeconds(1), ChronoUnit.SECONDS),
+            new AgeStep(Duration.ofMinutes(2), 1, null, ChronoUnit.MINUTES),
+            new AgeStep(Duration.ofHours(1), 0, Duration.ofMinutes(1), ChronoUnit.MINUTES),
+            new AgeStep(Duration.ofHours(2), 1, null, ChronoUnit.HOURS),
+            new AgeStep(Duration.ofDays(1), 0, Duration.ofHours(1), ChronoUnit.HOURS),
+            new AgeStep(Duration.ofDays(2), 1, null, ChronoUnit.DAYS),
+            new AgeStep(Duration.ofDays(7), 0, Duration.ofDays(1), ChronoUnit.DAYS),
+            new AgeStep(Duration.ofDays(14), 1, null, ChronoUnit.WEEKS),
+            new AgeStep(MONTH, 0, Duration.ofDays(7), ChronoUnit.WEEKS),
+            new AgeStep(MONTH.multipliedBy(2), 1, null, ChronoUnit.MONTHS),
+            new AgeStep(YEAR, 0, MONTH, ChronoUnit.MONTHS),
+            new AgeStep(MONTH.multipliedBy(18), 1, null, ChronoUnit.YEARS),
+            new AgeStep(YEAR.multipliedBy(2), 2, null, ChronoUnit.YEARS)
+    };
+
+    private DropboxMetadata() {
+    }
+
+    /**
+     * @return the entry, or nothing for a deleted entry
+     * @throws IllegalArgumentException if it's a file that isn't a note, same as a listing line would
+     */
+    static Optional<DbxLongListFileInfo> toFileInfo(@NonNull JSONObject entry, @NonNull Instant now) {
+        var path = entry.getString("path_display");
+
+        return switch (entry.getString(TAG)) {
+            case FOLDER_TAG -> Optional.of(DbxLongListFileInfo.ofFolder(path));
+            case FILE_TAG -> {
+                long size = entry.getLong("size");
+                var age = Duration.between(Instant.parse(entry.getString("server_modified")), now);
+                var ageStep = findAgeStep(age);
+
+                yield Optional.of(DbxLongListFileInfo.ofFile(path, entry.getString("rev"),
+                        entry.optString("content_hash", null), roundFileSize(size), size < MEBIBYTE ?
+                                DbxLongListFileInfo.FileSizeType.KIBIBYTES :
+                                DbxLongListFileInfo.FileSizeType.MEBIBYTES,
+                        ageStep.age(age), ageStep.unit()));
+            }
+            default -> Optional.empty();
+        };
+    }
+
+    /**
+     * Tenths under 10 and whole numbers from there on, the way dbxcli prints them with Go's {@code %.1f} and
+     * {@code %.0f}: the exact value of the double is rounded, with a half going to the even digit.
+     * Anything over a MiB stays in MiB, since the listing has no bigger unit.
+     */
+    static double roundFileSize(long size) {
+        double scaled = size / (size < MEBIBYTE ? KIBIBYTE : MEBIBYTE);
+        return new BigDecimal(scaled)
+                .setScale(scaled < 10 ? 1 : 0, RoundingMode.HALF_EVEN)
+                .doubleValue();
+    }
+
+    private static AgeStep findAgeStep(Duration age) {
+        for (var ageStep : AGE_STEPS) {
+            if (age.compareTo(ageStep.limit()) < 0) {
+                return ageStep;
+            }
+        }
+        return new AgeStep(Duration.ZERO, 0, YEAR, ChronoUnit.YEARS);
+    }
+
+    private record AgeStep(Duration limit, int fixedAge, @Nullable Duration divisor, ChronoUnit unit) {
+        private int age(Duration age) {
+            return divisor == null ?
+                    fixedAge :
+                    (int) age.dividedBy(divisor);
+        }
+    }
+}
@@ -4,35 +4,37 @@ import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
-import org.intellij.lang.annotations.Language;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.time.temporal.ChronoUnit;
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
-import java.util.function.UnaryOperator;
-import java.util.stream.Stream;
 
 @EqualsAndHashCode(doNotUseGetters = true, cacheStrategy = EqualsAndHashCode.CacheStrategy.LAZY)
 public final class DbxLongListFileInfo {
-    @Language("Regexp")
-    private static final String FOLDER_REGEX = "-\\s+-\\s+-\\s+[a-zA-Z\\d+ /-]+";
-    @Language("Regexp")
-    private static final String BASE_DIRECTORY = "[a-f0-9]{21} +\\d+(?:\\.\\d)? [KM]iB\\s+\\d{1,2} (month|day|second|hour|minute|year|week)s? ago\\s+%s/[a-zA-Z\\d+ /\\-äöüÄÖÜ.()]+\\.pdf";
-    private static final UnaryOperator<String> SUPPLY_BASE_DIRECTORY = directory -> String.format(BASE_DIRECTORY, directory);
-    private static final String OLD_FILE_REGEX, SECOND_FILE_REGEX;
-
-    static {
-        OLD_FILE_REGEX = SUPPLY_BASE_DIRECTORY.apply(IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH);
-        SECOND_FILE_REGEX = SUPPLY_BASE_DIRECTORY.apply(IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH);
-    }
+    private static final int HASH_LENGTH = 21, CONTENT_HASH_LENGTH = 64;
+    private static final String FOLDER_HASH = "-";
+    private static final int OLD_BASE_SEGMENT_COUNT = internSegments(IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH).length;
+    private static final int SECOND_BASE_SEGMENT_COUNT = internSegments(IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH).length;
 
+    /**
+     * The revision dbxcli prints in its first column. It names one revision of one file, it isn't a hash of
+     * the content.
+     */
     @Getter
     @NonNull
     private final String currentFileHash;
+    /**
+     * The Dropbox content hash of the file, only known when it was listed over the Dropbox API
+     */
+    @EqualsAndHashCode.Exclude
+    @Getter
+    @Nullable
+    private final String contentHash;
     @Getter
     private final double fileSize;
     @Getter
@@ -45,90 +47,223 @@ public final class DbxLongListFileInfo {
     private final ChronoUnit modificationAgeUnit;
     @NonNull
     private final String dropboxDirectory;
+    /**
+     * Every segment of the path in the {@link PathSegmentDictionary}, the file name included
+     */
+    @EqualsAndHashCode.Exclude
+    private final int[] segmentIds;
+    /**
+     * How many segments of the path belong to the note base directory, 0 for a folder
+     */
+    @EqualsAndHashCode.Exclude
     @Getter
+    private final int baseSegmentCount;
+    @EqualsAndHashCode.Exclude
+    private final int basePathLength;
+    /**
+     * Last segment of the path, kept so sorting by file name never has to look it up
+     */
+    @EqualsAndHashCode.Exclude
     @NonNull
-    private final String noteFileSubdirectory;
+    private final String lastSegment;
 
     public DbxLongListFileInfo(@NonNull String line) throws IllegalArgumentException {
+        this(line, lexLine(line));
+    }
+
+    private DbxLongListFileInfo(String line, LongListLineLexer lexer) {
+        this(line.charAt(0) == '-' ? FOLDER_HASH : line.substring(0, HASH_LENGTH),
+                lexer.getFileSize(), lexer.getFileSizePrefix(),
+                lexer.getModificationAge(), lexer.getModificationAgeUnit(),
+                line.substring(lexer.getPathStart()), null);
+    }
+
+    private DbxLongListFileInfo(String currentFileHash, double fileSize, @Nullable FileSizeType fileSizePrefix,
+                                int modificationAge, @Nullable ChronoUnit modificationAgeUnit,
+                                String dropboxDirectory, @Nullable String contentHash) {
+        this.currentFileHash = currentFileHash;
+        this.contentHash = contentHash;
+        this.fileSize = fileSize;
+        this.fileSizePrefix = fileSizePrefix;
+        this.modificationAge = modificationAge;
+        this.modificationAgeUnit = modificationAgeUnit;
+        this.dropboxDirectory = dropboxDirectory;
+        segmentIds = internSegments(dropboxDirectory);
+        lastSegment = segmentIds.length == 0 ?
+                "" :
+                PathSegmentDictionary.valueOf(segmentIds[segmentIds.length - 1]);
+
+        if (isFolder()) {
+            baseSegmentCount = 0;
+            basePathLength = dropboxDirectory.length();
+        } else {
+            boolean isOldBasePath = dropboxDirectory.startsWith(IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH + '/');
+            baseSegmentCount = isOldBasePath ? OLD_BASE_SEGMENT_COUNT : SECOND_BASE_SEGMENT_COUNT;
+            basePathLength = isOldBasePath ?
+                    IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH.length() :
+                    IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH.length();
+        }
+    }
+
+    private static LongListLineLexer lexLine(String line) {
         if (line.isBlank()) {
             throw new IllegalArgumentException("Argument should not be blank");
         }
 
-        boolean noExpressionMatched = Stream.of(FOLDER_REGEX, OLD_FILE_REGEX, SECOND_FILE_REGEX)
-                .noneMatch(line::matches);
+        var lexer = new LongListLineLexer(line);
+        boolean expressionMatched = line.charAt(0) == '-' ?
+                lexer.lexFolder() :
+                lexer.lexFile(IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH, IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH);
 
-        if (noExpressionMatched) {
+        if (!expressionMatched) {
             throw new IllegalArgumentException("Argument doesn't match dropbox folder or file expression: " + line);
         }
+        return lexer;
+    }
 
-        boolean isFolder = line.charAt(0) == '-';
+    /**
+     * Folder entry from structured metadata, like the Dropbox API hands out, instead of a listing line
+     */
+    public static @NotNull DbxLongListFileInfo ofFolder(@NonNull String path) {
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("Not an absolute Dropbox path: " + path);
+        }
+        return new DbxLongListFileInfo(FOLDER_HASH, -1, null, -1, null, path, null);
+    }
 
-        if (isFolder) {
-            currentFileHash = "-";
-            fileSize = -1;
-            fileSizePrefix = null;
-            modificationAge = -1;
-            modificationAgeUnit = null;
-        } else {
-            var splitArray = line.split("\\s+", 7);
-            currentFileHash = splitArray[0];
-            fileSize = Double.parseDouble(splitArray[1]);
+    /**
+     * File entry from structured metadata, with the size and age already rounded the way the listing prints them.
+     * Only the notes a listing line would be accepted for are accepted.
+     */
+    public static @NotNull DbxLongListFileInfo ofFile(@NonNull String path, @NonNull String revision,
+                                                      double fileSize, @NonNull FileSizeType fileSizePrefix,
+                                                      int modificationAge, @NonNull ChronoUnit modificationAgeUnit) {
+        return ofFile(path, revision, null, fileSize, fileSizePrefix, modificationAge, modificationAgeUnit);
+    }
 
-            fileSizePrefix = splitArray[2].contains(FileSizeType.KIBIBYTES.getAbbreviation()) ?
-                    FileSizeType.KIBIBYTES :
-                    FileSizeType.MEBIBYTES;
+    /**
+     * @param contentHash the 64 hex digit content hash of the Dropbox API, or null if it wasn't listed
+     */
+    public static @NotNull DbxLongListFileInfo ofFile(@NonNull String path, @NonNull String revision,
+                                                      @Nullable String contentHash,
+                                                      double fileSize, @NonNull FileSizeType fileSizePrefix,
+                                                      int modificationAge, @NonNull ChronoUnit modificationAgeUnit) {
+        if (revision.length() != HASH_LENGTH) {
+            throw new IllegalArgumentException("Revision should be " + HASH_LENGTH + " characters: " + revision);
+        } else if (contentHash != null && (contentHash.length() != CONTENT_HASH_LENGTH ||
+                !contentHash.chars().allMatch(c -> Character.digit(c, 16) != -1))) {
+            throw new IllegalArgumentException("Content hash should be " + CONTENT_HASH_LENGTH + " hex digits: " +
+                    contentHash);
+        }
 
-            modificationAge = Integer.parseInt(splitArray[3]);
-            modificationAgeUnit = extractTimeUnit(splitArray[4]);
+        boolean isNotePath = path.endsWith(".pdf") &&
+                (path.startsWith(IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH + '/') ||
+                        path.startsWith(IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH + '/'));
+        if (!isNotePath) {
+            throw new IllegalArgumentException("Not a note under a base directory: " + path);
         }
 
-        dropboxDirectory = line.substring(line.indexOf('/'));
-        noteFileSubdirectory = isFolder ?
-                "" :
-                dropboxDirectory.replace(IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH, "")
-                        .replace(IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH, "");
+        return new DbxLongListFileInfo(revision, fileSize, fileSizePrefix,
+                modificationAge, modificationAgeUnit, path, contentHash);
     }
 
-    private static ChronoUnit extractTimeUnit(String line) {
-        return Stream.of(ChronoUnit.SECONDS, ChronoUnit.MINUTES, ChronoUnit.HOURS, ChronoUnit.DAYS,
-                        ChronoUnit.WEEKS, ChronoUnit.MONTHS, ChronoUnit.YEARS)
-                .filter(unit -> doesLineContainChronoUnit(unit, line))
-                .findFirst()
-                .orElse(null);
-    }
+    /**
+     * Same segments {@code split("/")} gives without the leading empty one
+     */
+    private static int[] internSegments(String path) {
+        int end = path.length();
+        //Split drops trailing empty segments
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            if (path.charAt(i) == '/') {
+                count++;
+            }
+        }
 
-    private static boolean doesLineContainChronoUnit(ChronoUnit unit, String line) {
-        var timeUnitName = unit.toString().toLowerCase();
-        timeUnitName = timeUnitName.substring(0, timeUnitName.length() - 1);
-        return line.contains(timeUnitName);
+        var ids = new int[count];
+        int segmentStart = path.indexOf('/') + 1;
+        for (int i = 0; i < count; i++) {
+            int segmentEnd = path.indexOf('/', segmentStart);
+            if (segmentEnd == -1 || segmentEnd > end) {
+                segmentEnd = end;
+            }
+            ids[i] = PathSegmentDictionary.intern(path.substring(segmentStart, segmentEnd));
+            segmentStart = segmentEnd + 1;
+        }
+        return ids;
     }
 
     public boolean isFolder() {
-        return Objects.equals(currentFileHash, "-");
+        return Objects.equals(currentFileHash, FOLDER_HASH);
     }
 
     public boolean isFile() {
-        return !"-".equals(currentFileHash);
+        return !FOLDER_HASH.equals(currentFileHash);
     }
 
     public @NotNull String getFileName() {
         return isFile() ?
-                dropboxDirectory.substring(dropboxDirectory.lastIndexOf('/') + 1) :
+                lastSegment :
                 "";
     }
 
+    /**
+     * @return the dictionary ID of the file name, or -1 for a folder
+     */
+    @Contract(pure = true)
+    public int getFileNameId() {
+        return isFile() && segmentIds.length > 0 ?
+                segmentIds[segmentIds.length - 1] :
+                -1;
+    }
+
+    public @NotNull String getNoteFileSubdirectory() {
+        return dropboxDirectory.substring(basePathLength);
+    }
+
+    /**
+     * @return how many folders lead up to this entry, the entry itself included for a folder
+     */
+    @Contract(pure = true)
+    public int getDirectoryDepth() {
+        return isFile() ?
+                segmentIds.length - 1 :
+                segmentIds.length;
+    }
+
+    @Contract(pure = true)
+    public int getDirectorySegmentId(int index) {
+        return segmentIds[Objects.checkIndex(index, getDirectoryDepth())];
+    }
+
+    /**
+     * @return a read-only view of the folder names leading up to this entry
+     */
     public @NotNull List<String> getDropboxDirectoryList() {
-        var output = new LinkedList<>(List.of(dropboxDirectory.split("/")));
-        output.removeFirst();
-        if (isFile()) {
-            output.removeLast();
-        }
-        return output;
+        return new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                return PathSegmentDictionary.valueOf(getDirectorySegmentId(index));
+            }
+
+            @Override
+            public int size() {
+                return getDirectoryDepth();
+            }
+        };
     }
 
     @Contract(pure = true)
     public boolean haveSameSubdirectory(@NonNull DbxLongListFileInfo fileInfo) {
-        return this.noteFileSubdirectory.equals(fileInfo.noteFileSubdirectory);
+        if (this.isFolder() || fileInfo.isFolder()) {
+            return this.isFolder() && fileInfo.isFolder();
+        }
+        return Arrays.equals(this.segmentIds, this.baseSegmentCount, this.segmentIds.length,
+                fileInfo.segmentIds, fileInfo.baseSegmentCount, fileInfo.segmentIds.length);
     }
 
     @Override
@@ -136,14 +271,11 @@ public final class DbxLongListFileInfo {
         return dropboxDirectory;
     }
 
+    @Contract(pure = true)
     public static int compareByFilename(DbxLongListFileInfo l, DbxLongListFileInfo r) {
-        var leftDirectory = l.dropboxDirectory;
-        var rightDirectory = r.dropboxDirectory;
-
-        var leftFilename = leftDirectory.substring(leftDirectory.lastIndexOf('/'));
-        var rightFilename = rightDirectory.substring(rightDirectory.lastIndexOf('/'));
-
-        return leftFilename.compareTo(rightFilename);
+        return l.lastSegment == r.lastSegment ?
+                0 :
+                l.lastSegment.compareTo(r.lastSegment);
     }
 
     @Contract(pure = true)
@@ -0,0 +1,279 @@
+package jasmine.jragon.dropbox.model.v2;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import speiger.src.collections.ints.maps.impl.hash.Int2ObjectOpenHashMap;
+import speiger.src.collections.ints.maps.interfaces.Int2ObjectMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * The {@code DirectoryTrie} is the Dropbox listing as a tree of folders, keyed by the segment IDs of the
+ * {@link PathSegmentDictionary}. It's built once per run and answers the 2 questions the listing used to be
+ * scanned over and over for:
+ * <ul>
+ *     <li>Which files with the same name sit where a simple move would have put them: in the same folder of
+ *     another base directory, one folder up or down, or in a folder renamed at one level of the path</li>
+ *     <li>Which folders have no file left anywhere under them, counting the files removed since the listing</li>
+ * </ul>
+ */
+public final class DirectoryTrie {
+    private final Node root;
+    private final List<Node> baseDirectories;
+
+    private DirectoryTrie() {
+        root = new Node(null);
+        baseDirectories = new ArrayList<>();
+    }
+
+    public static @NotNull DirectoryTrie of(@NonNull Collection<DbxLongListFileInfo> files,
+                                            @NonNull Collection<DbxLongListFileInfo> folders) {
+        var trie = new DirectoryTrie();
+
+        for (var basePath : List.of(IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH,
+                IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH)) {
+            var node = trie.root;
+            for (var segment : basePath.substring(1).split("/")) {
+                node = node.child(PathSegmentDictionary.intern(segment));
+            }
+            trie.baseDirectories.add(node);
+
+            //Removing a base directory or anything above it would take the note sync down with it
+            for (var protectedNode = node; protectedNode != null; protectedNode = protectedNode.parent) {
+                protectedNode.isProtected = true;
+            }
+        }
+
+        for (var folder : folders) {
+            var node = trie.insertDirectories(folder);
+            node.folder = folder;
+        }
+        for (var file : files) {
+            trie.insertDirectories(file).addFile(file);
+        }
+        return trie;
+    }
+
+    private Node insertDirectories(DbxLongListFileInfo entry) {
+        var node = root;
+        for (int i = 0; i < entry.getDirectoryDepth(); i++) {
+            node = node.child(entry.getDirectorySegmentId(i));
+        }
+        return node;
+    }
+
+    public boolean removeFile(@NonNull DbxLongListFileInfo file) {
+        var node = find(root, file, 0, -1);
+        return node != null && node.removeFile(file);
+    }
+
+    /**
+     * Hands every pair of same-named files a simple move could connect to the consumer. Each file is looked up
+     * by its path under the base directory, so a pair is only found when the 2 paths line up folder by folder:
+     * <ul>
+     *     <li>the same path under each base directory</li>
+     *     <li>one folder taken out of the path, which finds a folder put in from the other file's side</li>
+     *     <li>one folder swapped for one of its siblings</li>
+     * </ul>
+     * A pair can be handed over more than once and still has to be checked by the caller.
+     */
+    public void forEachMoveCandidate(@NonNull BiConsumer<DbxLongListFileInfo, DbxLongListFileInfo> candidateConsumer) {
+        for (var baseDirectory : baseDirectories) {
+            forEachFile(baseDirectory, file -> {
+                int relativeDepth = file.getDirectoryDepth() - file.getBaseSegmentCount();
+
+                for (var otherBase : baseDirectories) {
+                    emitSameNamed(find(otherBase, file, file.getBaseSegmentCount(), -1), file, candidateConsumer);
+
+                    for (int level = 0; level < relativeDepth; level++) {
+                        int absoluteLevel = file.getBaseSegmentCount() + level;
+                        emitSameNamed(find(otherBase, file, file.getBaseSegmentCount(), absoluteLevel),
+                                file, candidateConsumer);
+                        emitRenamedSiblings(otherBase, file, absoluteLevel, candidateConsumer);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void emitRenamedSiblings(Node base, DbxLongListFileInfo file, int absoluteLevel,
+                                            BiConsumer<DbxLongListFileInfo, DbxLongListFileInfo> candidateConsumer) {
+        var parent = base;
+        for (int i = file.getBaseSegmentCount(); i < absoluteLevel && parent != null; i++) {
+            parent = parent.children.get(file.getDirectorySegmentId(i));
+        }
+        if (parent == null) {
+            return;
+        }
+
+        int renamedSegment = file.getDirectorySegmentId(absoluteLevel);
+        var renamedFolder = PathSegmentDictionary.valueOf(renamedSegment);
+        for (var sibling : parent.children.values()) {
+            if (sibling.segmentId != renamedSegment && isRename(renamedFolder, sibling.segmentId)) {
+                emitSameNamed(find(sibling, file, absoluteLevel + 1, -1), file, candidateConsumer);
+            }
+        }
+    }
+
+    /**
+     * A renamed folder keeps its old name in the new one or the other way around, like "Physics" and "Physics 2"
+     */
+    private static boolean isRename(String folder, int siblingSegmentId) {
+        var sibling = PathSegmentDictionary.valueOf(siblingSegmentId);
+        return containsIgnoreCase(folder, sibling) || containsIgnoreCase(sibling, folder);
+    }
+
+    private static boolean containsIgnoreCase(String text, String part) {
+        for (int i = 0; i + part.length() <= text.length(); i++) {
+            if (text.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void emitSameNamed(@Nullable Node node, DbxLongListFileInfo file,
+                                      BiConsumer<DbxLongListFileInfo, DbxLongListFileInfo> candidateConsumer) {
+        if (node == null) {
+            return;
+        }
+
+        var sameNamedFiles = node.filesByName.get(file.getFileNameId());
+        if (sameNamedFiles == null) {
+            return;
+        }
+        for (var other : sameNamedFiles) {
+            if (other != file) {
+                candidateConsumer.accept(file, other);
+            }
+        }
+    }
+
+    /**
+     * Walks down from the node with the folders of the entry from {@code fromLevel} on, leaving out the folder
+     * at {@code skippedLevel}
+     */
+    private static @Nullable Node find(Node node, DbxLongListFileInfo entry, int fromLevel, int skippedLevel) {
+        for (int i = fromLevel; i < entry.getDirectoryDepth() && node != null; i++) {
+            if (i != skippedLevel) {
+                node = node.children.get(entry.getDirectorySegmentId(i));
+            }
+        }
+        return node;
+    }
+
+    private static void forEachFile(Node node, Consumer<DbxLongListFileInfo> fileConsumer) {
+        List<Node> pending = new ArrayList<>();
+        pending.add(node);
+
+        while (!pending.isEmpty()) {
+            var current = pending.remove(pending.size() - 1);
+            for (var files : current.filesByName.values()) {
+                files.forEach(fileConsumer);
+            }
+            pending.addAll(current.children.values());
+        }
+    }
+
+    /**
+     * Finds every listed folder of each subtree the listing shows with no file in it, counting the files removed
+     * since the listing. A folder that only has empty folders in it is returned along with them, one level up,
+     * so removing the levels in order never has to remove a folder that still holds something. The base
+     * directories and the folders leading up to them are never returned.
+     *
+     * @return the empty folders by how deep they are, the deepest level first
+     */
+    public @NotNull List<List<DbxLongListFileInfo>> findEmptyFoldersByDepth() {
+        List<List<DbxLongListFileInfo>> byDepth = new ArrayList<>();
+        collectEmptyFolders(root, 0, byDepth);
+
+        List<List<DbxLongListFileInfo>> output = new ArrayList<>(byDepth.size());
+        for (int depth = byDepth.size() - 1; depth >= 0; depth--) {
+            if (!byDepth.get(depth).isEmpty()) {
+                output.add(byDepth.get(depth));
+            }
+        }
+        return output;
+    }
+
+    /**
+     * @return whether there's no file anywhere under the node
+     */
+    private static boolean collectEmptyFolders(Node node, int depth, List<List<DbxLongListFileInfo>> byDepth) {
+        boolean isEmpty = node.fileCount == 0;
+        for (var child : node.children.values()) {
+            //Every child is walked, since an empty subtree can sit next to a folder that isn't empty
+            isEmpty &= collectEmptyFolders(child, depth + 1, byDepth);
+        }
+
+        if (isEmpty && node.folder != null && !node.isProtected) {
+            while (byDepth.size() <= depth) {
+                byDepth.add(new ArrayList<>());
+            }
+            byDepth.get(depth).add(node.folder);
+        }
+        return isEmpty;
+    }
+
+    private static final class Node {
+        @Nullable
+        private final Node parent;
+        private final int segmentId;
+        private final Int2ObjectMap<Node> children;
+        private final Int2ObjectMap<List<DbxLongListFileInfo>> filesByName;
+        private int fileCount;
+        /**
+         * The listing entry of the folder, null when it's only known as part of a longer path
+         */
+        @Nullable
+        private DbxLongListFileInfo folder;
+        private boolean isProtected;
+
+        private Node(@Nullable Node parent) {
+            this(parent, -1);
+        }
+
+        private Node(@Nullable Node parent, int segmentId) {
+            this.parent = parent;
+            this.segmentId = segmentId;
+            children = new Int2ObjectOpenHashMap<>();
+            filesByName = new Int2ObjectOpenHashMap<>();
+        }
+
+        private Node child(int segmentId) {
+            var child = children.get(segmentId);
+            if (child == null) {
+                child = new Node(this, segmentId);
+                children.put(segmentId, child);
+            }
+            return child;
+        }
+
+        private void addFile(DbxLongListFileInfo file) {
+            var files = filesByName.get(file.getFileNameId());
+            if (files == null) {
+                files = new ArrayList<>(1);
+                filesByName.put(file.getFileNameId(), files);
+            }
+            files.add(file);
+            fileCount++;
+        }
+
+        private boolean removeFile(DbxLongListFileInfo file) {
+            var files = filesByName.get(file.getFileNameId());
+            if (files == null || !files.remove(file)) {
+                return false;
+            }
+            if (files.isEmpty()) {
+                filesByName.remove(file.getFileNameId());
+            }
+            fileCount--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package jasmine.jragon.dropbox.model.v2;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The {@code ListingScope} is the part of the note directories a run works on. A scoped run only lists the
+ * subtrees it's given, under every note base directory, and everything outside of them keeps the revisions and
+ * snapshot records it had.
+ * <p>
+ * Subtrees are relative to the base directories, like {@code Physics/Waves}, and matched without case,
+ * the same way Dropbox matches paths.
+ */
+public final class ListingScope {
+    private static final ListingScope EVERYTHING = new ListingScope(List.of());
+
+    @Unmodifiable
+    private final List<String> directories;
+
+    private ListingScope(List<String> directories) {
+        this.directories = directories;
+    }
+
+    @Contract(pure = true)
+    public static @NotNull ListingScope everything() {
+        return EVERYTHING;
+    }
+
+    /**
+     * Blank subtrees are left out, so a scope of nothing but blanks is everything
+     */
+    public static @NotNull ListingScope of(@NonNull Collection<String> subtrees) {
+        var directories = subtrees.stream()
+                .map(ListingScope::trimSlashes)
+                .filter(subtree -> !subtree.isEmpty())
+                .distinct()
+                .flatMap(subtree -> Stream.of(IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH,
+                        IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH).map(base -> base + '/' + subtree))
+                .toList();
+
+        return directories.isEmpty() ?
+                EVERYTHING :
+                new ListingScope(directories);
+    }
+
+    private static String trimSlashes(String subtree) {
+        int start = 0, end = subtree.length();
+        while (start < end && (subtree.charAt(start) == '/' || Character.isWhitespace(subtree.charAt(start)))) {
+            start++;
+        }
+        while (end > start && (subtree.charAt(end - 1) == '/' || Character.isWhitespace(subtree.charAt(end - 1)))) {
+            end--;
+        }
+        return subtree.substring(start, end);
+    }
+
+    @Contract(pure = true)
+    public boolean isEverything() {
+        return directories.isEmpty();
+    }
+
+    /**
+     * @return every subtree under every base directory, empty for a run over everything
+     */
+    public @NotNull @Unmodifiable List<String> getDirectories() {
+        return directories;
+    }
+
+    /**
+     * @return whether the Dropbox path is one of the subtrees or anywhere under one
+     */
+    public boolean contains(@NonNull String dropboxPath) {
+        if (isEverything()) {
+            return true;
+        }
+
+        for (var directory : directories) {
+            boolean isPrefix = dropboxPath.regionMatches(true, 0, directory, 0, directory.length());
+            if (isPrefix && (dropboxPath.length() == directory.length() ||
+                    dropboxPath.charAt(directory.length()) == '/')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return isEverything() ?
+                "Everything" :
+                directories.toString();
+    }
+}
@@ -0,0 +1,283 @@
+package jasmine.jragon.dropbox.model.v2;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.temporal.ChronoUnit;
+
+/**
+ * The {@code LongListLineLexer} checks and reads a single line of the {@code dbxcli ls -l} listing in one pass.
+ * It accepts exactly the lines the listing expressions used to accept:
+ * <pre>
+ * Folder: -\s+-\s+-\s+[a-zA-Z\d+ /-]+
+ * File:   [a-f0-9]{21} +\d+(?:\.\d)? [KM]iB\s+\d{1,2} (month|day|second|hour|minute|year|week)s? ago\s+
+ *         BASE/[a-zA-Z\d+ /\-äöüÄÖÜ.()]+\.pdf
+ * </pre>
+ * The size, age and path start of a file are read on the way through, so the line never gets split,
+ * and nothing but the lexer itself is allocated.
+ */
+final class LongListLineLexer {
+    private static final int HASH_LENGTH = 21;
+    /**
+     * Any more digits than this and the size might not fit in a long exactly, so it's left to the JDK to parse
+     */
+    private static final int EXACT_SIZE_DIGITS = 15;
+    private static final String BYTE_SUFFIX = "iB";
+    private static final String AGO = "ago";
+    private static final String PDF_EXTENSION = ".pdf";
+
+    private static final String[] UNIT_NAMES = {"second", "minute", "hour", "day", "week", "month", "year"};
+    private static final ChronoUnit[] UNITS = {ChronoUnit.SECONDS, ChronoUnit.MINUTES, ChronoUnit.HOURS,
+            ChronoUnit.DAYS, ChronoUnit.WEEKS, ChronoUnit.MONTHS, ChronoUnit.YEARS};
+
+    private final String line;
+    private final int length;
+    private int position;
+
+    @Getter(AccessLevel.PACKAGE)
+    private double fileSize;
+    @Getter(AccessLevel.PACKAGE)
+    @Nullable
+    private DbxLongListFileInfo.FileSizeType fileSizePrefix;
+    @Getter(AccessLevel.PACKAGE)
+    private int modificationAge;
+    @Getter(AccessLevel.PACKAGE)
+    @Nullable
+    private ChronoUnit modificationAgeUnit;
+    /**
+     * Index of the first '/' in the line, or -1 when a folder line doesn't have one
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private int pathStart;
+
+    LongListLineLexer(@NonNull String line) {
+        this.line = line;
+        length = line.length();
+        //A folder line has no size or age, so these stay as they are for one
+        fileSize = -1;
+        modificationAge = -1;
+        pathStart = -1;
+    }
+
+    boolean lexFolder() {
+        position = 0;
+        int whitespaceRun = 0;
+        for (int dash = 0; dash < 3; dash++) {
+            if (!consume('-') || (whitespaceRun = skipWhitespace()) == 0) {
+                return false;
+            }
+        }
+
+        if (position == length) {
+            //The last \s+ can hand its trailing spaces back to the folder name, since the name allows spaces
+            return whitespaceRun > 1 && line.charAt(length - 1) == ' ';
+        }
+
+        for (; position < length; position++) {
+            char c = line.charAt(position);
+            if (!isFolderCharacter(c)) {
+                return false;
+            } else if (c == '/' && pathStart == -1) {
+                pathStart = position;
+            }
+        }
+        return true;
+    }
+
+    boolean lexFile(@NonNull String firstBaseDirectory, @NonNull String secondBaseDirectory) {
+        position = 0;
+        if (length < HASH_LENGTH) {
+            return false;
+        }
+
+        for (; position < HASH_LENGTH; position++) {
+            if (!isHashCharacter(line.charAt(position))) {
+                return false;
+            }
+        }
+
+        if (skipSpaces() == 0 || !lexFileSize() || !consume(' ') || !lexFileSizePrefix()
+                || skipWhitespace() == 0 || !lexModificationAge() || !consume(' ') || !lexTimeUnit()) {
+            return false;
+        }
+
+        //Plural is optional, "1 day ago" and "2 days ago"
+        consume('s');
+
+        if (!consume(' ') || !consume(AGO) || skipWhitespace() == 0) {
+            return false;
+        }
+
+        pathStart = position;
+        return isNotePath(firstBaseDirectory) || isNotePath(secondBaseDirectory);
+    }
+
+    private boolean lexFileSize() {
+        int start = position;
+        int integerDigits = skipDigits();
+        if (integerDigits == 0) {
+            return false;
+        }
+
+        boolean hasFraction = consume('.');
+        if (hasFraction && skipDigit() == 0) {
+            return false;
+        }
+
+        int digitCount = integerDigits + (hasFraction ? 1 : 0);
+        if (digitCount > EXACT_SIZE_DIGITS) {
+            fileSize = Double.parseDouble(line.substring(start, position));
+            return true;
+        }
+
+        long unscaled = 0;
+        for (int i = start; i < position; i++) {
+            char c = line.charAt(i);
+            if (c != '.') {
+                unscaled = unscaled * 10 + (c - '0');
+            }
+        }
+        //Dividing an exact long rounds the same way Double.parseDouble does with the decimal string
+        fileSize = hasFraction ? unscaled / 10.0 : unscaled;
+        return true;
+    }
+
+    private boolean lexFileSizePrefix() {
+        if (position == length) {
+            return false;
+        }
+
+        char prefix = line.charAt(position++);
+        if (prefix == 'K') {
+            fileSizePrefix = DbxLongListFileInfo.FileSizeType.KIBIBYTES;
+        } else if (prefix == 'M') {
+            fileSizePrefix = DbxLongListFileInfo.FileSizeType.MEBIBYTES;
+        } else {
+            return false;
+        }
+        return consume(BYTE_SUFFIX);
+    }
+
+    private boolean lexModificationAge() {
+        int start = position;
+        int digits = skipDigits();
+        if (digits == 0 || digits > 2) {
+            return false;
+        }
+
+        modificationAge = 0;
+        for (int i = start; i < position; i++) {
+            modificationAge = modificationAge * 10 + (line.charAt(i) - '0');
+        }
+        return true;
+    }
+
+    private boolean lexTimeUnit() {
+        for (int i = 0; i < UNIT_NAMES.length; i++) {
+            if (consume(UNIT_NAMES[i])) {
+                modificationAgeUnit = UNITS[i];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isNotePath(String baseDirectory) {
+        int separator = position + baseDirectory.length();
+        if (!line.startsWith(baseDirectory, position) || separator == length || line.charAt(separator) != '/') {
+            return false;
+        }
+
+        int tailStart = separator + 1;
+
+        //At least one character has to come before the extension
+        if (length - tailStart <= PDF_EXTENSION.length() || !line.endsWith(PDF_EXTENSION)) {
+            return false;
+        }
+
+        for (int i = tailStart; i < length; i++) {
+            if (!isNoteFileCharacter(line.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean consume(char expected) {
+        if (position < length && line.charAt(position) == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean consume(String expected) {
+        if (line.startsWith(expected, position)) {
+            position += expected.length();
+            return true;
+        }
+        return false;
+    }
+
+    private int skipWhitespace() {
+        int start = position;
+        while (position < length && isRegexWhitespace(line.charAt(position))) {
+            position++;
+        }
+        return position - start;
+    }
+
+    private int skipSpaces() {
+        int start = position;
+        while (position < length && line.charAt(position) == ' ') {
+            position++;
+        }
+        return position - start;
+    }
+
+    private int skipDigits() {
+        int start = position;
+        while (position < length && isDigit(line.charAt(position))) {
+            position++;
+        }
+        return position - start;
+    }
+
+    private int skipDigit() {
+        if (position < length && isDigit(line.charAt(position))) {
+            position++;
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Same set as {@code \s} without the unicode flag
+     */
+    private static boolean isRegexWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isHashCharacter(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'f');
+    }
+
+    private static boolean isFolderCharacter(char c) {
+        return isAsciiLetter(c) || isDigit(c) || c == '+' || c == ' ' || c == '/' || c == '-';
+    }
+
+    private static boolean isNoteFileCharacter(char c) {
+        return isFolderCharacter(c) || c == '.' || c == '(' || c == ')' ||
+                c == 'ä' || c == 'ö' || c == 'ü' || c == 'Ä' || c == 'Ö' || c == 'Ü';
+    }
+}
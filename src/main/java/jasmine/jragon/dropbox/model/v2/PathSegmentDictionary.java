@@ -0,0 +1,51 @@
+package jasmine.jragon.dropbox.model.v2;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code PathSegmentDictionary} hands out one int ID per distinct path segment, shared by every listing entry.
+ * A listing only has a few hundred folder and file names, but tens of thousands of paths made out of them,
+ * so the entries keep the IDs and compare paths without ever splitting a string.
+ * <p>
+ * IDs are handed out in the order segments are first seen and are only stable for the lifetime of the JVM.
+ * Both directions are concurrent maps, so the listing threads only ever wait on each other when they see the same
+ * new segment at the same time.
+ */
+public final class PathSegmentDictionary {
+    private static final Map<String, Integer> SEGMENT_IDS = new ConcurrentHashMap<>();
+    private static final Map<Integer, String> SEGMENTS = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private PathSegmentDictionary() {
+    }
+
+    public static int intern(@NonNull String segment) {
+        var id = SEGMENT_IDS.get(segment);
+        if (id != null) {
+            return id;
+        }
+
+        //The reverse entry goes in before the ID is published, so valueOf never misses an ID intern returned
+        return SEGMENT_IDS.computeIfAbsent(segment, newSegment -> {
+            int newId = NEXT_ID.getAndIncrement();
+            SEGMENTS.put(newId, newSegment);
+            return newId;
+        });
+    }
+
+    /**
+     * @throws IndexOutOfBoundsException if the ID was never handed out
+     */
+    public static @NotNull String valueOf(int id) {
+        var segment = SEGMENTS.get(id);
+        if (segment == null) {
+            throw new IndexOutOfBoundsException("No path segment with ID " + id);
+        }
+        return segment;
+    }
+}
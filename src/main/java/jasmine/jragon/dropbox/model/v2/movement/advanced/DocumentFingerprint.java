@@ -0,0 +1,36 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * The {@code DocumentFingerprint} is the output of the first indexing phase: the fingerprinted pages of a single
+ * document, in page order. It's immutable, so workers can hand them off without any locking, and the merge phase
+ * can sort them into a stable order before building the {@link PageGraph}.
+ */
+record DocumentFingerprint(@NonNull String absolutePath, @NonNull @Unmodifiable List<GraphicsCluster> pages) {
+    static final Comparator<DocumentFingerprint> MERGE_ORDER =
+            Comparator.comparing(DocumentFingerprint::absolutePath);
+
+    /**
+     * @return the page and annotation fingerprints of every page that has something drawn on it
+     */
+    @NotNull IntStream streamContentTokens() {
+        return pages.stream()
+                .filter(page -> !page.hasEmptyClusterHash())
+                .flatMapToInt(page -> IntStream.concat(
+                        IntStream.of(page.getClusterHash()),
+                        page.streamNodeHashes()
+                ));
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return String.format("%s - %d Page(s)", absolutePath, pages.size());
+    }
+}
@@ -9,65 +9,51 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
-import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.jetbrains.annotations.UnmodifiableView;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Queue;
-import java.util.Set;
-import java.util.TreeSet;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 
 /**
  * The {@code GraphicsCluster} captures all the content data of a single page of a PDF document that's retrieved
  * from Boox. A {@linkplain #$clusterHash custom hash} is <u>calculated</u> based on solely <b>the content of the nodes
  * inside the cluster</b> because we're trying to establish whether 2 documents are the same or similar based on
  * the content of their pages.
+ * <p>
+ * The cluster only lives long enough to fingerprint its page. Once the hash and latest modification time are known,
+ * the {@linkplain GraphicsNode node payloads} are dropped, and the {@link PageGraph} keeps the page as plain ints.
+ * The hash of every node is kept as an annotation fingerprint, so a page that was edited can still be compared
+ * to its older version stroke by stroke.
  */
 @Slf4j
-@EqualsAndHashCode(
-        doNotUseGetters = true,
-        of = {"pageNumber", "graphicsNodes"},
-        cacheStrategy = EqualsAndHashCode.CacheStrategy.LAZY
-)
 final class GraphicsCluster {
     private static final DateTimeFormatter DESIRED_VIEW_FORMAT = DateTimeFormatter.ofPattern("MM/dd/yyyy HH:mm:ss");
 
-    private final Set<GraphicsCluster> incomingNodes;
-    private final Set<GraphicsCluster> outgoingNodes;
-    private final Set<PageCitation> foundPaths;
-
-    //Used to compute object equality and hashcode
+    @Getter(value = AccessLevel.PACKAGE)
     private final int pageNumber;
-    private final List<GraphicsNode> graphicsNodes;
+    private final int[] nodeHashes;
+    @Getter(value = AccessLevel.PACKAGE)
+    private final LocalDateTime latestModTime;
 
     private transient final int $clusterHash;
 
-    GraphicsCluster(@NonNull String absolutePath, int pageNumber, @NonNull List<PDAnnotation> annotations)
-            throws IllegalStateException {
+    GraphicsCluster(int pageNumber, @NonNull List<PDAnnotation> annotations) throws IllegalStateException {
         this.pageNumber = pageNumber;
-        graphicsNodes = extractNodes(annotations);
+        var graphicsNodes = extractNodes(annotations);
         $clusterHash = graphicsNodes.isEmpty() ? 0 : graphicsNodes.hashCode();
-
-        incomingNodes = new HashSet<>(3, 1.0f);
-        outgoingNodes = new HashSet<>(3, 1.0f);
-        foundPaths = new TreeSet<>();
-        foundPaths.add(new PageCitation(
-                absolutePath, pageNumber,
-                findLatestModTime(graphicsNodes)
-        ));
+        nodeHashes = graphicsNodes.stream()
+                .mapToInt(GraphicsNode::hashCode)
+                .toArray();
+        latestModTime = findLatestModTime(graphicsNodes);
     }
 
     private static List<GraphicsNode> extractNodes(List<PDAnnotation> annotations) {
@@ -96,23 +82,6 @@ final class GraphicsCluster {
                 .getCOSStream(COSName.N);
     }
 
-    private void addIncomingNode(GraphicsCluster node) {
-        incomingNodes.add(node);
-    }
-
-    void linkClusters(@NonNull GraphicsCluster node) {
-        outgoingNodes.add(node);
-        node.addIncomingNode(this);
-    }
-
-    void addNewPathsFromCluster(@NonNull GraphicsCluster cluster) {
-        foundPaths.addAll(cluster.foundPaths);
-    }
-
-    boolean isStartingNode() {
-        return incomingNodes.isEmpty();
-    }
-
     boolean hasEmptyClusterHash() {
         return $clusterHash == 0;
     }
@@ -121,40 +90,16 @@ final class GraphicsCluster {
         return $clusterHash;
     }
 
-    @Contract(pure = true)
-    @NotNull @UnmodifiableView Set<GraphicsCluster> getOutgoingNodes() {
-        return Collections.unmodifiableSet(outgoingNodes);
-    }
-
-    Stream<PageCitation> streamCitations() {
-        if (!isStartingNode()) {
-            return Stream.empty();
-        }
-
-        Stream.Builder<PageCitation> builder = Stream.builder();
-
-        Queue<GraphicsCluster> queue = new ArrayDeque<>();
-        queue.add(this);
-        while (!queue.isEmpty()) {
-            var next = queue.poll();
-            next.foundPaths.forEach(builder::add);
-
-            queue.addAll(next.getOutgoingNodes());
-        }
-
-        return builder.build();
-    }
-
-    boolean hasMultipleConnections() {
-        return foundPaths.size() > 1 || outgoingNodes.size() > 1;
+    @NotNull IntStream streamNodeHashes() {
+        return Arrays.stream(nodeHashes);
     }
 
     @Override
     public @NotNull String toString() {
         if ($clusterHash == 0) {
-            return String.format("Path(s) %s : Page %d\tEMPTY", foundPaths, pageNumber);
+            return String.format("Page %d\tEMPTY", pageNumber);
         } else {
-            return String.format("Path(s) %s : Page %d\tNode Count: %d", foundPaths, pageNumber, graphicsNodes.size());
+            return String.format("Page %d\tNode Count: %d", pageNumber, nodeHashes.length);
         }
     }
 
@@ -233,7 +178,7 @@ final class GraphicsCluster {
      * The {@code PageCitation} is a compact place to hold page information to compare to pages of other documents
      * that contain the exact same content.
      */
-    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    @RequiredArgsConstructor(access = AccessLevel.PACKAGE)
     @EqualsAndHashCode(doNotUseGetters = true, cacheStrategy = EqualsAndHashCode.CacheStrategy.LAZY)
     static final class PageCitation implements Comparable<PageCitation> {
         @Getter(value = AccessLevel.PACKAGE)
@@ -246,6 +191,15 @@ final class GraphicsCluster {
             return this.modTime.compareTo(o.modTime);
         }
 
+        /**
+         * @return a short, multi-line label of the filename, page and mod time for graph nodes
+         */
+        @NotNull String toGraphLabel() {
+            return String.format("%s p.%d\n%s",
+                    absolutePath.substring(absolutePath.lastIndexOf('/') + 1),
+                    pageNumber, modTime.format(DESIRED_VIEW_FORMAT));
+        }
+
         @Override
         public @NotNull String toString() {
             return String.format("PageCitation(ModTime: %s -> absolutePath=%s Page %d)",
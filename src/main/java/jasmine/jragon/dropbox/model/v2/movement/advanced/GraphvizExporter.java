@@ -0,0 +1,61 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import lombok.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Writes the {@link PageGraph} out as a Graphviz DOT file. The graph is walked with plain loops over the cluster and
+ * edge arrays, and every line goes straight to the writer, so neither the chain length nor the archive size decides
+ * how much memory or stack the export takes.
+ * <p>
+ * Render it with something like {@code dot -Tsvg page-graph.dot -o page-graph.svg}
+ */
+final class GraphvizExporter {
+    static void export(@NonNull PageGraph graph, @NonNull File dotFile) throws IOException {
+        try (var writer = Files.newBufferedWriter(dotFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("digraph PageGraph {\n");
+            writer.write("  node [shape=box, fontsize=10];\n");
+
+            for (int cluster = 0; cluster < graph.clusterCount(); cluster++) {
+                writeNode(graph, cluster, writer);
+            }
+
+            for (int cluster = 0; cluster < graph.clusterCount(); cluster++) {
+                for (int e = graph.firstEdge(cluster); e != PageGraph.NONE; e = graph.nextEdge(e)) {
+                    writer.write("  c");
+                    writer.write(Integer.toString(cluster));
+                    writer.write(" -> c");
+                    writer.write(Integer.toString(graph.edgeTarget(e)));
+                    writer.write(";\n");
+                }
+            }
+
+            writer.write("}\n");
+        }
+    }
+
+    private static void writeNode(PageGraph graph, int cluster, Writer writer) throws IOException {
+        writer.write("  c");
+        writer.write(Integer.toString(cluster));
+        writer.write(" [label=\"");
+        writer.write(Integer.toHexString(graph.getClusterHash(cluster)));
+
+        for (int c = graph.firstCitation(cluster); c != PageGraph.NONE; c = graph.nextCitation(c)) {
+            writer.write("\\n");
+            writer.write(escape(graph.citation(c).toGraphLabel()));
+        }
+
+        writer.write("\"];\n");
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+}
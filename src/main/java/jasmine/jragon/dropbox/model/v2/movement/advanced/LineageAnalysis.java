@@ -0,0 +1,252 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Unmodifiable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Groups the documents in a {@link PageGraph} into version groups with one union-find pass over the edges.
+ * Every weakly connected set of clusters is one lineage of a notebook, no matter if the chain forks, merges or
+ * loops back on itself. Each cluster, edge and citation is visited a constant number of times, so the cost stays
+ * linear in the amount of pages and edges even when the same pages are shared by a lot of versions.
+ * <p>
+ * Near-duplicates from the {@link NotebookSimilarityIndex} are only an estimate, so they're never chained.
+ * An older lineage joins a newer one only when its newest document is itself a near-duplicate of the newest
+ * document of the group it would end up in, so A~B and B~C don't make A an old version of C.
+ */
+final class LineageAnalysis {
+    static @NotNull @Unmodifiable List<VersionGroup> groupChangedDocuments(@NonNull PageGraph graph) {
+        return groupChangedDocuments(graph, null);
+    }
+
+    /**
+     * @param similarityIndex where near-duplicate documents are looked up, or {@code null} to group by exact
+     *                        page matches only
+     */
+    static @NotNull @Unmodifiable List<VersionGroup> groupChangedDocuments(
+            @NonNull PageGraph graph, @Nullable NotebookSimilarityIndex similarityIndex) {
+        int clusterCount = graph.clusterCount();
+        var components = new DisjointSet(clusterCount);
+
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            for (int e = graph.firstEdge(cluster); e != PageGraph.NONE; e = graph.nextEdge(e)) {
+                components.union(cluster, graph.edgeTarget(e));
+            }
+        }
+
+        int[] componentIndex = new int[clusterCount];
+        Arrays.fill(componentIndex, PageGraph.NONE);
+        int[] componentOf = new int[clusterCount];
+        int componentCount = 0;
+
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            int root = components.find(cluster);
+            if (componentIndex[root] == PageGraph.NONE) {
+                componentIndex[root] = componentCount++;
+            }
+            componentOf[cluster] = componentIndex[root];
+        }
+
+        var hasChanges = new BitSet(componentCount);
+        int[] youngestCitation = new int[componentCount];
+        Arrays.fill(youngestCitation, PageGraph.NONE);
+
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            int component = componentOf[cluster];
+            if (graph.hasMultipleConnections(cluster)) {
+                hasChanges.set(component);
+            }
+
+            for (int c = graph.firstCitation(cluster); c != PageGraph.NONE; c = graph.nextCitation(c)) {
+                int youngest = youngestCitation[component];
+                //Strictly greater so that ties keep the first citation found, like Collectors.maxBy did
+                if (youngest == PageGraph.NONE || graph.citationModTime(c) > graph.citationModTime(youngest)) {
+                    youngestCitation[component] = c;
+                }
+            }
+        }
+
+        int[] groupOf = similarityIndex == null ?
+                identity(componentCount) :
+                joinNearDuplicates(graph, similarityIndex, componentOf, youngestCitation, hasChanges);
+
+        List<List<String>> olderPaths = new ArrayList<>(componentCount);
+        for (int i = 0; i < componentCount; i++) {
+            olderPaths.add(hasChanges.get(i) ? new ArrayList<>() : List.of());
+        }
+
+        var emittedPaths = new BitSet(graph.pathCount());
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            int group = groupOf[componentOf[cluster]];
+            if (!hasChanges.get(group)) {
+                continue;
+            }
+
+            int youngestPath = graph.citationPathId(youngestCitation[group]);
+            for (int c = graph.firstCitation(cluster); c != PageGraph.NONE; c = graph.nextCitation(c)) {
+                int pathId = graph.citationPathId(c);
+                if (pathId != youngestPath && !emittedPaths.get(pathId)) {
+                    emittedPaths.set(pathId);
+                    olderPaths.get(group).add(graph.path(pathId));
+                }
+            }
+        }
+
+        List<VersionGroup> output = new ArrayList<>();
+        for (int group = hasChanges.nextSetBit(0); group >= 0; group = hasChanges.nextSetBit(group + 1)) {
+            if (groupOf[group] == group) {
+                output.add(new VersionGroup(
+                        graph.citation(youngestCitation[group]),
+                        List.copyOf(olderPaths.get(group))
+                ));
+            }
+        }
+
+        return List.copyOf(output);
+    }
+
+    /**
+     * Components are settled from the newest to the oldest, so the group a newer component ended up in is known
+     * by the time an older one is checked against its newest document. Ties in mod time can't tell which side
+     * is the older one, so those pairs are left alone.
+     *
+     * @return the component every component is grouped under, which is the component holding the newest document
+     */
+    private static int[] joinNearDuplicates(PageGraph graph, NotebookSimilarityIndex similarityIndex,
+                                            int[] componentOf, int[] youngestCitation, BitSet hasChanges) {
+        int componentCount = youngestCitation.length;
+        List<List<Integer>> newerCandidates = new ArrayList<>(componentCount);
+        for (int i = 0; i < componentCount; i++) {
+            newerCandidates.add(new ArrayList<>(1));
+        }
+
+        var pairs = new ArrayList<>(similarityIndex.findSimilarPairs());
+        pairs.sort(Comparator.comparingDouble(NotebookSimilarityIndex.SimilarPair::similarity).reversed());
+        for (var pair : pairs) {
+            int leftAnchor = graph.pathAnchorCluster(pair.leftPathId());
+            int rightAnchor = graph.pathAnchorCluster(pair.rightPathId());
+            if (leftAnchor == PageGraph.NONE || rightAnchor == PageGraph.NONE) {
+                continue;
+            }
+
+            int left = componentOf[leftAnchor];
+            int right = componentOf[rightAnchor];
+            long leftModTime = graph.citationModTime(youngestCitation[left]);
+            long rightModTime = graph.citationModTime(youngestCitation[right]);
+            if (left == right || leftModTime == rightModTime) {
+                continue;
+            }
+
+            if (leftModTime < rightModTime) {
+                newerCandidates.get(left).add(right);
+            } else {
+                newerCandidates.get(right).add(left);
+            }
+        }
+
+        Integer[] newestFirst = new Integer[componentCount];
+        for (int i = 0; i < componentCount; i++) {
+            newestFirst[i] = i;
+        }
+        Arrays.sort(newestFirst, Comparator.comparingLong(
+                (Integer component) -> graph.citationModTime(youngestCitation[component])).reversed());
+
+        int[] groupOf = identity(componentCount);
+        for (int component : newestFirst) {
+            int newestPath = graph.citationPathId(youngestCitation[component]);
+            for (int candidate : newerCandidates.get(component)) {
+                int group = groupOf[candidate];
+                if (similarityIndex.isNearDuplicate(newestPath,
+                        graph.citationPathId(youngestCitation[group]))) {
+                    groupOf[component] = group;
+                    //2 documents being near-duplicates of each other is a detected change on its own
+                    hasChanges.set(group);
+                    break;
+                }
+            }
+        }
+
+        //A component that joined a group has nothing to report on its own
+        for (int component = 0; component < componentCount; component++) {
+            if (groupOf[component] != component && hasChanges.get(component)) {
+                hasChanges.clear(component);
+                hasChanges.set(groupOf[component]);
+            }
+        }
+        return groupOf;
+    }
+
+    private static int[] identity(int length) {
+        int[] identity = new int[length];
+        for (int i = 0; i < length; i++) {
+            identity[i] = i;
+        }
+        return identity;
+    }
+
+    /**
+     * One lineage of a notebook: the page citation with the latest modification time, and the paths of every
+     * other document that shares pages with it or whose lineage was found to be a near-duplicate of it.
+     */
+    record VersionGroup(@NonNull GraphicsCluster.PageCitation youngestCitation,
+                        @NonNull @Unmodifiable List<String> olderPaths) {
+        @Override
+        public @NotNull String toString() {
+            return String.format("%s <- %s", youngestCitation.getAbsolutePath(), olderPaths);
+        }
+    }
+
+    /**
+     * Union-find over cluster IDs with union by size and path compression
+     */
+    private static final class DisjointSet {
+        private final int[] parent;
+        private final int[] size;
+
+        private DisjointSet(int elementCount) {
+            parent = new int[elementCount];
+            size = new int[elementCount];
+            for (int i = 0; i < elementCount; i++) {
+                parent[i] = i;
+                size[i] = 1;
+            }
+        }
+
+        private int find(int element) {
+            int root = element;
+            while (parent[root] != root) {
+                root = parent[root];
+            }
+
+            while (parent[element] != root) {
+                int next = parent[element];
+                parent[element] = root;
+                element = next;
+            }
+            return root;
+        }
+
+        private void union(int left, int right) {
+            int leftRoot = find(left);
+            int rightRoot = find(right);
+            if (leftRoot == rightRoot) {
+                return;
+            }
+
+            if (size[leftRoot] < size[rightRoot]) {
+                int temp = leftRoot;
+                leftRoot = rightRoot;
+                rightRoot = temp;
+            }
+            parent[rightRoot] = leftRoot;
+            size[leftRoot] += size[rightRoot];
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * The {@code NotebookSimilarityIndex} finds notebooks that are near-duplicates of each other, even when every page
+ * was edited and no page fingerprint matches exactly anymore.
+ * <p>
+ * Each document gets a MinHash signature over its page and annotation fingerprints, so the fraction of matching
+ * signature slots estimates the Jaccard similarity of the 2 documents. The signature is cut into bands for
+ * locality-sensitive hashing. Documents only get compared when they share a bucket in at least one band, so finding
+ * the candidates for a document doesn't scale with the size of the archive.
+ */
+@Slf4j
+final class NotebookSimilarityIndex {
+    private static final int SIGNATURE_LENGTH = 64;
+    /**
+     * A couple of strokes in common shouldn't make 2 short notebooks look like the same one
+     */
+    private static final int MINIMUM_TOKEN_COUNT = 8;
+    private static final int[] SEEDS = IntStream.range(0, SIGNATURE_LENGTH)
+            .map(i -> mix(0x9E3779B9 * (i + 1)))
+            .toArray();
+
+    private final double similarityThreshold;
+    private final int bandCount;
+    private final int rowsPerBand;
+
+    private final Map<Integer, int[]> signatures;
+    private final Map<Long, List<Integer>> buckets;
+
+    NotebookSimilarityIndex(double similarityThreshold) {
+        if (similarityThreshold <= 0 || similarityThreshold > 1) {
+            throw new IllegalArgumentException("Similarity threshold must be in (0, 1]: " + similarityThreshold);
+        }
+
+        this.similarityThreshold = similarityThreshold;
+        rowsPerBand = pickRowsPerBand(similarityThreshold);
+        bandCount = SIGNATURE_LENGTH / rowsPerBand;
+        signatures = new HashMap<>();
+        buckets = new HashMap<>();
+    }
+
+    /**
+     * Picks the band shape whose LSH threshold, (1/b)^(1/r), is the closest one at or below the requested
+     * similarity. Candidates are checked against the real threshold afterward, so erring low only costs a few
+     * extra comparisons instead of missed versions.
+     */
+    private static int pickRowsPerBand(double similarityThreshold) {
+        int bestRows = 1;
+        for (int rows = 1; rows <= SIGNATURE_LENGTH; rows <<= 1) {
+            int bands = SIGNATURE_LENGTH / rows;
+            if (Math.pow(1.0 / bands, 1.0 / rows) <= similarityThreshold) {
+                bestRows = rows;
+            }
+        }
+        return bestRows;
+    }
+
+    void addDocument(int pathId, @NonNull IntStream contentTokens) {
+        var signature = new int[SIGNATURE_LENGTH];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        int[] tokenCount = {0};
+
+        contentTokens.forEach(token -> {
+            tokenCount[0]++;
+            for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+                int value = mix(token ^ SEEDS[i]);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        });
+
+        if (tokenCount[0] < MINIMUM_TOKEN_COUNT) {
+            log.trace("Path ID {} is too sparse for similarity matching: {} token(s)", pathId, tokenCount[0]);
+            return;
+        }
+
+        signatures.put(pathId, signature);
+        for (int band = 0; band < bandCount; band++) {
+            buckets.computeIfAbsent(bucketKey(band, signature), key -> new ArrayList<>(2))
+                    .add(pathId);
+        }
+    }
+
+    /**
+     * @return every pair of documents that share an LSH bucket and whose estimated similarity reaches the threshold
+     */
+    @NotNull @Unmodifiable List<SimilarPair> findSimilarPairs() {
+        Set<Long> comparedPairs = new HashSet<>();
+        List<SimilarPair> output = new ArrayList<>();
+
+        for (var bucket : buckets.values()) {
+            for (int i = 0; i < bucket.size(); i++) {
+                for (int j = i + 1; j < bucket.size(); j++) {
+                    int left = Math.min(bucket.get(i), bucket.get(j));
+                    int right = Math.max(bucket.get(i), bucket.get(j));
+
+                    if (left == right || !comparedPairs.add(((long) left << 32) | right)) {
+                        continue;
+                    }
+
+                    double similarity = estimateSimilarity(signatures.get(left), signatures.get(right));
+                    if (similarity >= similarityThreshold) {
+                        output.add(new SimilarPair(left, right, similarity));
+                    }
+                }
+            }
+        }
+
+        if (!output.isEmpty()) {
+            log.debug("{} near-duplicate notebook pair(s) found", output.size());
+        }
+        return List.copyOf(output);
+    }
+
+    /**
+     * For checking documents that didn't share a bucket, like a candidate against the newest version it would
+     * end up grouped with
+     *
+     * @return whether both documents have a signature and their estimated similarity reaches the threshold
+     */
+    boolean isNearDuplicate(int leftPathId, int rightPathId) {
+        var left = signatures.get(leftPathId);
+        var right = signatures.get(rightPathId);
+        return left != null && right != null && estimateSimilarity(left, right) >= similarityThreshold;
+    }
+
+    private long bucketKey(int band, int[] signature) {
+        int bandHash = 1;
+        int start = band * rowsPerBand;
+        for (int i = start; i < start + rowsPerBand; i++) {
+            bandHash = 31 * bandHash + signature[i];
+        }
+        return ((long) band << 32) | (bandHash & 0xFFFFFFFFL);
+    }
+
+    private static double estimateSimilarity(int[] left, int[] right) {
+        int matches = 0;
+        for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+            if (left[i] == right[i]) {
+                matches++;
+            }
+        }
+        return (double) matches / SIGNATURE_LENGTH;
+    }
+
+    /**
+     * Murmur3's finalizer, which spreads the bits of the fingerprints well enough to act as a family of
+     * independent hash functions once each one is salted with its own seed
+     */
+    private static int mix(int value) {
+        value ^= value >>> 16;
+        value *= 0x85EBCA6B;
+        value ^= value >>> 13;
+        value *= 0xC2B2AE35;
+        value ^= value >>> 16;
+        return value;
+    }
+
+    record SimilarPair(int leftPathId, int rightPathId, double similarity) {}
+}
@@ -3,58 +3,77 @@ package jasmine.jragon.dropbox.model.v2.movement.advanced;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.pdfbox.pdmodel.PDPageTree;
-import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import speiger.src.collections.ints.maps.impl.concurrent.Int2ObjectConcurrentOpenHashMap;
-import speiger.src.collections.ints.maps.impl.customHash.Int2ObjectLinkedOpenCustomHashMap;
-import speiger.src.collections.ints.maps.interfaces.Int2ObjectMap;
-import speiger.src.collections.ints.utils.IntStrategy;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
 import java.util.Queue;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Stream;
 
+/**
+ * The {@code PageContentIndex} finds older versions of notebooks by the content of their pages.
+ * Indexing happens in 2 phases:
+ * <ol>
+ *     <li>{@link #addDocument(String, PDPageTree)} fingerprints every page of a document and queues the
+ *     {@link DocumentFingerprint}. This is lock-free, so every transfer worker can index at the same time</li>
+ *     <li>Before the graph is read, the queued fingerprints are sorted by path and merged into the
+ *     {@link PageGraph} by a single thread, so the graph is the same no matter how the workers were scheduled</li>
+ * </ol>
+ * Besides exact page matches, every merged document can also be added to a {@link NotebookSimilarityIndex}, so a
+ * notebook with every page edited is still found to be a newer version of the old file. Similarity is only an
+ * estimate and older versions get deleted, so that's only done when a threshold is asked for.
+ */
 @Slf4j
 public final class PageContentIndex {
-    /**
-     * Cuz 1.0 load factor is too much for primitive collections apparently XD
-     */
-    private static final float LOAD_FACTOR = 0.99f;
+    public static final double NO_SIMILARITY_MATCHING = 0;
+
     private static final int ESTIMATED_PAGE_COUNT = 2500;
 
-    private final Int2ObjectMap<GraphicsCluster> indexMap;
-    private final List<GraphicsCluster> emptyClusters;
+    private final Queue<DocumentFingerprint> pendingDocuments;
+    private final PageGraph pageGraph;
+    @Nullable
+    private final NotebookSimilarityIndex similarityIndex;
+    @Nullable
+    private final PageVersionArchive versionArchive;
+    @Nullable
+    private final PageFeatureFeed featureFeed;
+    private int emptyPageCount;
 
     public PageContentIndex() {
-        indexMap = new Int2ObjectLinkedOpenCustomHashMap<>(ESTIMATED_PAGE_COUNT, LOAD_FACTOR, IntStrategy.NORMAL);
-        emptyClusters = new ArrayList<>();
+        this(ESTIMATED_PAGE_COUNT);
     }
 
-    public PageContentIndex(boolean isConcurrent) {
-        indexMap = isConcurrent ?
-                new Int2ObjectConcurrentOpenHashMap<>(ESTIMATED_PAGE_COUNT, LOAD_FACTOR) :
-                new Int2ObjectLinkedOpenCustomHashMap<>(ESTIMATED_PAGE_COUNT, LOAD_FACTOR, IntStrategy.NORMAL);
-
-        emptyClusters = isConcurrent ?
-                Collections.synchronizedList(new ArrayList<>()) :
-                new ArrayList<>();
+    public PageContentIndex(int initialCapacity) {
+        this(initialCapacity, NO_SIMILARITY_MATCHING);
     }
 
-    public PageContentIndex(boolean isConcurrent, int initialCapacity) {
-        indexMap = isConcurrent ?
-                new Int2ObjectConcurrentOpenHashMap<>(initialCapacity, LOAD_FACTOR) :
-                new Int2ObjectLinkedOpenCustomHashMap<>(initialCapacity, LOAD_FACTOR, IntStrategy.NORMAL);
+    /**
+     * @param similarityThreshold the estimated Jaccard similarity, in (0, 1], two notebooks need to reach for the
+     *                            older one to be treated as a previous version of the newer one, or
+     *                            {@link #NO_SIMILARITY_MATCHING} to only match pages exactly
+     */
+    public PageContentIndex(int initialCapacity, double similarityThreshold) throws IllegalArgumentException {
+        this(initialCapacity, similarityThreshold, null, null);
+    }
 
-        emptyClusters = isConcurrent ?
-                Collections.synchronizedList(new ArrayList<>()) :
-                new ArrayList<>();
+    /**
+     * @param versionArchive where every indexed document is stored as a version, or {@code null} to keep no history
+     * @param featureFeed    where the features of new pages are appended, or {@code null} to skip the feed
+     */
+    public PageContentIndex(int initialCapacity, double similarityThreshold,
+                            @Nullable PageVersionArchive versionArchive,
+                            @Nullable PageFeatureFeed featureFeed) throws IllegalArgumentException {
+        pendingDocuments = new ConcurrentLinkedQueue<>();
+        pageGraph = new PageGraph(initialCapacity);
+        similarityIndex = similarityThreshold == NO_SIMILARITY_MATCHING ?
+                null :
+                new NotebookSimilarityIndex(similarityThreshold);
+        this.versionArchive = versionArchive;
+        this.featureFeed = featureFeed;
+        emptyPageCount = 0;
     }
 
     public void addDocument(@NonNull String absolutePath, @NonNull PDPageTree pages)
@@ -69,7 +88,7 @@ public final class PageContentIndex {
         List<GraphicsCluster> successfulClusters = new ArrayList<>();
         for (var page : pages) {
             try {
-                var cluster = new GraphicsCluster(absolutePath, pageNumber, page.getAnnotations());
+                var cluster = new GraphicsCluster(pageNumber, page.getAnnotations());
                 successfulClusters.add(cluster);
             } catch (IOException e) {
                 log.warn("{} Page {} Issue: {}", absolutePath, pageNumber, e.getMessage());
@@ -81,105 +100,78 @@ public final class PageContentIndex {
             pageNumber++;
         }
 
-        GraphicsCluster previousCluster = null;
-
-        for (var cluster : successfulClusters) {
-            int hash = cluster.getClusterHash();
+        var fingerprint = new DocumentFingerprint(absolutePath, List.copyOf(successfulClusters));
 
-            if (cluster.hasEmptyClusterHash()) {
-                emptyClusters.add(cluster);
-            } else if (!indexMap.containsKey(hash)) {
-                if (previousCluster != null) {
-                    previousCluster.linkClusters(cluster);
-                }
-
-                indexMap.put(hash, cluster);
-                previousCluster = cluster;
-            } else {
-                //Same hash means that the page content is the same
-                var insertedCluster = indexMap.get(hash);
-
-                if (previousCluster != null) {
-                    previousCluster.linkClusters(insertedCluster);
-                }
-                insertedCluster.addNewPathsFromCluster(cluster);
-                previousCluster = insertedCluster;
-            }
+        //The pages are only readable while the document is open, so both stages run right away
+        if (versionArchive != null) {
+            versionArchive.storeVersion(fingerprint, pages);
         }
-    }
-
-    public Stream<String> streamOlderDocVersions() {
-        var startingNodes = indexMap.values()
-                .stream()
-                .filter(GraphicsCluster::isStartingNode)
-                .filter(PageContentIndex::documentHasDetectedChanges)
-                .toList();
-
-        if (startingNodes.isEmpty()) {
-            log.trace("No duplicate indexes found");
-            return Stream.empty();
+        if (featureFeed != null) {
+            featureFeed.appendNewPages(fingerprint, pages);
         }
 
-        log.trace("Remaining Clusters: {}", startingNodes);
-
-        var totalGraphString = startingNodes.stream()
-                .map(DAGStringGenerator::generateGraphString)
-                .collect(Collectors.joining());
+        pendingDocuments.add(fingerprint);
+    }
 
-        log.trace(totalGraphString);
+    private void mergePendingDocuments() {
+        List<DocumentFingerprint> batch = new ArrayList<>();
+        DocumentFingerprint next;
+        while ((next = pendingDocuments.poll()) != null) {
+            batch.add(next);
+        }
 
-        return startingNodes.stream()
-                .map(PageContentIndex::convertClusterChain)
-                .filter(DuplicateClusterResult::hasYoungestCitation)
-                .flatMap(DuplicateClusterResult::streamOlderCitationNames);
+        //The queue order depends on which worker finished first, the sorted order doesn't
+        batch.sort(DocumentFingerprint.MERGE_ORDER);
+        batch.forEach(this::mergeDocument);
     }
 
-    private static DuplicateClusterResult convertClusterChain(GraphicsCluster startingNode) {
-        return startingNode.streamCitations().collect(Collectors.teeing(
-                Collectors.maxBy(GraphicsCluster.PageCitation::compareTo),
-                Collectors.groupingBy(GraphicsCluster.PageCitation::getAbsolutePath),
-                DuplicateClusterResult::ofOptionalCitation
-        ));
-    }
+    private void mergeDocument(DocumentFingerprint document) {
+        int pathId = pageGraph.internPath(document.absolutePath());
+        int previousClusterId = PageGraph.NONE;
+        if (similarityIndex != null) {
+            similarityIndex.addDocument(pathId, document.streamContentTokens());
+        }
 
-    private static boolean documentHasDetectedChanges(@NonNull GraphicsCluster cluster) {
-        Queue<GraphicsCluster> queue = new ArrayDeque<>();
-        queue.add(cluster);
-        while (!queue.isEmpty()) {
-            var next = queue.poll();
-            if (next.hasMultipleConnections()) {
-                return true;
+        for (var cluster : document.pages()) {
+            if (cluster.hasEmptyClusterHash()) {
+                emptyPageCount++;
+                continue;
             }
 
-            queue.addAll(next.getOutgoingNodes());
-        }
+            //Same hash means that the page content is the same, so the graph hands back the existing cluster
+            int clusterId = pageGraph.addPage(cluster.getClusterHash(), pathId,
+                    cluster.getPageNumber(), cluster.getLatestModTime());
 
-        return false;
-    }
-
-    private record DuplicateClusterResult(@Nullable GraphicsCluster.PageCitation youngestCitation,
-                                          @NonNull Map<String, List<GraphicsCluster.PageCitation>> documentVersions) {
-        private boolean hasYoungestCitation() {
-            if (youngestCitation == null) {
-                log.trace("Youngest citation undetermined for {}", documentVersions);
+            if (previousClusterId != PageGraph.NONE) {
+                pageGraph.linkClusters(previousClusterId, clusterId);
             }
-
-            return youngestCitation != null;
+            previousClusterId = clusterId;
         }
+    }
 
-        private Stream<String> streamOlderCitationNames() {
-            if (youngestCitation != null) {
-                return documentVersions.keySet()
-                        .stream()
-                        .filter(path -> !path.equals(youngestCitation.getAbsolutePath()));
-            }
+    public synchronized Stream<String> streamOlderDocVersions() {
+        mergePendingDocuments();
+        var versionGroups = LineageAnalysis.groupChangedDocuments(pageGraph, similarityIndex);
+
+        if (versionGroups.isEmpty()) {
+            log.trace("No duplicate indexes found");
             return Stream.empty();
         }
 
-        @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-        private static DuplicateClusterResult ofOptionalCitation(@NotNull Optional<GraphicsCluster.PageCitation> pageOpt,
-                                                                 Map<String, List<GraphicsCluster.PageCitation>> documentVersions) {
-            return new DuplicateClusterResult(pageOpt.orElse(null), documentVersions);
-        }
+        log.trace("Version Groups: {} - Empty Pages: {}", versionGroups, emptyPageCount);
+
+        return versionGroups.stream()
+                .map(LineageAnalysis.VersionGroup::olderPaths)
+                .flatMap(List::stream);
+    }
+
+    /**
+     * Writes the page graph to a Graphviz DOT file for debugging. This is only done when asked for,
+     * so normal runs never pay for walking the graph.
+     */
+    public synchronized void exportGraph(@NonNull File dotFile) throws IOException {
+        mergePendingDocuments();
+        GraphvizExporter.export(pageGraph, dotFile);
+        log.info("Page graph of {} cluster(s) exported to {}", pageGraph.clusterCount(), dotFile);
     }
 }
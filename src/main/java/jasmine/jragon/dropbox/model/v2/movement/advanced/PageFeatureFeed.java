@@ -0,0 +1,168 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import jasmine.jragon.pdf.PDFEditor;
+import jasmine.jragon.pdf.page.PDFHighlighter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@code PageFeatureFeed} is the hand-off to the Handwriting Note Indexer. It's an append-only JSON Lines file
+ * with one record per page: the page fingerprint, the bounding box of every annotation, the modification time,
+ * the template ID from the onyx tag and the path of the document it came from.
+ * <p>
+ * The fingerprint is the same SHA-256 page key the {@link PageVersionArchive} stores pages under, since the 32-bit
+ * cluster hash collides often enough at archive scale to keep a new page out of the feed for good. The fingerprints
+ * already in the feed are loaded when it's opened, so a page only gets written the first time its content is seen. Every run only appends the pages that changed since the last one, and the indexer can
+ * tail the file instead of reprocessing the archive.
+ */
+@Slf4j
+public final class PageFeatureFeed {
+    public static final String DEFAULT_FEED_FILE = "page-features.jsonl";
+
+    private static final String FINGERPRINT_KEY = "fingerprint",
+            PATH_KEY = "path",
+            PAGE_KEY = "page",
+            MOD_TIME_KEY = "modTime",
+            TEMPLATE_ID_KEY = "templateId",
+            BOUNDING_BOXES_KEY = "boundingBoxes";
+
+    private final File feedFile;
+    private final Set<String> knownFingerprints;
+
+    public PageFeatureFeed(@NonNull File feedFile) throws IOException {
+        this.feedFile = feedFile;
+        knownFingerprints = ConcurrentHashMap.newKeySet();
+
+        if (feedFile.exists()) {
+            loadKnownFingerprints();
+        }
+        log.debug("Feature feed opened with {} known page(s)", knownFingerprints.size());
+    }
+
+    private void loadKnownFingerprints() throws IOException {
+        try (var reader = Files.newBufferedReader(feedFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                try {
+                    knownFingerprints.add(new JSONObject(line).getString(FINGERPRINT_KEY));
+                } catch (JSONException e) {
+                    //A run that died mid-write can leave a partial last line behind, the page is written again later
+                    log.trace("Skipping malformed feed record: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a record for every page of the document that has something drawn on it and isn't in the feed yet.
+     * Problems are only logged, since the feed should never stop a document from being indexed.
+     */
+    void appendNewPages(@NonNull DocumentFingerprint document, @NonNull PDPageTree pages) {
+        List<String> records = new ArrayList<>();
+
+        int index = 0;
+        for (var page : pages) {
+            var cluster = document.pages().get(index++);
+            if (cluster.hasEmptyClusterHash()) {
+                continue;
+            }
+
+            String fingerprint;
+            try {
+                fingerprint = PageVersionArchive.toPageKey(page);
+            } catch (IOException e) {
+                log.warn("{} Page {} unreadable: {}", document.absolutePath(), cluster.getPageNumber(),
+                        e.getMessage());
+                continue;
+            }
+
+            //Claimed before writing, so 2 workers with the same new page don't both emit it
+            if (!knownFingerprints.add(fingerprint)) {
+                continue;
+            }
+
+            try {
+                records.add(createRecord(fingerprint, document.absolutePath(), cluster, page).toString());
+            } catch (IOException e) {
+                knownFingerprints.remove(fingerprint);
+                log.warn("{} Page {} features unavailable: {}", document.absolutePath(),
+                        cluster.getPageNumber(), e.getMessage());
+            }
+        }
+
+        if (records.isEmpty()) {
+            return;
+        }
+
+        try {
+            appendRecords(records);
+            log.debug("{} - {} new page(s) added to the feature feed", document.absolutePath(), records.size());
+        } catch (IOException e) {
+            log.warn("{} could not be added to the feature feed: {}", document.absolutePath(), e.getMessage());
+        }
+    }
+
+    private static JSONObject createRecord(String fingerprint, String absolutePath,
+                                           GraphicsCluster cluster, PDPage page) throws IOException {
+        var boundingBoxes = new JSONArray();
+        for (var annotation : page.getAnnotations()) {
+            var rectangle = annotation.getRectangle();
+            if (rectangle != null) {
+                boundingBoxes.put(new JSONArray()
+                        .put(rectangle.getLowerLeftX())
+                        .put(rectangle.getLowerLeftY())
+                        .put(rectangle.getUpperRightX())
+                        .put(rectangle.getUpperRightY()));
+            }
+        }
+
+        var templateId = Optional.ofNullable(page.getResources())
+                .flatMap(PDFHighlighter::getToImageOnyxTag)
+                .map(PDFEditor::extractImageIdValue)
+                .filter(OptionalInt::isPresent)
+                .map(OptionalInt::getAsInt)
+                //The editor's marker for IDs that aren't numbers, which the indexer has no use for
+                .filter(id -> id != Integer.MIN_VALUE)
+                .map(id -> (Object) id)
+                .orElse(JSONObject.NULL);
+
+        return new JSONObject()
+                .put(FINGERPRINT_KEY, fingerprint)
+                .put(PATH_KEY, absolutePath)
+                .put(PAGE_KEY, cluster.getPageNumber())
+                .put(MOD_TIME_KEY, cluster.getLatestModTime().toString())
+                .put(TEMPLATE_ID_KEY, templateId)
+                .put(BOUNDING_BOXES_KEY, boundingBoxes);
+    }
+
+    private synchronized void appendRecords(List<String> records) throws IOException {
+        try (var writer = Files.newBufferedWriter(feedFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (var record : records) {
+                writer.write(record);
+                writer.newLine();
+            }
+        }
+    }
+}
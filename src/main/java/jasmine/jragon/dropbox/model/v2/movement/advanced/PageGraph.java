@@ -0,0 +1,259 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import speiger.src.collections.ints.maps.impl.hash.Int2IntOpenHashMap;
+import speiger.src.collections.ints.maps.interfaces.Int2IntMap;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code PageGraph} is the columnar layout of the page graph behind the {@link PageContentIndex}.
+ * Every distinct page fingerprint becomes a cluster ID, which is an index into a handful of primitive arrays.
+ * <ul>
+ *     <li>Edges are kept as a forward-star list ({@link #firstEdge}, {@link #nextEdge}, {@link #edgeTarget})</li>
+ *     <li>Citations are packed records of path ID, page number and mod time chained off their cluster</li>
+ *     <li>Document paths are interned once, so a citation only holds an int that points to its path</li>
+ * </ul>
+ * Cluster IDs are handed out in insertion order, so iterating from 0 to {@link #clusterCount()} keeps the
+ * same order the linked hash map used to give us.
+ * <p>
+ * This class is not thread-safe. The {@link PageContentIndex} is in charge of guarding it.
+ */
+final class PageGraph {
+    static final int NONE = -1;
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private final Int2IntMap clusterIds;
+    private final Map<String, Integer> pathIds;
+    private final List<String> paths;
+    private int[] pathAnchor;
+
+    private int clusterCount;
+    private int[] clusterHashes;
+    private int[] outDegree;
+    private int[] firstEdge;
+    private int[] firstCitation;
+    private int[] citationCount;
+
+    private int edgeCount;
+    private int[] edgeTarget;
+    private int[] nextEdge;
+
+    private int totalCitations;
+    private int[] citationPath;
+    private int[] citationPage;
+    private long[] citationModTime;
+    private int[] nextCitation;
+
+    PageGraph(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, MINIMUM_CAPACITY);
+        clusterIds = new Int2IntOpenHashMap(capacity, 0.99f);
+        pathIds = new HashMap<>();
+        paths = new ArrayList<>();
+        pathAnchor = new int[MINIMUM_CAPACITY];
+
+        clusterHashes = new int[capacity];
+        outDegree = new int[capacity];
+        firstEdge = new int[capacity];
+        firstCitation = new int[capacity];
+        citationCount = new int[capacity];
+
+        edgeTarget = new int[capacity];
+        nextEdge = new int[capacity];
+
+        citationPath = new int[capacity];
+        citationPage = new int[capacity];
+        citationModTime = new long[capacity];
+        nextCitation = new int[capacity];
+    }
+
+    int internPath(@NonNull String absolutePath) {
+        var id = pathIds.get(absolutePath);
+        if (id != null) {
+            return id;
+        }
+
+        int newId = paths.size();
+        paths.add(absolutePath);
+        pathIds.put(absolutePath, newId);
+
+        if (newId == pathAnchor.length) {
+            pathAnchor = Arrays.copyOf(pathAnchor, newId << 1);
+        }
+        pathAnchor[newId] = NONE;
+        return newId;
+    }
+
+    /**
+     * Finds or creates the cluster for the page fingerprint and cites the page on it.
+     *
+     * @return the cluster ID the page belongs to
+     */
+    int addPage(int clusterHash, int pathId, int pageNumber, @NonNull LocalDateTime modTime) {
+        int clusterId = clusterIds.getOrDefault(clusterHash, NONE);
+
+        if (clusterId == NONE) {
+            clusterId = createCluster(clusterHash);
+        }
+
+        if (pathAnchor[pathId] == NONE) {
+            pathAnchor[pathId] = clusterId;
+        }
+
+        addCitation(clusterId, pathId, pageNumber, modTime.toEpochSecond(ZoneOffset.UTC));
+        return clusterId;
+    }
+
+    private int createCluster(int clusterHash) {
+        if (clusterCount == clusterHashes.length) {
+            int capacity = clusterCount << 1;
+            clusterHashes = Arrays.copyOf(clusterHashes, capacity);
+            outDegree = Arrays.copyOf(outDegree, capacity);
+            firstEdge = Arrays.copyOf(firstEdge, capacity);
+            firstCitation = Arrays.copyOf(firstCitation, capacity);
+            citationCount = Arrays.copyOf(citationCount, capacity);
+        }
+
+        int clusterId = clusterCount++;
+        clusterHashes[clusterId] = clusterHash;
+        firstEdge[clusterId] = NONE;
+        firstCitation[clusterId] = NONE;
+        clusterIds.put(clusterHash, clusterId);
+        return clusterId;
+    }
+
+    private void addCitation(int clusterId, int pathId, int pageNumber, long modTime) {
+        //Citations were held in a set ordered by mod time, so a repeated mod time on a cluster is a duplicate
+        for (int c = firstCitation[clusterId]; c != NONE; c = nextCitation[c]) {
+            if (citationModTime[c] == modTime) {
+                return;
+            }
+        }
+
+        if (totalCitations == citationPath.length) {
+            int capacity = totalCitations << 1;
+            citationPath = Arrays.copyOf(citationPath, capacity);
+            citationPage = Arrays.copyOf(citationPage, capacity);
+            citationModTime = Arrays.copyOf(citationModTime, capacity);
+            nextCitation = Arrays.copyOf(nextCitation, capacity);
+        }
+
+        int citation = totalCitations++;
+        citationPath[citation] = pathId;
+        citationPage[citation] = pageNumber;
+        citationModTime[citation] = modTime;
+        nextCitation[citation] = firstCitation[clusterId];
+        firstCitation[clusterId] = citation;
+        citationCount[clusterId]++;
+    }
+
+    void linkClusters(int from, int to) {
+        for (int e = firstEdge[from]; e != NONE; e = nextEdge[e]) {
+            if (edgeTarget[e] == to) {
+                return;
+            }
+        }
+
+        if (edgeCount == edgeTarget.length) {
+            int capacity = edgeCount << 1;
+            edgeTarget = Arrays.copyOf(edgeTarget, capacity);
+            nextEdge = Arrays.copyOf(nextEdge, capacity);
+        }
+
+        int edge = edgeCount++;
+        edgeTarget[edge] = to;
+        nextEdge[edge] = firstEdge[from];
+        firstEdge[from] = edge;
+        outDegree[from]++;
+    }
+
+    @Contract(pure = true)
+    int clusterCount() {
+        return clusterCount;
+    }
+
+    @Contract(pure = true)
+    int getClusterHash(int clusterId) {
+        return clusterHashes[clusterId];
+    }
+
+    @Contract(pure = true)
+    boolean hasMultipleConnections(int clusterId) {
+        return citationCount[clusterId] > 1 || outDegree[clusterId] > 1;
+    }
+
+    @Contract(pure = true)
+    int firstEdge(int clusterId) {
+        return firstEdge[clusterId];
+    }
+
+    @Contract(pure = true)
+    int nextEdge(int edge) {
+        return nextEdge[edge];
+    }
+
+    @Contract(pure = true)
+    int edgeTarget(int edge) {
+        return edgeTarget[edge];
+    }
+
+    @Contract(pure = true)
+    int firstCitation(int clusterId) {
+        return firstCitation[clusterId];
+    }
+
+    @Contract(pure = true)
+    int nextCitation(int citation) {
+        return nextCitation[citation];
+    }
+
+    @Contract(pure = true)
+    int citationPathId(int citation) {
+        return citationPath[citation];
+    }
+
+    @Contract(pure = true)
+    long citationModTime(int citation) {
+        return citationModTime[citation];
+    }
+
+    @Contract(pure = true)
+    int pathCount() {
+        return paths.size();
+    }
+
+    @Contract(pure = true)
+    @NotNull String path(int pathId) {
+        return paths.get(pathId);
+    }
+
+    /**
+     * @return the first cluster cited by the document, or {@link #NONE} when every page of it was blank
+     */
+    @Contract(pure = true)
+    int pathAnchorCluster(int pathId) {
+        return pathAnchor[pathId];
+    }
+
+    /**
+     * Unpacks a citation record into a {@link GraphicsCluster.PageCitation} for the lineage results.
+     * The path handed out is the interned instance, so no new strings are created here.
+     */
+    @Contract("_ -> new")
+    @NotNull GraphicsCluster.PageCitation citation(int citation) {
+        return new GraphicsCluster.PageCitation(
+                paths.get(citationPath[citation]),
+                citationPage[citation],
+                LocalDateTime.ofEpochSecond(citationModTime[citation], 0, ZoneOffset.UTC)
+        );
+    }
+}
@@ -0,0 +1,255 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code PageVersionArchive} is a local, content-addressed history of every notebook version that goes through
+ * the {@link PageContentIndex}. Every unique page is stored once as a single-page PDF named after the SHA-256 of
+ * its content, and every version is one line in the manifest that lists its page keys in order. Storing a new
+ * version only writes the pages that changed, and any version can be rebuilt from its page keys on demand, even
+ * after the advanced moves removed it from Dropbox and Mega.
+ * <p>
+ * The key covers everything that's drawn: the page size, its content streams, the XObjects they draw and the
+ * appearance of every annotation. A saved PDF gets a new ID and new object numbers every time, so the bytes of the
+ * saved page can't be the key. Blank pages on the same template share a key, since they are the same page.
+ */
+@Slf4j
+public final class PageVersionArchive {
+    public static final String DEFAULT_ARCHIVE_DIRECTORY = "version-archive";
+
+    private static final String PAGE_DIRECTORY = "pages";
+    private static final String MANIFEST_FILE = "versions.txt";
+    private static final String PAGE_EXTENSION = ".pdf";
+
+    private final File pageDirectory;
+    private final File manifestFile;
+    private final AtomicInteger versionCounter;
+
+    public PageVersionArchive(@NonNull File archiveDirectory) throws IOException {
+        pageDirectory = new File(archiveDirectory, PAGE_DIRECTORY);
+        manifestFile = new File(archiveDirectory, MANIFEST_FILE);
+        versionCounter = new AtomicInteger();
+
+        Files.createDirectories(pageDirectory.toPath());
+    }
+
+    /**
+     * Stores every page that isn't in the archive yet and records the version in the manifest.
+     * Problems are only logged, since the archive should never stop a document from being indexed.
+     */
+    void storeVersion(@NonNull DocumentFingerprint document, @NonNull PDPageTree pages) {
+        var pageKeys = new ArrayList<String>(document.pages().size());
+        int newPageCount = 0;
+
+        try {
+            for (var page : pages) {
+                var pageKey = toPageKey(page);
+                pageKeys.add(pageKey);
+
+                var pageFile = createPageFile(pageKey);
+                if (pageFile.exists()) {
+                    continue;
+                }
+
+                //Written to a temporary file first, so 2 workers with the same new page can't leave a broken file
+                var tempFile = File.createTempFile(pageKey, PAGE_EXTENSION, pageDirectory);
+                try {
+                    //Saved through a stream, since PDFBox warns about every save over a file that's already there
+                    try (var singlePage = new PDDocument();
+                         var output = Files.newOutputStream(tempFile.toPath())) {
+                        singlePage.importPage(page);
+                        singlePage.save(output);
+                    }
+
+                    //Another worker moving the same page in first only means it's replaced by the same content
+                    Files.move(tempFile.toPath(), pageFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    newPageCount++;
+                } finally {
+                    Files.deleteIfExists(tempFile.toPath());
+                }
+            }
+
+            var versionId = appendToManifest(document.absolutePath(), pageKeys);
+            log.debug("{} archived as version {} - {} new page(s)", document.absolutePath(), versionId, newPageCount);
+        } catch (IOException e) {
+            log.warn("{} could not be archived: {}", document.absolutePath(), e.getMessage());
+        }
+    }
+
+    private synchronized String appendToManifest(String absolutePath, List<String> pageKeys) throws IOException {
+        var versionId = System.currentTimeMillis() + "-" + versionCounter.incrementAndGet();
+
+        try (var writer = Files.newBufferedWriter(manifestFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(versionId + ',' + absolutePath + ',' + String.join(" ", pageKeys));
+            writer.newLine();
+        }
+        return versionId;
+    }
+
+    public synchronized @NotNull @Unmodifiable List<ArchivedVersion> listVersions(@NonNull String absolutePath) {
+        return readManifest().stream()
+                .filter(version -> version.absolutePath().equals(absolutePath))
+                .toList();
+    }
+
+    public synchronized @NotNull Optional<ArchivedVersion> findVersion(@NonNull String versionId) {
+        return readManifest().stream()
+                .filter(version -> version.versionId().equals(versionId))
+                .findFirst();
+    }
+
+    private List<ArchivedVersion> readManifest() {
+        if (!manifestFile.exists()) {
+            return List.of();
+        }
+
+        try (var reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            return reader.lines()
+                    .filter(line -> !line.isBlank())
+                    .map(line -> line.split(",", 3))
+                    .filter(array -> array.length == 3)
+                    .map(array -> new ArchivedVersion(
+                            array[0], array[1],
+                            List.of(array[2].split(" "))
+                    ))
+                    .toList();
+        } catch (IOException e) {
+            log.warn("Archive manifest read error", e);
+            return List.of();
+        }
+    }
+
+    /**
+     * Puts the version back together from its archived pages.
+     *
+     * @return whether the rebuilt PDF was written to the output file
+     */
+    public boolean rebuildVersion(@NonNull String versionId, @NonNull File outputFile) {
+        var versionOpt = findVersion(versionId);
+
+        if (versionOpt.isEmpty()) {
+            log.warn("Version {} is not in the archive", versionId);
+            return false;
+        }
+
+        List<PDDocument> sourcePages = new ArrayList<>();
+        try (var output = new PDDocument()) {
+            for (var pageKey : versionOpt.get().pageKeys()) {
+                var sourcePage = Loader.loadPDF(createPageFile(pageKey));
+                sourcePages.add(sourcePage);
+                output.importPage(sourcePage.getPage(0));
+            }
+
+            output.save(outputFile);
+            log.info("Version {} of {} rebuilt to {}", versionId, versionOpt.get().absolutePath(), outputFile);
+            return true;
+        } catch (IOException e) {
+            log.error("Version {} rebuild error: {}", versionId, e.getMessage());
+            return false;
+        } finally {
+            closeAll(sourcePages);
+        }
+    }
+
+    private static void closeAll(List<PDDocument> documents) {
+        for (var document : documents) {
+            try {
+                document.close();
+            } catch (IOException e) {
+                log.trace("Archived page close issue: {}", e.getMessage());
+            }
+        }
+    }
+
+    private File createPageFile(String pageKey) {
+        return new File(pageDirectory, pageKey + PAGE_EXTENSION);
+    }
+
+    /**
+     * @return the SHA-256 of what's drawn on the page, which the {@link PageFeatureFeed} keys its records by too
+     */
+    static String toPageKey(PDPage page) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(page.getMediaBox().toString().getBytes(StandardCharsets.UTF_8));
+        if (page.hasContents()) {
+            try (var contents = page.getContents()) {
+                digestStream(digest, contents);
+            }
+        }
+
+        var resources = page.getResources();
+        var xObjects = resources == null ? null : resources.getCOSObject().getCOSDictionary(COSName.XOBJECT);
+        if (xObjects != null) {
+            for (var name : xObjects.keySet()) {
+                digest.update(name.getName().getBytes(StandardCharsets.UTF_8));
+                if (xObjects.getDictionaryObject(name) instanceof COSStream xObject) {
+                    try (var xObjectStream = xObject.createInputStream()) {
+                        digestStream(digest, xObjectStream);
+                    }
+                }
+            }
+        }
+
+        for (var annotation : page.getAnnotations()) {
+            digest.update(String.valueOf(annotation.getRectangle()).getBytes(StandardCharsets.UTF_8));
+            var appearance = annotation.getAppearance();
+            var normalAppearance = appearance == null ? null : appearance.getCOSObject().getCOSStream(COSName.N);
+            if (normalAppearance != null) {
+                try (var appearanceStream = normalAppearance.createInputStream()) {
+                    digestStream(digest, appearanceStream);
+                }
+            }
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void digestStream(MessageDigest digest, InputStream stream) throws IOException {
+        var buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        //Keeps the end of one stream from running into the start of the next
+        digest.update((byte) 0);
+    }
+
+    public record ArchivedVersion(@NonNull String versionId, @NonNull String absolutePath,
+                                  @NonNull @Unmodifiable List<String> pageKeys) {
+        @Override
+        public @NotNull String toString() {
+            return String.format("%s - %s (%d Page(s))", versionId, absolutePath, pageKeys.size());
+        }
+    }
+}
@@ -1,45 +1,19 @@
 package jasmine.jragon.dropbox.model.v2.movement.simple;
 
 import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
-import jasmine.jragon.dropbox.model.v2.IntermediateFile;
+import jasmine.jragon.dropbox.model.v2.PathSegmentDictionary;
 import lombok.RequiredArgsConstructor;
 import org.jetbrains.annotations.NotNull;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Objects;
 import java.util.Optional;
-import java.util.Set;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 @RequiredArgsConstructor
 public final class FileMove {
-    private static final Set<String> BASE_FILE_DIRECTORY_FOLDERS;
-
     private transient int $hashcode = 0;
     private final DbxLongListFileInfo firstFile, secondFile;
 
-    static {
-        //Fetches the base paths from the Intermediate File class
-        //All of them are marked as static final with no access modifier
-
-        BASE_FILE_DIRECTORY_FOLDERS = Stream.of(IntermediateFile.class)
-                .map(Class::getDeclaredFields)
-                .flatMap(Arrays::stream)
-                .filter(FileMove::isPackageAccessStringConstant)
-                .peek(field -> field.setAccessible(true))
-                .map(FileMove::fetchValue)
-                .filter(Objects::nonNull)
-                .map(o -> (String)o)
-                .map(path -> path.substring(1))
-                .map(path -> path.split("/"))
-                .flatMap(Arrays::stream)
-                .collect(Collectors.toUnmodifiableSet());
-    }
-
     public static boolean isPackageAccessStringConstant(Field field) {
         int modifiers = field.getModifiers();
         int notPackageLevelAccess = Modifier.PUBLIC | Modifier.PRIVATE | Modifier.PROTECTED;
@@ -55,41 +29,75 @@ public final class FileMove {
         }
     }
 
+    /**
+     * Folders are compared by their position under the base directory, the same way the
+     * {@link jasmine.jragon.dropbox.model.v2.DirectoryTrie} lines paths up. Apart from the base directory, the
+     * paths have to be the same, or differ by one folder put in, or by one folder renamed at the same level.
+     */
     public boolean isValidMove() {
         if (firstFile.equals(secondFile)) {
             return false;
         }
 
-        var firstDirectoryList = firstFile.getDropboxDirectoryList();
-        var secondDirectoryList = secondFile.getDropboxDirectoryList();
-        var firstDirectorClone = new ArrayList<>(firstDirectoryList);
-        var secondDirectoryClone = new ArrayList<>(secondDirectoryList);
-        firstDirectorClone.removeAll(BASE_FILE_DIRECTORY_FOLDERS);
-        secondDirectoryClone.removeAll(BASE_FILE_DIRECTORY_FOLDERS);
-        firstDirectorClone.removeAll(secondDirectoryList);
-        secondDirectoryClone.removeAll(firstDirectoryList);
-
-        if ((firstDirectorClone.size() == 1 && secondDirectoryClone.isEmpty()) ||
-                (firstDirectorClone.isEmpty() && secondDirectoryClone.size() == 1)) {
-            return true;
-        } else if (firstDirectorClone.size() == 1 && secondDirectoryClone.size() == 1) {
-            //This signifies a 'move' where a directory was renamed somewhere along the absolute path 'chain'
-            var firstDiff = firstDirectorClone.get(0);
-            var secondDiff = secondDirectoryClone.get(0);
-
-            //One diff MUST contain the other diff as a substring of the new directory
-            //This is enforced as to not confuse
-            if (!firstDiff.toLowerCase().contains(secondDiff.toLowerCase()) &&
-                    !secondDiff.toLowerCase().contains(firstDiff.toLowerCase())) {
-                return false;
+        int firstLength = firstFile.getDirectoryDepth() - firstFile.getBaseSegmentCount();
+        int secondLength = secondFile.getDirectoryDepth() - secondFile.getBaseSegmentCount();
+
+        if (firstLength == secondLength + 1) {
+            return hasOneFolderPutIn(firstFile, secondFile);
+        } else if (secondLength == firstLength + 1) {
+            return hasOneFolderPutIn(secondFile, firstFile);
+        } else if (firstLength != secondLength) {
+            return false;
+        }
+
+        int renamedLevel = -1;
+        for (int level = 0; level < firstLength; level++) {
+            if (relativeFolder(firstFile, level) != relativeFolder(secondFile, level)) {
+                if (renamedLevel != -1) {
+                    return false;
+                }
+                renamedLevel = level;
             }
+        }
+        if (renamedLevel == -1) {
+            return firstFile.haveSameSubdirectory(secondFile);
+        }
+
+        //This signifies a 'move' where a directory was renamed somewhere along the absolute path 'chain'
+        //One name MUST contain the other as a substring, as to not confuse unrelated folders
+        var firstName = PathSegmentDictionary.valueOf(relativeFolder(firstFile, renamedLevel));
+        var secondName = PathSegmentDictionary.valueOf(relativeFolder(secondFile, renamedLevel));
+        return containsIgnoreCase(firstName, secondName) || containsIgnoreCase(secondName, firstName);
+    }
 
-            //This shows that the different directories are at the same level
-            return firstDirectoryList.size() == secondDirectoryList.size() &&
-                    firstDirectoryList.indexOf(firstDiff) == secondDirectoryList.indexOf(secondDiff);
+    /**
+     * @return whether the longer path is the shorter one with a single folder put in somewhere
+     */
+    private static boolean hasOneFolderPutIn(DbxLongListFileInfo longer, DbxLongListFileInfo shorter) {
+        int shorterLength = shorter.getDirectoryDepth() - shorter.getBaseSegmentCount();
+        int level = 0;
+        while (level < shorterLength && relativeFolder(longer, level) == relativeFolder(shorter, level)) {
+            level++;
+        }
+        for (; level < shorterLength; level++) {
+            if (relativeFolder(longer, level + 1) != relativeFolder(shorter, level)) {
+                return false;
+            }
         }
+        return true;
+    }
+
+    private static int relativeFolder(DbxLongListFileInfo file, int level) {
+        return file.getDirectorySegmentId(file.getBaseSegmentCount() + level);
+    }
 
-        return firstFile.haveSameSubdirectory(secondFile);
+    private static boolean containsIgnoreCase(String text, String part) {
+        for (int i = 0; i + part.length() <= text.length(); i++) {
+            if (text.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public Optional<DbxLongListFileInfo> getOlderFile() {
@@ -114,6 +122,12 @@ public final class FileMove {
         return Optional.empty();
     }
 
+    public Optional<DbxLongListFileInfo> getNewerFile() {
+        return getOlderFile().map(olderFile -> olderFile == firstFile ?
+                secondFile :
+                firstFile);
+    }
+
     @Override
     public @NotNull String toString() {
         if (!isValidMove()) {
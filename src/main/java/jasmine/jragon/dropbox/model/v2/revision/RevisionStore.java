@@ -0,0 +1,383 @@
+package jasmine.jragon.dropbox.model.v2.revision;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * The {@code RevisionStore} keeps the revision of every file that made it to Mega Cloud, so the next run only
+ * transfers what changed. Every change is appended to a log as it happens, one record per line:
+ * <pre>
+ * T	hash	path   the revision at the path was transferred
+ * F	hash	path   the transfer failed, so neither the path nor the revision counts as transferred
+ * R	hash	path   the path is gone from Dropbox
+ * </pre>
+ * The log is replayed into a hash index and a path index when the store opens. Once the log holds more than
+ * {@value COMPACTION_FACTOR} times as many records as there are live revisions, it's rewritten with only the live
+ * ones. The rewrite goes to a temporary file that replaces the log in one move, and a record cut short by a crash
+ * is skipped on replay, so no crash loses more than the record that was being written. A last line without its line
+ * break counts as cut short, however whole it looks, and a log with a broken record is rewritten before anything is
+ * appended to it, so a new record never lands on the end of a broken one.
+ */
+@Slf4j
+public final class RevisionStore implements Closeable {
+    public static final String DEFAULT_LOG_FILE = "revision-log.txt";
+
+    private static final char TRANSFERRED = 'T', FAILED = 'F', REMOVED = 'R';
+    private static final char SEPARATOR = '\t';
+    private static final int COMPACTION_FACTOR = 2;
+    /**
+     * Small logs aren't worth rewriting
+     */
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private final File logFile;
+    private final Map<String, String> pathByHash, hashByPath;
+    private BufferedWriter appender;
+    private int recordCount;
+
+    private RevisionStore(File logFile) {
+        this.logFile = logFile;
+        pathByHash = new HashMap<>();
+        hashByPath = new HashMap<>();
+    }
+
+    /**
+     * @throws IOException if the log can't be opened for appending. A log that can't be read is started over,
+     *                     which makes the next transfer a full one.
+     */
+    public static @NotNull RevisionStore open(@NonNull File logFile) throws IOException {
+        var store = new RevisionStore(logFile);
+        boolean isClean = !logFile.exists() || store.replay();
+
+        if (!isClean || store.isCompactionDue()) {
+            store.compact();
+        } else {
+            store.openAppender();
+        }
+
+        log.debug("{} revision(s) from {} record(s) in {}", store.pathByHash.size(), store.recordCount, logFile);
+        return store;
+    }
+
+    /**
+     * @return whether every record was whole
+     */
+    private boolean replay() {
+        int brokenRecords = 0;
+
+        try (var reader = new BufferedReader(new FileReader(logFile, StandardCharsets.UTF_8))) {
+            boolean isTerminated = endsWithLineBreak();
+            var line = reader.readLine();
+
+            while (line != null) {
+                var nextLine = reader.readLine();
+                if (nextLine == null && !isTerminated) {
+                    brokenRecords++;
+                    break;
+                }
+
+                if (replayRecord(line)) {
+                    recordCount++;
+                } else {
+                    brokenRecords++;
+                }
+                line = nextLine;
+            }
+        } catch (IOException e) {
+            log.warn("Revision log read error. Starting over: {}", e.getMessage());
+            pathByHash.clear();
+            hashByPath.clear();
+            return false;
+        }
+
+        if (brokenRecords > 0) {
+            log.warn("{} broken record(s) skipped in {}", brokenRecords, logFile);
+        }
+        return brokenRecords == 0;
+    }
+
+    /**
+     * @return whether the line was a whole record
+     */
+    private boolean replayRecord(String line) {
+        int hashEnd = line.indexOf(SEPARATOR, 2);
+        if (line.length() < 2 || line.charAt(1) != SEPARATOR || hashEnd < 0) {
+            return false;
+        }
+
+        var hash = line.substring(2, hashEnd);
+        var path = line.substring(hashEnd + 1);
+        switch (line.charAt(0)) {
+            case TRANSFERRED -> index(hash, path);
+            case FAILED, REMOVED -> unindex(hash, path);
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean endsWithLineBreak() throws IOException {
+        try (var file = new RandomAccessFile(logFile, "r")) {
+            if (file.length() == 0) {
+                return true;
+            }
+            file.seek(file.length() - 1);
+            return file.read() == '\n';
+        }
+    }
+
+    /**
+     * Takes in the {@code hash,path} lines of the revision list the log replaces
+     */
+    public synchronized void importRevisionList(@NonNull File revisionFile) throws IOException {
+        try (var reader = new BufferedReader(new FileReader(revisionFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.indexOf(',');
+                if (comma > 0) {
+                    index(line.substring(0, comma), line.substring(comma + 1));
+                }
+            }
+        }
+
+        compact();
+        log.info("{} revision(s) imported from {}", pathByHash.size(), revisionFile);
+    }
+
+    public synchronized boolean containsRevision(@NonNull String hash) {
+        return pathByHash.containsKey(hash);
+    }
+
+    /**
+     * @return the path the revision made it to Mega Cloud under
+     */
+    public synchronized @NotNull Optional<String> findTransferredPath(@NonNull String hash) {
+        return Optional.ofNullable(pathByHash.get(hash));
+    }
+
+    /**
+     * @return whether the revision made it to Mega Cloud under that very path
+     */
+    public synchronized boolean isTransferredAt(@NonNull String hash, @NonNull String path) {
+        return path.equals(pathByHash.get(hash));
+    }
+
+    public synchronized boolean isEmpty() {
+        return pathByHash.isEmpty();
+    }
+
+    /**
+     * @return every revision known right now, which stays the same while the store goes on changing
+     */
+    public synchronized @NotNull @Unmodifiable Set<String> copyRevisions() {
+        return Set.copyOf(pathByHash.keySet());
+    }
+
+    public synchronized void recordTransfer(@NonNull DbxLongListFileInfo file) {
+        var hash = file.getCurrentFileHash();
+        var path = file.toString();
+
+        if (!path.equals(pathByHash.get(hash)) || !hash.equals(hashByPath.get(path))) {
+            index(hash, path);
+            append(TRANSFERRED, hash, path);
+        }
+    }
+
+    /**
+     * A failed file doesn't count as transferred under any path, even if its revision was known under another one
+     */
+    public synchronized void recordFailure(@NonNull DbxLongListFileInfo file) {
+        var hash = file.getCurrentFileHash();
+        var path = file.toString();
+
+        if (pathByHash.containsKey(hash) || hashByPath.containsKey(path)) {
+            unindex(hash, path);
+            append(FAILED, hash, path);
+        }
+    }
+
+    /**
+     * Brings the store in line with a whole listing. A known revision under a new path is moved over to it, and
+     * every path within the scope that's no longer listed goes.
+     */
+    public synchronized void retainListing(@NonNull Collection<DbxLongListFileInfo> listing,
+                                           @NonNull Predicate<String> isInScope) {
+        Set<String> listedPaths = new HashSet<>();
+
+        for (var file : listing) {
+            if (file.isFolder()) {
+                continue;
+            }
+
+            listedPaths.add(file.toString());
+            if (pathByHash.containsKey(file.getCurrentFileHash())) {
+                recordTransfer(file);
+            }
+        }
+
+        var removedPaths = hashByPath.keySet()
+                .stream()
+                .filter(isInScope)
+                .filter(path -> !listedPaths.contains(path))
+                .toList();
+        for (var path : removedPaths) {
+            var hash = hashByPath.get(path);
+            unindex(hash, path);
+            append(REMOVED, hash, path);
+        }
+
+        if (!removedPaths.isEmpty()) {
+            log.debug("{} path(s) no longer listed", removedPaths.size());
+        }
+        compactIfDue();
+    }
+
+    /**
+     * Forgets every revision, so the next transfer is a full one
+     */
+    public synchronized void clear() {
+        pathByHash.clear();
+        hashByPath.clear();
+        compactQuietly();
+        log.info("Revision log cleared");
+    }
+
+    private void index(String hash, String path) {
+        var previousPath = pathByHash.put(hash, path);
+        if (previousPath != null && !previousPath.equals(path)) {
+            hashByPath.remove(previousPath);
+        }
+
+        var previousHash = hashByPath.put(path, hash);
+        if (previousHash != null && !previousHash.equals(hash)) {
+            pathByHash.remove(previousHash);
+        }
+    }
+
+    private void unindex(String hash, String path) {
+        var hashPath = pathByHash.remove(hash);
+        if (hashPath != null) {
+            hashByPath.remove(hashPath);
+        }
+
+        var pathHash = hashByPath.remove(path);
+        if (pathHash != null) {
+            pathByHash.remove(pathHash);
+        }
+    }
+
+    /**
+     * Flushed right away, so the record survives the process dying right after
+     */
+    private void append(char status, String hash, String path) {
+        if (appender == null) {
+            return;
+        }
+
+        try {
+            appender.write(status);
+            appender.write(SEPARATOR);
+            appender.write(hash);
+            appender.write(SEPARATOR);
+            appender.write(path);
+            appender.newLine();
+            appender.flush();
+            recordCount++;
+        } catch (IOException e) {
+            //The next run transfers the file again, which is all a lost record costs
+            log.warn("Revision log append error at {}: {}", path, e.getMessage());
+        }
+
+        compactIfDue();
+    }
+
+    private boolean isCompactionDue() {
+        return recordCount > MIN_COMPACTION_RECORDS && recordCount > COMPACTION_FACTOR * pathByHash.size();
+    }
+
+    private void compactIfDue() {
+        if (isCompactionDue()) {
+            compactQuietly();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            log.warn("Revision log compaction error: {}", e.getMessage());
+        }
+    }
+
+    private void compact() throws IOException {
+        closeAppender();
+
+        var directory = logFile.getAbsoluteFile().getParentFile();
+        var tempFile = File.createTempFile(logFile.getName(), ".tmp", directory);
+        try {
+            try (var writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                for (var entry : pathByHash.entrySet()) {
+                    writer.write(TRANSFERRED);
+                    writer.write(SEPARATOR);
+                    writer.write(entry.getKey());
+                    writer.write(SEPARATOR);
+                    writer.write(entry.getValue());
+                    writer.newLine();
+                }
+            }
+
+            Files.move(tempFile.toPath(), logFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            recordCount = pathByHash.size();
+            log.trace("Revision log compacted to {} record(s)", recordCount);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        } finally {
+            openAppender();
+        }
+    }
+
+    private void openAppender() throws IOException {
+        appender = Files.newBufferedWriter(logFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void closeAppender() throws IOException {
+        if (appender != null) {
+            appender.close();
+            appender = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (isCompactionDue()) {
+            compact();
+        }
+        closeAppender();
+    }
+}
@@ -0,0 +1,40 @@
+package jasmine.jragon.dropbox.model.v2.snapshot;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+import java.util.List;
+
+/**
+ * What happened to the Dropbox files between 2 {@linkplain ListingSnapshot listing snapshots}.
+ * Every list is in path order.
+ *
+ * @param added     paths that are new, with a hash that wasn't removed anywhere else
+ * @param removed   paths that are gone, with a hash that didn't show up anywhere else
+ * @param changed   paths that are still there, but with a new hash
+ * @param moved     hashes that left one path and showed up under a new one
+ * @param unchangedCount how many paths kept the same hash
+ */
+public record ListingDelta(@NonNull @Unmodifiable List<String> added, @NonNull @Unmodifiable List<String> removed,
+                           @NonNull @Unmodifiable List<String> changed, @NonNull @Unmodifiable List<Move> moved,
+                           int unchangedCount) {
+    @Contract(pure = true)
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty() && moved.isEmpty();
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return String.format("%d Added - %d Removed - %d Changed - %d Moved - %d Unchanged",
+                added.size(), removed.size(), changed.size(), moved.size(), unchangedCount);
+    }
+
+    public record Move(@NonNull String from, @NonNull String to) {
+        @Override
+        public @NotNull String toString() {
+            return from + " -> " + to;
+        }
+    }
+}
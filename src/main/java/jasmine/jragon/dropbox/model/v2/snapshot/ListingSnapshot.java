@@ -0,0 +1,386 @@
+package jasmine.jragon.dropbox.model.v2.snapshot;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * The {@code ListingSnapshot} is the file part of a Dropbox listing, boiled down to what the next run needs to
+ * know what changed: the path, revision and size of every file, sorted by path, and the content hash of every file
+ * that was listed over the Dropbox API.
+ * <p>
+ * On disk, each record is the path front-coded against the one before it (the shared prefix length and the new
+ * suffix), the 21 digit revision packed into an int and a long, the size in tenths of a KiB and the 32 byte content
+ * hash behind a flag. Paths under the same notebook directory share almost all of their characters, so a record is
+ * only a couple dozen bytes, or about twice that with a content hash. Snapshots from before content hashes are still
+ * read.
+ * <p>
+ * Since both snapshots are sorted by path, {@link #diff(ListingSnapshot)} is a single merge pass.
+ */
+@Slf4j
+public final class ListingSnapshot {
+    public static final String DEFAULT_SNAPSHOT_FILE = "listing-snapshot.bin";
+
+    private static final int FIRST_MAGIC_NUMBER = 0x444C5331,
+            MAGIC_NUMBER = 0x444C5332;
+    private static final int HASH_LENGTH = 21;
+    private static final int CONTENT_HASH_BYTES = 32;
+    /**
+     * The first 5 hex digits go into an int, the other 16 fill a long
+     */
+    private static final int HIGH_HASH_DIGITS = 5;
+    private static final int MAX_SHARED_PREFIX = 0xFFFF;
+    private static final ListingSnapshot EMPTY = new ListingSnapshot(0);
+
+    private final String[] paths;
+    private final int[] hashHigh;
+    private final long[] hashLow;
+    private final long[] sizes;
+    /**
+     * The Dropbox content hash of every record, null for a record that was listed by dbxcli, which doesn't print it
+     */
+    private final byte[][] contentHashes;
+
+    private ListingSnapshot(int count) {
+        this(new String[count], new int[count], new long[count], new long[count], new byte[count][]);
+    }
+
+    private ListingSnapshot(String[] paths, int[] hashHigh, long[] hashLow, long[] sizes, byte[][] contentHashes) {
+        this.paths = paths;
+        this.hashHigh = hashHigh;
+        this.hashLow = hashLow;
+        this.sizes = sizes;
+        this.contentHashes = contentHashes;
+    }
+
+    @Contract(pure = true)
+    public static @NotNull ListingSnapshot empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Folders are left out, only files have a hash and a size to compare
+     */
+    public static @NotNull ListingSnapshot of(@NonNull Collection<DbxLongListFileInfo> listing) {
+        var files = listing.stream()
+                .filter(DbxLongListFileInfo::isFile)
+                .sorted(Comparator.comparing(DbxLongListFileInfo::toString))
+                .toList();
+
+        int count = files.size();
+        var snapshot = new ListingSnapshot(count);
+
+        for (int i = 0; i < count; i++) {
+            var file = files.get(i);
+            var hashKey = HashKey.of(file);
+            snapshot.paths[i] = file.toString();
+            snapshot.hashHigh[i] = hashKey.high();
+            snapshot.hashLow[i] = hashKey.low();
+            snapshot.sizes[i] = toTenthsOfKibibytes(file);
+            snapshot.contentHashes[i] = file.getContentHash() == null ?
+                    null :
+                    HexFormat.of().parseHex(file.getContentHash());
+        }
+        return snapshot;
+    }
+
+    private static long toTenthsOfKibibytes(DbxLongListFileInfo file) {
+        double tenths = file.getFileSize() * 10;
+        return file.getFileSizePrefix() == DbxLongListFileInfo.FileSizeType.MEBIBYTES ?
+                Math.round(tenths * 1024) :
+                Math.round(tenths);
+    }
+
+    /**
+     * @return the snapshot in the file, or an empty snapshot if there isn't one or it can't be read,
+     * which makes every file in the next listing show up as added
+     */
+    public static @NotNull ListingSnapshot read(@NonNull File snapshotFile) {
+        if (!snapshotFile.exists()) {
+            return EMPTY;
+        }
+
+        try (var input = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            int magicNumber = input.readInt();
+            if (magicNumber != MAGIC_NUMBER && magicNumber != FIRST_MAGIC_NUMBER) {
+                log.warn("{} is not a listing snapshot", snapshotFile);
+                return EMPTY;
+            }
+
+            int count = input.readInt();
+            var snapshot = new ListingSnapshot(count);
+            String previousPath = "";
+
+            for (int i = 0; i < count; i++) {
+                int sharedPrefix = input.readUnsignedShort();
+                previousPath = previousPath.substring(0, sharedPrefix) + input.readUTF();
+                snapshot.paths[i] = previousPath;
+                snapshot.hashHigh[i] = input.readInt();
+                snapshot.hashLow[i] = input.readLong();
+                snapshot.sizes[i] = input.readLong();
+
+                if (magicNumber == MAGIC_NUMBER && input.readBoolean()) {
+                    snapshot.contentHashes[i] = new byte[CONTENT_HASH_BYTES];
+                    input.readFully(snapshot.contentHashes[i]);
+                }
+            }
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Listing snapshot read error: {}", e.getMessage());
+            return EMPTY;
+        }
+    }
+
+    /**
+     * Written to a temporary file first, so a run that dies halfway never leaves a broken snapshot behind
+     */
+    public void write(@NonNull File snapshotFile) throws IOException {
+        var directory = snapshotFile.getAbsoluteFile().getParentFile();
+        var tempFile = File.createTempFile(snapshotFile.getName(), ".tmp", directory);
+
+        try (var output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(MAGIC_NUMBER);
+            output.writeInt(paths.length);
+            String previousPath = "";
+
+            for (int i = 0; i < paths.length; i++) {
+                int sharedPrefix = Math.min(sharedPrefixLength(previousPath, paths[i]), MAX_SHARED_PREFIX);
+                output.writeShort(sharedPrefix);
+                output.writeUTF(paths[i].substring(sharedPrefix));
+                output.writeInt(hashHigh[i]);
+                output.writeLong(hashLow[i]);
+                output.writeLong(sizes[i]);
+                output.writeBoolean(contentHashes[i] != null);
+                if (contentHashes[i] != null) {
+                    output.write(contentHashes[i]);
+                }
+                previousPath = paths[i];
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+
+        Files.move(tempFile.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int sharedPrefixLength(String left, String right) {
+        int limit = Math.min(left.length(), right.length());
+        int i = 0;
+        while (i < limit && left.charAt(i) == right.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Merges this snapshot against the one from the previous run. A file whose path disappeared and whose content
+     * shows up again under a path that's new is reported as moved instead of as removed and added. Where both records
+     * have a content hash, that's what has to match. Otherwise it's the revision, which Dropbox keeps when a file is
+     * moved.
+     */
+    public @NotNull ListingDelta diff(@NonNull ListingSnapshot previous) {
+        List<Integer> addedIndices = new ArrayList<>();
+        List<Integer> removedIndices = new ArrayList<>();
+        List<String> changed = new ArrayList<>();
+        int unchangedCount = 0;
+
+        int current = 0, old = 0;
+        while (current < paths.length && old < previous.paths.length) {
+            int comparison = paths[current].compareTo(previous.paths[old]);
+
+            if (comparison < 0) {
+                addedIndices.add(current++);
+            } else if (comparison > 0) {
+                removedIndices.add(old++);
+            } else {
+                if (hasSameHash(current, previous, old)) {
+                    unchangedCount++;
+                } else {
+                    changed.add(paths[current]);
+                }
+                current++;
+                old++;
+            }
+        }
+        while (current < paths.length) {
+            addedIndices.add(current++);
+        }
+        while (old < previous.paths.length) {
+            removedIndices.add(old++);
+        }
+
+        //Hash joins of what disappeared against what appeared, so the whole diff stays linear
+        Map<HashKey, Integer> removedByHash = new HashMap<>();
+        Map<ByteBuffer, Integer> removedByContent = new HashMap<>();
+        for (int index : removedIndices) {
+            removedByHash.putIfAbsent(previous.hashKey(index), index);
+            if (previous.contentHashes[index] != null) {
+                removedByContent.putIfAbsent(ByteBuffer.wrap(previous.contentHashes[index]), index);
+            }
+        }
+
+        List<String> added = new ArrayList<>();
+        List<ListingDelta.Move> moved = new ArrayList<>();
+        var movedSources = new BitSet(previous.paths.length);
+        for (int index : addedIndices) {
+            Integer sourceIndex = null;
+            if (contentHashes[index] != null) {
+                sourceIndex = removedByContent.remove(ByteBuffer.wrap(contentHashes[index]));
+            }
+            if (sourceIndex == null || movedSources.get(sourceIndex)) {
+                sourceIndex = removedByHash.remove(hashKey(index));
+            }
+
+            //A revision only counts where there's no content hash on both sides to tell otherwise
+            boolean isMove = sourceIndex != null && !movedSources.get(sourceIndex) &&
+                    (contentHashes[index] == null || previous.contentHashes[sourceIndex] == null ||
+                            Arrays.equals(contentHashes[index], previous.contentHashes[sourceIndex]));
+            if (isMove) {
+                movedSources.set(sourceIndex);
+                moved.add(new ListingDelta.Move(previous.paths[sourceIndex], paths[index]));
+            } else {
+                added.add(paths[index]);
+            }
+        }
+
+        List<String> removed = new ArrayList<>();
+        for (int index : removedIndices) {
+            if (!movedSources.get(index)) {
+                removed.add(previous.paths[index]);
+            }
+        }
+
+        return new ListingDelta(List.copyOf(added), List.copyOf(removed), List.copyOf(changed),
+                List.copyOf(moved), unchangedCount);
+    }
+
+    /**
+     * @return a snapshot of only the records with a path the filter keeps
+     */
+    public @NotNull ListingSnapshot filter(@NonNull Predicate<String> isKept) {
+        var kept = new BitSet(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            if (isKept.test(paths[i])) {
+                kept.set(i);
+            }
+        }
+
+        int count = kept.cardinality();
+        if (count == paths.length) {
+            return this;
+        }
+
+        var snapshot = new ListingSnapshot(count);
+        int output = 0;
+        for (int i = kept.nextSetBit(0); i >= 0; i = kept.nextSetBit(i + 1)) {
+            snapshot.copyRecord(output++, this, i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return every path of the snapshot, sorted
+     */
+    @Contract(pure = true)
+    public @NotNull List<String> paths() {
+        return Collections.unmodifiableList(Arrays.asList(paths));
+    }
+
+    /**
+     * Merges the records of both snapshots, which stay sorted by path. Where both have the same path,
+     * the record of this snapshot is kept.
+     */
+    public @NotNull ListingSnapshot merge(@NonNull ListingSnapshot other) {
+        int maxCount = paths.length + other.paths.length;
+        var merged = new ListingSnapshot(maxCount);
+        int count = 0, current = 0, otherIndex = 0;
+
+        while (current < paths.length || otherIndex < other.paths.length) {
+            int comparison = current == paths.length ? 1 :
+                    otherIndex == other.paths.length ? -1 :
+                    paths[current].compareTo(other.paths[otherIndex]);
+
+            if (comparison <= 0) {
+                merged.copyRecord(count++, this, current++);
+                if (comparison == 0) {
+                    otherIndex++;
+                }
+            } else {
+                merged.copyRecord(count++, other, otherIndex++);
+            }
+        }
+
+        return count == maxCount ?
+                merged :
+                new ListingSnapshot(Arrays.copyOf(merged.paths, count), Arrays.copyOf(merged.hashHigh, count),
+                        Arrays.copyOf(merged.hashLow, count), Arrays.copyOf(merged.sizes, count),
+                        Arrays.copyOf(merged.contentHashes, count));
+    }
+
+    private void copyRecord(int index, ListingSnapshot source, int sourceIndex) {
+        paths[index] = source.paths[sourceIndex];
+        hashHigh[index] = source.hashHigh[sourceIndex];
+        hashLow[index] = source.hashLow[sourceIndex];
+        sizes[index] = source.sizes[sourceIndex];
+        contentHashes[index] = source.contentHashes[sourceIndex];
+    }
+
+    private boolean hasSameHash(int index, ListingSnapshot other, int otherIndex) {
+        return hashHigh[index] == other.hashHigh[otherIndex] && hashLow[index] == other.hashLow[otherIndex];
+    }
+
+    private HashKey hashKey(int index) {
+        return new HashKey(hashHigh[index], hashLow[index]);
+    }
+
+    /**
+     * @return the revision the snapshot has under the path, if it has the path
+     */
+    public @NotNull Optional<String> findRevision(@NonNull String path) {
+        int index = Arrays.binarySearch(paths, path);
+        return index < 0 ?
+                Optional.empty() :
+                Optional.of(String.format("%05x%016x", hashHigh[index], hashLow[index]));
+    }
+
+    @Contract(pure = true)
+    public int size() {
+        return paths.length;
+    }
+
+    private record HashKey(int high, long low) {
+        private static HashKey of(DbxLongListFileInfo file) {
+            var hash = file.getCurrentFileHash();
+            return new HashKey(Integer.parseInt(hash, 0, HIGH_HASH_DIGITS, 16),
+                    Long.parseUnsignedLong(hash, HIGH_HASH_DIGITS, HASH_LENGTH, 16));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package jasmine.jragon.mega;
+
+import jasmine.jragon.mega.eliux.v2.MegaUtils;
+import jasmine.jragon.mega.eliux.v2.cmd.AbstractMegaCmdCaller;
+import jasmine.jragon.mega.eliux.v2.error.MegaIOException;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The wrapper's recursive listing only keeps the names of what it finds, while {@code mega-find} prints the whole
+ * path of every folder under the remote path, the remote path included, in a single process
+ */
+final class MegaCmdFindDirectories extends AbstractMegaCmdCaller<List<String>> {
+    private static final String FIND_COMMAND = "find";
+    private static final String DIRECTORY_TYPE_FLAG = "--type=d";
+
+    private final String remotePath;
+
+    MegaCmdFindDirectories(@NonNull String remotePath) {
+        this.remotePath = remotePath;
+    }
+
+    @Override
+    protected List<String> executableCommand() {
+        var command = new ArrayList<>(super.executableCommand());
+        command.add(remotePath);
+        command.add(DIRECTORY_TYPE_FLAG);
+        return command;
+    }
+
+    @Override
+    public List<String> call() {
+        try {
+            return MegaUtils.handleCmdWithOutput(executableCommandArray());
+        } catch (IOException e) {
+            throw new MegaIOException("Error while finding the folders under " + remotePath);
+        }
+    }
+
+    @Override
+    public String getCmd() {
+        return FIND_COMMAND;
+    }
+}
@@ -0,0 +1,76 @@
+package jasmine.jragon.mega;
+
+import jasmine.jragon.mega.eliux.v2.MegaUtils;
+import jasmine.jragon.mega.eliux.v2.cmd.AbstractMegaCmdCaller;
+import jasmine.jragon.mega.eliux.v2.error.MegaIOException;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Lists every file under the remote path in a single process, each with its whole path and its size.
+ * {@code mega-find -l} prints the same columns as {@code mega-ls -l}:
+ * <pre>
+ * FLAGS VERS SIZE DATE TIME PATH
+ * ----  1    52114 18Oct2026 10:35:46 Castle in the Sky/Boox-Notes/Physics/Optics.pdf
+ * </pre>
+ */
+final class MegaCmdFindFiles extends AbstractMegaCmdCaller<List<MegaRemoteFile>> {
+    private static final Logger LOG = LoggerFactory.getLogger(MegaCmdFindFiles.class);
+
+    private static final String FIND_COMMAND = "find";
+    private static final String FILE_TYPE_FLAG = "--type=f";
+    private static final String LONG_LISTING_FLAG = "-l";
+    private static final Pattern LONG_LISTING_LINE =
+            Pattern.compile("^\\S+\\s+\\S+\\s+(\\d+)\\s+\\S+\\s+\\S+\\s+(.+)$");
+
+    private final String remotePath;
+
+    MegaCmdFindFiles(@NonNull String remotePath) {
+        this.remotePath = remotePath;
+    }
+
+    @Override
+    protected List<String> executableCommand() {
+        var command = new ArrayList<>(super.executableCommand());
+        command.add(remotePath);
+        command.add(FILE_TYPE_FLAG);
+        command.add(LONG_LISTING_FLAG);
+        return command;
+    }
+
+    @Override
+    public List<MegaRemoteFile> call() {
+        List<String> lines;
+        try {
+            lines = MegaUtils.handleCmdWithOutput(executableCommandArray());
+        } catch (IOException e) {
+            throw new MegaIOException("Error while finding the files under " + remotePath);
+        }
+
+        List<MegaRemoteFile> files = new ArrayList<>(lines.size());
+        for (var line : lines) {
+            var matcher = LONG_LISTING_LINE.matcher(line.strip());
+            if (!matcher.matches()) {
+                //The header and anything else that isn't a file
+                LOG.trace("Skipping '{}'", line);
+                continue;
+            }
+
+            var path = matcher.group(2);
+            files.add(new MegaRemoteFile(path.startsWith("/") ? path.substring(1) : path,
+                    Long.parseLong(matcher.group(1))));
+        }
+        return files;
+    }
+
+    @Override
+    public String getCmd() {
+        return FIND_COMMAND;
+    }
+}
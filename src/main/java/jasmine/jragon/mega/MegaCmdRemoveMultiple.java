@@ -0,0 +1,38 @@
+package jasmine.jragon.mega;
+
+import jasmine.jragon.mega.eliux.v2.cmd.AbstractMegaCmdRunner;
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The wrapper's remove command only takes a single path, while {@code mega-rm} takes as many as the
+ * command line fits, so a whole batch of old files goes in one process
+ */
+final class MegaCmdRemoveMultiple extends AbstractMegaCmdRunner {
+    private static final String REMOVE_COMMAND = "rm";
+    private static final String FORCE_FLAG = "-f";
+
+    private final List<String> remotePaths;
+
+    MegaCmdRemoveMultiple(@NonNull List<String> remotePaths) {
+        if (remotePaths.isEmpty()) {
+            throw new IllegalArgumentException("At least one remote path is needed");
+        }
+        this.remotePaths = List.copyOf(remotePaths);
+    }
+
+    @Override
+    protected List<String> executableCommand() {
+        var command = new ArrayList<>(super.executableCommand());
+        command.add(FORCE_FLAG);
+        command.addAll(remotePaths);
+        return command;
+    }
+
+    @Override
+    public String getCmd() {
+        return REMOVE_COMMAND;
+    }
+}
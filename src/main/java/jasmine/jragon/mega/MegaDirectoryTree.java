@@ -0,0 +1,244 @@
+package jasmine.jragon.mega;
+
+import jasmine.jragon.mega.eliux.v2.error.MegaResourceNotFoundException;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The {@code MegaDirectoryTree} is what this run knows of the folders in Mega Cloud. Each root is listed once, the
+ * first time a folder under it is asked for, and every folder created afterwards is added as it's created, so
+ * a folder that already exists is never asked for again.
+ * <p>
+ * Paths are relative to the root of the cloud drive, like {@code Castle in the Sky/Boox-Notes/Physics}.
+ * A folder being known means every folder above it is known too.
+ */
+final class MegaDirectoryTree {
+    private static final Logger LOG = LoggerFactory.getLogger(MegaDirectoryTree.class);
+
+    /**
+     * Only read and changed while holding the tree's monitor, which is never held over a Mega CMD call
+     */
+    private final Set<String> directories;
+    /**
+     * The listing of each root, claimed by whoever asks for the root first, so the others wait on that one call
+     * instead of listing it again
+     */
+    private final Map<String, CompletableFuture<Void>> rootListings;
+    /**
+     * Folders being created right now, each claimed by whoever asked for it first, with whether it went through
+     */
+    private final Map<String, CompletableFuture<Boolean>> pendingDirectories;
+    /**
+     * Roots whose listing failed, where a folder not being known doesn't mean it isn't there
+     */
+    private final Set<String> unlistedRoots;
+
+    MegaDirectoryTree() {
+        directories = new HashSet<>();
+        rootListings = new ConcurrentHashMap<>();
+        unlistedRoots = ConcurrentHashMap.newKeySet();
+        pendingDirectories = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Creates every folder that's missing with one {@code mkdir -p} per deepest missing folder, deepest first,
+     * which takes care of the missing folders above it along the way. A folder someone else is already creating
+     * is waited on rather than created twice.
+     *
+     * @param makeDirectory creates the folder and all of its missing parents, and says whether it went through
+     * @return the folders that couldn't be created
+     */
+    List<String> ensureDirectories(@NonNull Collection<String> paths, @NonNull Predicate<String> makeDirectory) {
+        Set<String> missing = new HashSet<>();
+        for (var path : paths) {
+            var directory = normalize(path);
+            awaitRootListing(directory);
+            if (!directory.isEmpty()) {
+                missing.add(directory);
+            }
+        }
+        synchronized (this) {
+            missing.removeAll(directories);
+        }
+
+        //A missing folder that's above another missing one comes along with the deeper one
+        Set<String> parentsOfMissing = new HashSet<>();
+        for (var directory : missing) {
+            for (int i = directory.indexOf('/'); i >= 0; i = directory.indexOf('/', i + 1)) {
+                parentsOfMissing.add(directory.substring(0, i));
+            }
+        }
+
+        var deepestMissing = missing.stream()
+                .filter(directory -> !parentsOfMissing.contains(directory))
+                .sorted(Comparator.comparingLong((String directory) -> directory.chars().filter(c -> c == '/').count())
+                        .reversed()
+                        .thenComparing(Comparator.naturalOrder()))
+                .toList();
+        if (!deepestMissing.isEmpty()) {
+            LOG.debug("{} missing folder(s) out of {}", deepestMissing.size(), paths.size());
+        }
+
+        return deepestMissing.stream()
+                .filter(directory -> !createDirectory(directory, makeDirectory))
+                .toList();
+    }
+
+    /**
+     * @return whether the folder was already there or could be created
+     */
+    boolean ensureDirectory(@NonNull String path, @NonNull Predicate<String> makeDirectory) {
+        return ensureDirectories(List.of(path), makeDirectory).isEmpty();
+    }
+
+    boolean contains(@NonNull String path) {
+        var directory = normalize(path);
+        awaitRootListing(directory);
+        synchronized (this) {
+            return directories.contains(directory);
+        }
+    }
+
+    /**
+     * @return whether the root the path is in could be listed, so a folder under it that isn't known isn't there
+     */
+    boolean isListed(@NonNull String path) {
+        var directory = normalize(path);
+        awaitRootListing(directory);
+        return !unlistedRoots.contains(rootOf(directory));
+    }
+
+    /**
+     * Carries the folder and every folder known under it over to where it was moved
+     */
+    synchronized void move(@NonNull String fromPath, @NonNull String toPath) {
+        var from = normalize(fromPath);
+        var to = normalize(toPath);
+        var moved = directories.stream()
+                .filter(known -> known.startsWith(from + '/'))
+                .map(known -> to + known.substring(from.length()))
+                .toList();
+
+        forget(from);
+        add(to);
+        moved.forEach(this::add);
+    }
+
+    /**
+     * For a folder that turned out to be gone, so it's looked for again the next time
+     */
+    synchronized void forget(@NonNull String path) {
+        var directory = normalize(path);
+        directories.removeIf(known -> known.equals(directory) || known.startsWith(directory + '/'));
+    }
+
+    /**
+     * Creates the folder unless someone else already is, in which case their outcome is taken
+     *
+     * @return whether the folder is there now
+     */
+    private boolean createDirectory(String directory, Predicate<String> makeDirectory) {
+        var claim = new CompletableFuture<Boolean>();
+        var pending = pendingDirectories.putIfAbsent(directory, claim);
+        if (pending != null) {
+            return pending.join();
+        }
+
+        boolean isCreated = false;
+        try {
+            //Whoever held the claim before may have created it between the check and the claim
+            synchronized (this) {
+                isCreated = directories.contains(directory);
+            }
+            if (!isCreated && makeDirectory.test(directory)) {
+                add(directory);
+                isCreated = true;
+            }
+            return isCreated;
+        } finally {
+            pendingDirectories.remove(directory, claim);
+            claim.complete(isCreated);
+        }
+    }
+
+    /**
+     * Lists the second level folder the path is in, like {@code Castle in the Sky/Boox-Notes}, if it wasn't already,
+     * or waits for the listing if it's underway
+     */
+    private void awaitRootListing(String directory) {
+        var root = rootOf(directory);
+        if (root.isEmpty()) {
+            return;
+        }
+
+        var listing = new CompletableFuture<Void>();
+        var existing = rootListings.putIfAbsent(root, listing);
+        if (existing != null) {
+            existing.join();
+            return;
+        }
+
+        try {
+            listRoot(root);
+        } finally {
+            listing.complete(null);
+        }
+    }
+
+    private void listRoot(String root) {
+        try {
+            var found = new MegaCmdFindDirectories(root).call();
+            found.stream()
+                    .map(MegaDirectoryTree::normalize)
+                    .filter(path -> !path.isEmpty())
+                    .forEach(this::add);
+            LOG.debug("{} folder(s) found under {}", found.size(), root);
+        } catch (MegaResourceNotFoundException e) {
+            LOG.debug("{} does not exist yet", root);
+        } catch (RuntimeException e) {
+            //Without the listing, every folder under the root counts as missing, which mkdir -p takes in stride
+            LOG.warn("Folder listing of {} failed: {}", root, e.getMessage());
+            unlistedRoots.add(root);
+        }
+    }
+
+    /**
+     * @return the second level folder the folder is in, like {@code Castle in the Sky/Boox-Notes}
+     */
+    private static String rootOf(String directory) {
+        int firstSlash = directory.indexOf('/');
+        int secondSlash = firstSlash < 0 ? -1 : directory.indexOf('/', firstSlash + 1);
+        return secondSlash < 0 ?
+                directory :
+                directory.substring(0, secondSlash);
+    }
+
+    private synchronized void add(String directory) {
+        for (int i = directory.indexOf('/'); i >= 0; i = directory.indexOf('/', i + 1)) {
+            directories.add(directory.substring(0, i));
+        }
+        directories.add(directory);
+    }
+
+    private static String normalize(String path) {
+        int start = 0, end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+}
@@ -1,62 +1,158 @@
 package jasmine.jragon.mega;
 
+import jasmine.jragon.CircuitBreaker;
+import jasmine.jragon.RetryPolicy;
 import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
 import jasmine.jragon.dropbox.model.v2.movement.simple.FileMove;
 import jasmine.jragon.dropbox.model.v2.IntermediateFile;
 import jasmine.jragon.mega.eliux.v2.MegaSession;
 import jasmine.jragon.mega.eliux.v2.cmd.MegaCmdPutSingle;
 import jasmine.jragon.mega.eliux.v2.error.MegaException;
+import jasmine.jragon.mega.eliux.v2.error.MegaIOException;
+import jasmine.jragon.mega.eliux.v2.error.MegaInvalidResponseException;
 import jasmine.jragon.mega.eliux.v2.error.MegaInvalidStateException;
+import jasmine.jragon.mega.eliux.v2.error.MegaNodesNotFetchedException;
 import jasmine.jragon.mega.eliux.v2.error.MegaResourceNotFoundException;
+import jasmine.jragon.mega.eliux.v2.error.MegaUnexpectedFailureException;
 import lombok.NonNull;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
-import static jasmine.jragon.LocalResourceManager.attemptFileDeletion;
 import static jasmine.jragon.dropbox.model.v2.IntermediateFile.MEGA_CLOUD_NOTE_BASE_PATH;
 
 public final class MegaFunctionManager {
     private static final Logger LOG = LoggerFactory.getLogger(MegaFunctionManager.class);
     private static final String ANNOTATION_DIRECTORY = "Castle in the Sky/Boox-Annotations";
+    /*
+     * A file that's turned away or still fails to upload is taken out of the revisions, so the next run tries it again
+     */
+    public static final CircuitBreaker CIRCUIT_BREAKER = new CircuitBreaker("Mega", 5, Duration.ofSeconds(30));
+    private static final RetryPolicy UPLOAD_RETRY = new RetryPolicy("Upload", CIRCUIT_BREAKER, 4,
+            Duration.ofSeconds(2), Duration.ofSeconds(30), Duration.ofMinutes(3)),
+            DIRECTORY_RETRY = new RetryPolicy("Directory creation", CIRCUIT_BREAKER, 3,
+                    Duration.ofSeconds(1), Duration.ofSeconds(10), Duration.ofMinutes(1)),
+            REMOVAL_RETRY = new RetryPolicy("Removal", CIRCUIT_BREAKER, 3,
+                    Duration.ofSeconds(1), Duration.ofSeconds(10), Duration.ofMinutes(1)),
+            MOVE_RETRY = new RetryPolicy("Move", CIRCUIT_BREAKER, 3,
+                    Duration.ofSeconds(1), Duration.ofSeconds(10), Duration.ofMinutes(1)),
+            LISTING_RETRY = new RetryPolicy("Listing", CIRCUIT_BREAKER, 3,
+                    Duration.ofSeconds(2), Duration.ofSeconds(20), Duration.ofMinutes(2));
 
     private static final List<String> DROPBOX_PATH_PREFIX_LIST;
+    private static final MegaDirectoryTree DIRECTORY_TREE = new MegaDirectoryTree();
 
-    public static void crashCloudDirectory(MegaSession session, boolean doesRevisionFileExist,
-                                           String filename) {
-        if (doesRevisionFileExist) {
-            attemptFileDeletion(filename);
-        }
+    public static void crashCloudDirectory(MegaSession session) {
         LOG.info("Deleting current note directory in Mega");
         var removeCommand = session.removeDirectory(MEGA_CLOUD_NOTE_BASE_PATH);
 
         try {
-            removeCommand.run();
+            REMOVAL_RETRY.retryOn(MEGA_CLOUD_NOTE_BASE_PATH, MegaException.class, MegaFunctionManager::isTransient,
+                    attempt -> {
+                        removeCommand.run();
+                        return null;
+                    });
         } catch (MegaResourceNotFoundException resourceException) {
             LOG.debug("Directory is already removed. Proceeding...");
         } catch (MegaException e) {
             LOG.error("Unusual Error at Directory Wipe: ", e);
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted at Directory Wipe: ", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            DIRECTORY_TREE.forget(MEGA_CLOUD_NOTE_BASE_PATH);
         }
     }
 
-    public static void sendFileToMega(@NotNull IntermediateFile intermediateFile, @NotNull MegaSession session,
-                                      List<String> erroneousFiles) {
-        var putCommand = session.uploadFile(true,
-                intermediateFile.getLocalFile(), intermediateFile.getMegaCloudPath());
-        executeUploadCommand(putCommand, erroneousFiles, intermediateFile.getDropboxFilePath());
+    /**
+     * @return whether the file made it to Mega Cloud
+     */
+    public static boolean sendFileToMega(@NotNull IntermediateFile intermediateFile, @NotNull MegaSession session,
+                                         List<String> erroneousFiles) {
+        return sendFileToMega(intermediateFile.getLocalFile(), intermediateFile.getMegaCloudPath(),
+                intermediateFile.getDropboxFilePath(), session, erroneousFiles);
     }
 
-    private static void executeUploadCommand(MegaCmdPutSingle command, List<String> erroneousFileList,
-                                             String dropboxFile) {
+    static boolean sendFileToMega(String localFile, String megaPath, String dropboxFile, MegaSession session,
+                                  List<String> erroneousFiles) {
+        var parentPath = parentOf(megaPath);
+        boolean hasParent = DIRECTORY_TREE.ensureDirectory(parentPath,
+                directory -> !makeMegaDirectory(directory, session));
+
+        //mega-put only has to look for the parent when the tree couldn't vouch for it
+        var putCommand = session.uploadFile(!hasParent, localFile, megaPath);
+        return executeUploadCommand(putCommand, erroneousFiles, dropboxFile, () -> {
+            DIRECTORY_TREE.forget(parentPath);
+            return session.uploadFile(true, localFile, megaPath);
+        });
+    }
+
+    /**
+     * Uploads every file into the folder with one {@code mega-put}, under the names they already have.
+     * A failed batch isn't retried and doesn't count against the circuit, since a single bad file fails it too.
+     *
+     * @return whether the whole batch made it
+     */
+    static boolean sendFolderToMega(String megaFolder, List<String> localFiles, MegaSession session) {
+        boolean hasFolder = DIRECTORY_TREE.ensureDirectory(megaFolder,
+                directory -> !makeMegaDirectory(directory, session));
+        if (CIRCUIT_BREAKER.isOpen()) {
+            LOG.debug("Mega circuit open. Skipping the upload of {} file(s) to {}", localFiles.size(), megaFolder);
+            return false;
+        }
+
         try {
-            command.run();
+            session.uploadFiles(!hasFolder, megaFolder, localFiles.toArray(String[]::new)).run();
+            CIRCUIT_BREAKER.recordSuccess();
+            return true;
         } catch (MegaException e) {
+            LOG.debug("Bulk upload of {} file(s) to {} failed. Retrying one at a time: {}",
+                    localFiles.size(), megaFolder, e.getMessage());
+            if (e instanceof MegaResourceNotFoundException) {
+                DIRECTORY_TREE.forget(megaFolder);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param fallbackCommand uploads while creating the parent, for when the parent turns out to be gone
+     */
+    private static boolean executeUploadCommand(MegaCmdPutSingle command, List<String> erroneousFileList,
+                                                String dropboxFile, Supplier<MegaCmdPutSingle> fallbackCommand) {
+        if (!CIRCUIT_BREAKER.tryAcquire()) {
+            LOG.debug("Mega circuit open. Skipping the upload of {}", dropboxFile);
+            erroneousFileList.add(dropboxFile);
+            return false;
+        }
+
+        try {
+            UPLOAD_RETRY.retryOn(dropboxFile, MegaException.class, MegaFunctionManager::isTransient, attempt -> {
+                try {
+                    command.run();
+                } catch (MegaResourceNotFoundException e) {
+                    if (command.isShouldCreatePath()) {
+                        throw e;
+                    }
+                    LOG.debug("Parent of {} is gone. Uploading with its path", dropboxFile);
+                    fallbackCommand.get().run();
+                }
+                return null;
+            });
+            return true;
+        } catch (MegaException | InterruptedException e) {
             LOG.warn("Upload function issue: ", e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
 
             /*
              * Deletion occurs regardless of whether there was an issue or not,
@@ -65,17 +161,22 @@ public final class MegaFunctionManager {
              * attemptFileDeletion(command.getLocalFile());
              */
 
-            //Stores the dropbox file for deletion later from the revision-list.txt file
+            //Keeps the file out of the listing snapshot, so the next run picks it up again
             erroneousFileList.add(dropboxFile);
+            return false;
         }
     }
 
+    /**
+     * Only the folders the {@link MegaDirectoryTree} doesn't know of are created
+     */
     public static void createAnnotationSubdirectories(@NotNull MegaSession megaSession,
                                                       @NotNull List<DbxLongListFileInfo> folders) {
-        var failedPaths = folders.stream()
+        var megaPaths = folders.stream()
                 .map(MegaFunctionManager::convertDropboxToMegaAnnotationPath)
-                .filter(megaPath -> makeMegaDirectory(megaPath, megaSession))
                 .toList();
+        var failedPaths = DIRECTORY_TREE.ensureDirectories(megaPaths,
+                megaPath -> !makeMegaDirectory(megaPath, megaSession));
 
         if (!failedPaths.isEmpty()) {
             LOG.warn("Failed Paths: {}", failedPaths);
@@ -92,23 +193,175 @@ public final class MegaFunctionManager {
         return ANNOTATION_DIRECTORY + outputPath;
     }
 
+    /**
+     * @return whether the file is under its new path now. If it isn't, the old copy is left where it was.
+     */
+    public static boolean moveMegaFile(@NotNull MegaSession session, @NonNull String fromPath,
+                                       @NonNull String toPath) {
+        return moveMegaResource(session, fromPath, toPath);
+    }
+
+    /**
+     * Renames a folder in one go, with everything inside it. {@code mega-mv} would put the folder inside of the
+     * destination if it already existed, so that's left to moving the files one at a time. The same goes for
+     * a destination whose folders couldn't be listed, since there's no telling whether it exists.
+     *
+     * @return whether the folder is under its new path now
+     */
+    public static boolean moveMegaFolder(@NotNull MegaSession session, @NonNull String fromPath,
+                                         @NonNull String toPath) {
+        if (!DIRECTORY_TREE.isListed(toPath)) {
+            LOG.debug("Folders around {} couldn't be listed. Not moving {} as a whole", toPath, fromPath);
+            return false;
+        } else if (DIRECTORY_TREE.contains(toPath)) {
+            LOG.debug("{} already exists. Not moving {} onto it", toPath, fromPath);
+            return false;
+        } else if (!moveMegaResource(session, fromPath, toPath)) {
+            return false;
+        }
+
+        DIRECTORY_TREE.move(fromPath, toPath);
+        return true;
+    }
+
+    private static boolean moveMegaResource(MegaSession session, String fromPath, String toPath) {
+        if (!DIRECTORY_TREE.ensureDirectory(parentOf(toPath), directory -> !makeMegaDirectory(directory, session))) {
+            return false;
+        } else if (!CIRCUIT_BREAKER.tryAcquire()) {
+            LOG.debug("Mega circuit open. {} not moved", fromPath);
+            return false;
+        }
+
+        var moveCommand = session.move(fromPath, toPath);
+
+        try {
+            MOVE_RETRY.retryOn(fromPath, MegaException.class, MegaFunctionManager::isTransient, attempt -> {
+                moveCommand.run();
+                return null;
+            });
+            return true;
+        } catch (MegaResourceNotFoundException resourceException) {
+            LOG.debug("{} is not in Mega Cloud. Nothing to move", fromPath);
+            return false;
+        } catch (MegaException e) {
+            LOG.warn("Unusual Error at Mega Move: ", e);
+            return false;
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted at Mega Move: ", e);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return every file under the path, with none for a path that doesn't exist, or nothing if the listing failed
+     */
+    public static Optional<List<MegaRemoteFile>> listMegaFiles(@NonNull String megaPath) {
+        if (!CIRCUIT_BREAKER.tryAcquire()) {
+            LOG.warn("Mega circuit open. {} not listed", megaPath);
+            return Optional.empty();
+        }
+
+        var findCommand = new MegaCmdFindFiles(megaPath);
+
+        try {
+            return Optional.of(LISTING_RETRY.retryOn(megaPath, MegaException.class,
+                    MegaFunctionManager::isTransient, attempt -> findCommand.call()));
+        } catch (MegaResourceNotFoundException resourceException) {
+            return Optional.of(List.of());
+        } catch (MegaException e) {
+            LOG.error("Unusual Error at Mega Listing: ", e);
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted at Mega Listing: ", e);
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
     public static void removeOldFile(@NotNull MegaSession session, @NonNull String filePath) {
+        if (!CIRCUIT_BREAKER.tryAcquire()) {
+            LOG.warn("Mega circuit open. {} not removed", filePath);
+            return;
+        }
+
         var rmCommand = session.remove(filePath);
 
         try {
-            rmCommand.run();
+            REMOVAL_RETRY.retryOn(filePath, MegaException.class, MegaFunctionManager::isTransient, attempt -> {
+                rmCommand.run();
+                return null;
+            });
         } catch (MegaResourceNotFoundException resourceException) {
             LOG.warn("File Removal Issue: ", resourceException);
         } catch (MegaException e) {
             LOG.error("Unusual Error at Mega File Removal: ", e);
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted at Mega File Removal: ", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Removes the whole batch with one {@code mega-rm}. If that fails, every path is tried on its own,
+     * where paths the batch already took care of don't count as errors.
+     */
+    public static void removeOldFiles(@NotNull MegaSession session, @NonNull List<String> filePaths) {
+        if (filePaths.isEmpty()) {
+            return;
+        } else if (filePaths.size() == 1) {
+            removeOldFile(session, filePaths.get(0));
+            return;
+        } else if (CIRCUIT_BREAKER.isOpen()) {
+            LOG.warn("Mega circuit open. {} file(s) not removed", filePaths.size());
+            return;
+        }
+
+        //A failed batch doesn't count against the circuit, since a single missing path fails it too
+        try {
+            new MegaCmdRemoveMultiple(filePaths).run();
+            CIRCUIT_BREAKER.recordSuccess();
+            return;
+        } catch (MegaException e) {
+            LOG.debug("Bulk removal of {} file(s) failed. Retrying one at a time: {}",
+                    filePaths.size(), e.getMessage());
+        }
+
+        for (var filePath : filePaths) {
+            if (!CIRCUIT_BREAKER.tryAcquire()) {
+                LOG.warn("Mega circuit open. {} not removed", filePath);
+                continue;
+            }
+            var rmCommand = session.remove(filePath).ignoreErrorIfNotPresent();
+
+            try {
+                REMOVAL_RETRY.retryOn(filePath, MegaException.class, MegaFunctionManager::isTransient, attempt -> {
+                    rmCommand.run();
+                    return null;
+                });
+            } catch (MegaException e) {
+                LOG.error("Unusual Error at Mega File Removal: ", e);
+            } catch (InterruptedException e) {
+                LOG.error("Interrupted at Mega File Removal: ", e);
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
     private static boolean makeMegaDirectory(String megaPath, MegaSession megaSession) {
+        if (!CIRCUIT_BREAKER.tryAcquire()) {
+            LOG.debug("Mega circuit open. Skipping {}", megaPath);
+            return true;
+        }
+
         var command = megaSession.makeDirectory(megaPath).recursively();
 
         try {
-            command.run();
+            DIRECTORY_RETRY.retryOn(megaPath, MegaException.class, MegaFunctionManager::isTransient, attempt -> {
+                command.run();
+                return null;
+            });
             return false;
         } catch (MegaInvalidStateException e) {
             LOG.trace("Assuming that the directory already exists. Proceeding...");
@@ -116,9 +369,29 @@ public final class MegaFunctionManager {
         } catch (MegaException e) {
             LOG.warn("Unusual Error at Mega Directory Creation: ", e);
             return true;
+        } catch (InterruptedException e) {
+            LOG.warn("Interrupted at Mega Directory Creation: ", e);
+            Thread.currentThread().interrupt();
+            return true;
         }
     }
 
+    private static String parentOf(String megaPath) {
+        return megaPath.substring(0, Math.max(megaPath.lastIndexOf('/'), 0));
+    }
+
+    /**
+     * Connection trouble and failures MEGAcmd can't explain are worth another try. A missing path, an existing
+     * directory or a bad argument comes back the same every time.
+     */
+    private static boolean isTransient(MegaException e) {
+        return e.getClass() == MegaException.class ||
+                e instanceof MegaIOException ||
+                e instanceof MegaUnexpectedFailureException ||
+                e instanceof MegaNodesNotFetchedException ||
+                e instanceof MegaInvalidResponseException;
+    }
+
     static {
         DROPBOX_PATH_PREFIX_LIST = Stream.of(IntermediateFile.class)
                 .map(Class::getDeclaredFields)
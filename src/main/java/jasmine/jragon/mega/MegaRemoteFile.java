@@ -0,0 +1,17 @@
+package jasmine.jragon.mega;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A file in Mega Cloud as {@code mega-find -l} lists it
+ *
+ * @param path relative to the root of the cloud drive
+ * @param size in bytes
+ */
+public record MegaRemoteFile(@NonNull String path, long size) {
+    @Override
+    public @NotNull String toString() {
+        return path + " (" + size + " B)";
+    }
+}
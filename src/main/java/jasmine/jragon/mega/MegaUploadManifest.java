@@ -0,0 +1,278 @@
+package jasmine.jragon.mega;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import lombok.NonNull;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static jasmine.jragon.dropbox.model.v2.IntermediateFile.MEGA_CLOUD_NOTE_BASE_PATH;
+
+/**
+ * The {@code MegaUploadManifest} remembers what went up to every path in Mega Cloud: the fingerprint of the
+ * Dropbox file it was made from and the size of the file that was uploaded. A file whose path still holds an
+ * upload of the same size made from the same fingerprint doesn't have to be downloaded, converted or uploaded again.
+ * <p>
+ * The converted files are encrypted and stamped with the time of the conversion, so no 2 conversions of the same
+ * file are alike. That's why the fingerprint is taken from the Dropbox file, see {@link #fingerprintOf}, and the
+ * size is checked against a listing of Mega Cloud, taken once per run the first time it's needed.
+ * <p>
+ * Kept apart from the revision log, so it's still there when the revision log is lost. Every upload, move and
+ * removal is appended and flushed as it happens, and the manifest is rewritten with only the latest entry of every
+ * path when it opens. A removal is written as an entry with a negative size.
+ */
+public final class MegaUploadManifest implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(MegaUploadManifest.class);
+
+    public static final String DEFAULT_MANIFEST_FILE = "mega-manifest.txt";
+    private static final char SEPARATOR = '\t';
+    private static final Entry REMOVED = new Entry("-", -1);
+
+    private final File manifestFile;
+    private final Map<String, Entry> entriesByPath;
+    private final Object listingLock;
+    private BufferedWriter appender;
+    private Map<String, Long> remoteSizes;
+    private boolean isListingLoaded;
+
+    private MegaUploadManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+        entriesByPath = new HashMap<>();
+        listingLock = new Object();
+    }
+
+    /**
+     * @throws IOException if the manifest can't be rewritten. A manifest that can't be read is started over,
+     *                     which only costs uploads that could've been skipped.
+     */
+    public static @NotNull MegaUploadManifest open(@NonNull File manifestFile) throws IOException {
+        var manifest = new MegaUploadManifest(manifestFile);
+        if (manifestFile.exists()) {
+            manifest.replay();
+        }
+        manifest.compact();
+
+        LOG.debug("{} upload(s) in {}", manifest.entriesByPath.size(), manifestFile);
+        return manifest;
+    }
+
+    private void replay() {
+        try (var reader = new BufferedReader(new FileReader(manifestFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int hashEnd = line.indexOf(SEPARATOR);
+                int sizeEnd = hashEnd < 0 ? -1 : line.indexOf(SEPARATOR, hashEnd + 1);
+                if (sizeEnd < 0) {
+                    continue;
+                }
+
+                try {
+                    var megaPath = line.substring(sizeEnd + 1);
+                    long size = Long.parseLong(line, hashEnd + 1, sizeEnd, 10);
+                    if (size < 0) {
+                        entriesByPath.remove(megaPath);
+                    } else {
+                        entriesByPath.put(megaPath, new Entry(line.substring(0, hashEnd), size));
+                    }
+                } catch (NumberFormatException e) {
+                    //A record cut short by a crash
+                    LOG.trace("Skipping '{}'", line);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Manifest read error. Starting over: {}", e.getMessage());
+            entriesByPath.clear();
+        }
+    }
+
+    /**
+     * The content hash of the Dropbox API only changes with the bytes of the file, so a file that got a new revision
+     * without being changed still matches its upload. dbxcli doesn't list content hashes, so with it the revision
+     * has to do, and a file with a new revision is uploaded again even if its bytes are the same.
+     *
+     * @return what an upload made from the file is told apart by: its content hash when the listing has one,
+     * or else its revision
+     */
+    public static @NotNull String fingerprintOf(@NonNull DbxLongListFileInfo file) {
+        var contentHash = file.getContentHash();
+        return contentHash != null ?
+                contentHash :
+                file.getCurrentFileHash();
+    }
+
+    /**
+     * @param fingerprint see {@link #fingerprintOf}
+     * @return whether the path in Mega Cloud already holds an upload made from the same file
+     */
+    public boolean isUploaded(@NonNull String megaPath, @NonNull String fingerprint) {
+        Entry entry;
+        synchronized (this) {
+            entry = entriesByPath.get(megaPath);
+        }
+        if (entry == null || !entry.fingerprint().equals(fingerprint)) {
+            return false;
+        }
+
+        var remoteSize = loadRemoteSizes().get(megaPath);
+        return remoteSize != null && remoteSize == entry.size();
+    }
+
+    /**
+     * Listed outside of the lock on the entries, so uploads can be recorded in the meantime
+     */
+    private Map<String, Long> loadRemoteSizes() {
+        synchronized (listingLock) {
+            if (!isListingLoaded) {
+                isListingLoaded = true;
+                remoteSizes = new HashMap<>();
+                MegaFunctionManager.listMegaFiles(MEGA_CLOUD_NOTE_BASE_PATH)
+                        .ifPresentOrElse(
+                                files -> files.forEach(file -> remoteSizes.put(file.path(), file.size())),
+                                () -> LOG.warn("Mega Cloud listing failed. No upload is skipped this run")
+                        );
+            }
+            return remoteSizes;
+        }
+    }
+
+    /**
+     * @param fingerprint see {@link #fingerprintOf}
+     */
+    public synchronized void recordUpload(@NonNull String megaPath, @NonNull String fingerprint, long size) {
+        var entry = new Entry(fingerprint, size);
+        entriesByPath.put(megaPath, entry);
+        append(megaPath, entry);
+    }
+
+    /**
+     * Carries the uploads under the path over to where it was moved in Mega Cloud, whether it's a file or a folder
+     */
+    public synchronized void recordMove(@NonNull String fromPath, @NonNull String toPath) {
+        var prefix = fromPath + '/';
+        var movedPaths = entriesByPath.keySet()
+                .stream()
+                .filter(megaPath -> megaPath.equals(fromPath) || megaPath.startsWith(prefix))
+                .toList();
+
+        for (var megaPath : movedPaths) {
+            var entry = entriesByPath.remove(megaPath);
+            var movedPath = toPath + megaPath.substring(fromPath.length());
+            entriesByPath.put(movedPath, entry);
+            append(megaPath, REMOVED);
+            append(movedPath, entry);
+        }
+
+        synchronized (listingLock) {
+            if (remoteSizes != null) {
+                var movedSizes = remoteSizes.keySet()
+                        .stream()
+                        .filter(megaPath -> megaPath.equals(fromPath) || megaPath.startsWith(prefix))
+                        .toList();
+                movedSizes.forEach(megaPath -> remoteSizes.put(toPath + megaPath.substring(fromPath.length()),
+                        remoteSizes.remove(megaPath)));
+            }
+        }
+    }
+
+    /**
+     * Forgets the uploads at the paths, for files removed from Mega Cloud. A removal that failed is forgotten too,
+     * which only costs an upload that could've been skipped.
+     */
+    public synchronized void recordRemovals(@NonNull Collection<String> megaPaths) {
+        for (var megaPath : megaPaths) {
+            if (entriesByPath.remove(megaPath) != null) {
+                append(megaPath, REMOVED);
+            }
+        }
+    }
+
+    private void append(String megaPath, Entry entry) {
+        if (appender == null) {
+            return;
+        }
+
+        try {
+            write(appender, megaPath, entry);
+            appender.flush();
+        } catch (IOException e) {
+            //The next run uploads the file again, which is all a lost record costs
+            LOG.warn("Manifest append error at {}: {}", megaPath, e.getMessage());
+        }
+    }
+
+    /**
+     * Forgets every upload, for when the note directory in Mega Cloud is wiped
+     */
+    public synchronized void clear() {
+        entriesByPath.clear();
+        try {
+            compact();
+        } catch (IOException e) {
+            LOG.warn("Manifest compaction error: {}", e.getMessage());
+        }
+        LOG.info("Upload manifest cleared");
+    }
+
+    /**
+     * The rewrite goes to a temporary file that replaces the manifest in one move
+     */
+    private void compact() throws IOException {
+        closeAppender();
+
+        var directory = manifestFile.getAbsoluteFile().getParentFile();
+        var tempFile = File.createTempFile(manifestFile.getName(), ".tmp", directory);
+        try {
+            try (var writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                for (var pathEntry : entriesByPath.entrySet()) {
+                    write(writer, pathEntry.getKey(), pathEntry.getValue());
+                }
+            }
+            Files.move(tempFile.toPath(), manifestFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        } finally {
+            appender = Files.newBufferedWriter(manifestFile.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private static void write(BufferedWriter writer, String megaPath, Entry entry) throws IOException {
+        writer.write(entry.fingerprint());
+        writer.write(SEPARATOR);
+        writer.write(Long.toString(entry.size()));
+        writer.write(SEPARATOR);
+        writer.write(megaPath);
+        writer.newLine();
+    }
+
+    private void closeAppender() throws IOException {
+        if (appender != null) {
+            appender.close();
+            appender = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeAppender();
+    }
+
+    private record Entry(String fingerprint, long size) {
+    }
+}
@@ -0,0 +1,195 @@
+package jasmine.jragon.mega;
+
+import jasmine.jragon.dropbox.model.v2.IntermediateFile;
+import jasmine.jragon.mega.eliux.v2.MegaSession;
+import lombok.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static jasmine.jragon.LocalResourceManager.attemptFileDeletion;
+
+/**
+ * The {@code MegaUploadStage} gathers finished files in a staging tree that mirrors their folders in Mega Cloud,
+ * under the names they'll have there. A folder goes up with a single {@code mega-put} once it holds
+ * {@value BATCH_SIZE} files, and whatever is left goes up when the stage is {@linkplain #finish() finished}.
+ * <p>
+ * If the batch of a folder fails, the folder is listed once and only the files that didn't land, or landed with
+ * the wrong size, are uploaded again, one at a time, so only the files that fail on their own count as failed.
+ * Each file's outcome is reported back once its folder is uploaded.
+ */
+public final class MegaUploadStage {
+    private static final Logger LOG = LoggerFactory.getLogger(MegaUploadStage.class);
+
+    public static final String DEFAULT_STAGING_DIRECTORY = "mega-staging";
+    private static final int BATCH_SIZE = 25;
+
+    private final MegaSession megaSession;
+    private final File stagingDirectory;
+    private final List<String> erroneousFiles;
+    private final Map<String, Map<String, StagedFile>> batchesByFolder;
+    private int batchCount, fileCount;
+
+    /**
+     * @param erroneousFiles where the Dropbox paths of the files that didn't make it go
+     */
+    public MegaUploadStage(@NonNull MegaSession megaSession, @NonNull File stagingDirectory,
+                           @NonNull List<String> erroneousFiles) {
+        this.megaSession = megaSession;
+        this.stagingDirectory = stagingDirectory;
+        this.erroneousFiles = erroneousFiles;
+        batchesByFolder = new LinkedHashMap<>();
+    }
+
+    /**
+     * Moves the local file into the stage, which takes care of it from there. A file that can't be moved in is
+     * uploaded right away.
+     *
+     * @param onOutcome told whether the file made it to Mega Cloud
+     */
+    public void stage(@NonNull IntermediateFile intermediateFile, @NonNull Outcome onOutcome) {
+        var megaPath = intermediateFile.getMegaCloudPath();
+        var folder = megaPath.substring(0, Math.max(megaPath.lastIndexOf('/'), 0));
+        var stagedFile = new File(stagingDirectory, megaPath);
+        List<StagedFile> fullBatch = null;
+        boolean isStaged = false;
+
+        synchronized (this) {
+            var batch = batchesByFolder.computeIfAbsent(folder, key -> new LinkedHashMap<>());
+
+            //2 Dropbox files can lead to the same path in Mega Cloud, and the staged one can't be written over
+            if (!batch.containsKey(stagedFile.getName())) {
+                try {
+                    Files.createDirectories(stagedFile.getParentFile().toPath());
+                    Files.move(intermediateFile.createLocalFileObject().toPath(), stagedFile.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                    batch.put(stagedFile.getName(), new StagedFile(stagedFile, stagedFile.length(), megaPath,
+                            intermediateFile.getDropboxFilePath(), onOutcome));
+                    isStaged = true;
+                } catch (IOException e) {
+                    LOG.warn("Staging error at {}: {}", megaPath, e.getMessage());
+                }
+            }
+
+            if (batch.size() >= BATCH_SIZE) {
+                fullBatch = new ArrayList<>(batchesByFolder.remove(folder).values());
+            }
+        }
+
+        //Outside the lock, so the other threads can keep staging while the folder goes up
+        if (!isStaged) {
+            var localFile = intermediateFile.createLocalFileObject();
+            long size = localFile.length();
+            onOutcome.accept(MegaFunctionManager.sendFileToMega(intermediateFile, megaSession, erroneousFiles), size);
+            attemptFileDeletion(localFile);
+        }
+        if (fullBatch != null) {
+            upload(folder, fullBatch);
+        }
+    }
+
+    /**
+     * Uploads every folder that's still staged and clears the staging tree
+     */
+    public void finish() {
+        Map<String, List<StagedFile>> remainingBatches = new LinkedHashMap<>();
+        synchronized (this) {
+            batchesByFolder.forEach((folder, batch) -> remainingBatches.put(folder, new ArrayList<>(batch.values())));
+            batchesByFolder.clear();
+        }
+
+        remainingBatches.forEach(this::upload);
+        removeStagingTree();
+
+        synchronized (this) {
+            if (fileCount > 0) {
+                LOG.info("{} file(s) sent to Mega Cloud in {} folder batch(es)", fileCount, batchCount);
+            }
+        }
+    }
+
+    private void upload(String folder, List<StagedFile> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        var localFiles = batch.stream()
+                .map(stagedFile -> stagedFile.file().getPath())
+                .toList();
+        boolean isUploaded = batch.size() > 1 &&
+                MegaFunctionManager.sendFolderToMega(folder, localFiles, megaSession);
+        var landedSizes = isUploaded || batch.size() == 1 ?
+                Map.<String, Long>of() :
+                listLandedSizes(folder);
+
+        for (var stagedFile : batch) {
+            boolean isFileUploaded = isUploaded ||
+                    Long.valueOf(stagedFile.size()).equals(landedSizes.get(stagedFile.megaPath())) ||
+                    MegaFunctionManager.sendFileToMega(stagedFile.file().getPath(), stagedFile.megaPath(),
+                            stagedFile.dropboxFile(), megaSession, erroneousFiles);
+            stagedFile.onOutcome().accept(isFileUploaded, stagedFile.size());
+            attemptFileDeletion(stagedFile.file());
+        }
+
+        synchronized (this) {
+            batchCount++;
+            fileCount += batch.size();
+        }
+    }
+
+    /**
+     * A batch that broke off can have sent some of its files already, and a file of the same size at the path is
+     * taken to be the one that was sent. An older copy of exactly the same size would pass for it too, which is rare
+     * enough not to list every folder before its batch as well.
+     *
+     * @return the size of every file in the folder, or none if it couldn't be listed, so the whole batch is sent
+     * again one file at a time
+     */
+    private static Map<String, Long> listLandedSizes(String folder) {
+        var landedSizes = MegaFunctionManager.listMegaFiles(folder)
+                .map(files -> files.stream()
+                        .collect(Collectors.toMap(MegaRemoteFile::path, MegaRemoteFile::size,
+                                (first, second) -> second)))
+                .orElse(Map.of());
+        LOG.debug("{} file(s) listed in {} after the failed batch", landedSizes.size(), folder);
+        return landedSizes;
+    }
+
+    private void removeStagingTree() {
+        if (!stagingDirectory.isDirectory()) {
+            return;
+        }
+
+        //Deepest first, so every folder is empty by the time it's reached
+        try (Stream<Path> paths = Files.walk(stagingDirectory.toPath())) {
+            paths.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        } catch (IOException e) {
+            LOG.warn("Staging tree cleanup error: {}", e.getMessage());
+        }
+    }
+
+    @FunctionalInterface
+    public interface Outcome {
+        /**
+         * @param size of the file that was sent
+         */
+        void accept(boolean isUploaded, long size);
+    }
+
+    private record StagedFile(File file, long size, String megaPath, String dropboxFile, Outcome onOutcome) {
+    }
+}
@@ -178,7 +178,10 @@ public final class PDFEditor {
         return opt;
     }
 
-    private static OptionalInt extractImageIdValue(JSONObject jsonObject) {
+    /**
+     * Reads the template image ID out of a page's onyx tag. When the 2 IDs in the tag disagree, the larger one wins.
+     */
+    public static OptionalInt extractImageIdValue(JSONObject jsonObject) {
         var id = jsonObject.optString(JSON_ID_KEY, EMPTY_JSON_FIELD);
         var resId = jsonObject.optString(JSON_RESOURCE_KEY, EMPTY_JSON_FIELD);
         var attributes = jsonObject.optString(PDFHighlighter.JSON_ATTRIBUTES_KEY);
@@ -0,0 +1,86 @@
+package jasmine.jragon;
+
+import org.testng.annotations.Test;
+
+import java.time.Duration;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
+
+public class CircuitBreakerTest {
+    private static final Duration COOLDOWN = Duration.ofMillis(50);
+
+    @Test
+    public void opensAfterEnoughFailuresInARow() {
+        var breaker = new CircuitBreaker("Remote", 3, Duration.ofMinutes(1));
+
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+        assertTrue(breaker.tryAcquire());
+
+        breaker.recordFailure();
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(breaker.getRejectedCalls(), 1);
+        assertEquals(breaker.getTimesOpened(), 1);
+    }
+
+    @Test
+    public void successfulProbeClosesTheBreaker() throws InterruptedException {
+        var breaker = openBreaker();
+        Thread.sleep(COOLDOWN.toMillis() * 2);
+        assertFalse(breaker.isOpen());
+
+        assertTrue(breaker.tryAcquire());
+        assertEquals(breaker.getState(), CircuitBreaker.State.HALF_OPEN);
+        //Only the one probe goes through
+        assertFalse(breaker.tryAcquire());
+
+        breaker.recordSuccess();
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void failedProbeOpensTheBreakerAgain() throws InterruptedException {
+        var breaker = openBreaker();
+        Thread.sleep(COOLDOWN.toMillis() * 2);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.recordFailure();
+
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+        assertTrue(breaker.isOpen());
+        assertEquals(breaker.getTimesOpened(), 2);
+    }
+
+    @Test
+    public void probeThatNeverReportsBackIsReplacedAfterACooldown() throws InterruptedException {
+        var breaker = openBreaker();
+        Thread.sleep(COOLDOWN.toMillis() * 2);
+        assertTrue(breaker.tryAcquire());
+
+        Thread.sleep(COOLDOWN.toMillis() * 2);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(breaker.getState(), CircuitBreaker.State.HALF_OPEN);
+    }
+
+    @Test
+    public void thresholdBelowOneIsRejected() {
+        expectThrows(IllegalArgumentException.class, () -> new CircuitBreaker("Remote", 0, COOLDOWN));
+    }
+
+    private static CircuitBreaker openBreaker() {
+        var breaker = new CircuitBreaker("Remote", 1, COOLDOWN);
+        breaker.recordFailure();
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+        return breaker;
+    }
+}
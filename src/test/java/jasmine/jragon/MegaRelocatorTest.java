@@ -0,0 +1,119 @@
+package jasmine.jragon;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import jasmine.jragon.dropbox.model.v2.snapshot.ListingSnapshot;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class MegaRelocatorTest {
+    private static final String OLD_BASE = "/Apps/onyx-knote/NoteAir2-Notepads";
+    private static final String SECOND_BASE = "/Apps/onyx-knote/onyx/NoteAir2/Notepads";
+    private static final String MEGA_BASE = "Castle in the Sky/Boox-Notes";
+
+    private List<String> folderMoves, fileMoves;
+
+    @BeforeMethod
+    public void setUp() {
+        folderMoves = new ArrayList<>();
+        fileMoves = new ArrayList<>();
+    }
+
+    @Test
+    public void foldersStepDownOneLevelAtATime() {
+        var relocation = new MegaRelocator.Relocation("/Notes/Math/Algebra/a.pdf", "/Notes/Maths/Algebra/a.pdf");
+
+        assertEquals(relocation.folders(0), new MegaRelocator.Relocation("/Notes/Math", "/Notes/Maths"));
+        assertEquals(relocation.folders(1),
+                new MegaRelocator.Relocation("/Notes/Math/Algebra", "/Notes/Maths/Algebra"));
+        assertNull(relocation.folders(2));
+    }
+
+    @Test
+    public void renamedFileHasNoFoldersToMove() {
+        assertNull(new MegaRelocator.Relocation("/Notes/Math/a.pdf", "/Notes/Math/b.pdf").folders(0));
+    }
+
+    @Test
+    public void folderThatMovedWithEverythingInItMovesInOneGo() {
+        var relocator = relocator(
+                List.of(SECOND_BASE + "/Math/a.pdf", SECOND_BASE + "/Math/Algebra/b.pdf"),
+                List.of(SECOND_BASE + "/Maths/a.pdf", SECOND_BASE + "/Maths/Algebra/b.pdf"));
+        relocator.relocate(SECOND_BASE + "/Math/a.pdf", SECOND_BASE + "/Maths/a.pdf");
+        relocator.relocate(SECOND_BASE + "/Math/Algebra/b.pdf", SECOND_BASE + "/Maths/Algebra/b.pdf");
+
+        var relocatedPaths = relocator.flush();
+
+        assertEquals(folderMoves, List.of(MEGA_BASE + "/Math -> " + MEGA_BASE + "/Maths"));
+        assertTrue(fileMoves.isEmpty());
+        assertEquals(relocatedPaths, Set.of(SECOND_BASE + "/Maths/a.pdf", SECOND_BASE + "/Maths/Algebra/b.pdf"));
+    }
+
+    @Test
+    public void fileLeftUnderTheOtherBaseKeepsTheFolderWhereItIs() {
+        var relocator = relocator(
+                List.of(SECOND_BASE + "/Math/a.pdf", OLD_BASE + "/Math/c.pdf"),
+                List.of(SECOND_BASE + "/Maths/a.pdf", OLD_BASE + "/Math/c.pdf"));
+        relocator.relocate(SECOND_BASE + "/Math/a.pdf", SECOND_BASE + "/Maths/a.pdf");
+
+        var relocatedPaths = relocator.flush();
+
+        assertTrue(folderMoves.isEmpty());
+        assertEquals(fileMoves, List.of(MEGA_BASE + "/Math/a.pdf -> " + MEGA_BASE + "/Maths/a.pdf"));
+        assertEquals(relocatedPaths, Set.of(SECOND_BASE + "/Maths/a.pdf"));
+    }
+
+    @Test
+    public void fileThatWasUnderTheOtherBaseKeepsTheFolderWhereItIs() {
+        //Gone from Dropbox since, but still in the Mega folder
+        var relocator = relocator(
+                List.of(SECOND_BASE + "/Math/a.pdf", OLD_BASE + "/Math/c.pdf"),
+                List.of(SECOND_BASE + "/Maths/a.pdf"));
+        relocator.relocate(SECOND_BASE + "/Math/a.pdf", SECOND_BASE + "/Maths/a.pdf");
+
+        relocator.flush();
+
+        assertTrue(folderMoves.isEmpty());
+        assertEquals(fileMoves.size(), 1);
+    }
+
+    @Test
+    public void folderThatCouldNotBeMovedFallsBackToItsFiles() {
+        var relocator = new MegaRelocator((from, to) -> false, this::recordFileMove,
+                snapshot(List.of(SECOND_BASE + "/Math/a.pdf", SECOND_BASE + "/Math/b.pdf")),
+                listing(List.of(SECOND_BASE + "/Maths/a.pdf", SECOND_BASE + "/Maths/b.pdf")));
+        relocator.relocate(SECOND_BASE + "/Math/a.pdf", SECOND_BASE + "/Maths/a.pdf");
+        relocator.relocate(SECOND_BASE + "/Math/b.pdf", SECOND_BASE + "/Maths/b.pdf");
+
+        assertEquals(relocator.flush(), Set.of(SECOND_BASE + "/Maths/a.pdf", SECOND_BASE + "/Maths/b.pdf"));
+        assertEquals(fileMoves.size(), 2);
+    }
+
+    private MegaRelocator relocator(List<String> previousPaths, List<String> listedPaths) {
+        return new MegaRelocator((from, to) -> folderMoves.add(from + " -> " + to), this::recordFileMove,
+                snapshot(previousPaths), listing(listedPaths));
+    }
+
+    private boolean recordFileMove(String from, String to) {
+        return fileMoves.add(from + " -> " + to);
+    }
+
+    private static ListingSnapshot snapshot(List<String> paths) {
+        return ListingSnapshot.of(listing(paths));
+    }
+
+    private static List<DbxLongListFileInfo> listing(List<String> paths) {
+        return paths.stream()
+                .map(path -> DbxLongListFileInfo.ofFile(path, "0123456789abcdef01234", 1.5,
+                        DbxLongListFileInfo.FileSizeType.MEBIBYTES, 3, ChronoUnit.DAYS))
+                .toList();
+    }
+}
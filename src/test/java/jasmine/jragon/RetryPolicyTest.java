@@ -0,0 +1,128 @@
+package jasmine.jragon;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.expectThrows;
+
+public class RetryPolicyTest {
+    private static final Duration NO_DELAY = Duration.ZERO, LONG_BUDGET = Duration.ofMinutes(1);
+
+    @Test
+    public void lastResultIsReturnedOnceTheAttemptsRunOut() throws InterruptedException {
+        var policy = policy(breaker(), 3, LONG_BUDGET);
+        var attempts = new AtomicInteger();
+
+        int result = policy.retryWhile("target", number -> true, attemptNumber -> {
+            attempts.incrementAndGet();
+            return attemptNumber;
+        });
+
+        assertEquals(attempts.get(), 3);
+        assertEquals(result, 3);
+    }
+
+    @Test
+    public void firstResultThatIsNotRetryableIsReturned() throws InterruptedException {
+        var breaker = breaker();
+        var policy = policy(breaker, 5, LONG_BUDGET);
+
+        int result = policy.retryWhile("target", (Integer number) -> number < 2, attemptNumber -> attemptNumber);
+
+        assertEquals(result, 2);
+        assertEquals(breaker.getState(), CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void noAttemptIsStartedPastTheTimeBudget() {
+        var policy = policy(breaker(), 10, Duration.ofMillis(20));
+        var attempts = new AtomicInteger();
+
+        expectThrows(IOException.class, () -> policy.retryOn("target", IOException.class, failure -> true,
+                attemptNumber -> {
+                    attempts.incrementAndGet();
+                    Thread.sleep(30);
+                    throw new IOException("Connection reset");
+                }));
+
+        assertEquals(attempts.get(), 1);
+    }
+
+    @Test
+    public void lastFailureIsThrownOnceTheAttemptsRunOut() {
+        var policy = policy(breaker(), 3, LONG_BUDGET);
+
+        var failure = expectThrows(IOException.class, () -> policy.retryOn("target", IOException.class,
+                retryable -> true, attemptNumber -> {
+                    throw new IOException("Attempt " + attemptNumber);
+                }));
+
+        assertEquals(failure.getMessage(), "Attempt 3");
+    }
+
+    @Test
+    public void failureThatIsNotRetryableIsThrownRightAway() {
+        var policy = policy(breaker(), 5, LONG_BUDGET);
+        var attempts = new AtomicInteger();
+        var notFound = new IOException("not_found");
+
+        var failure = expectThrows(IOException.class, () -> policy.retryOn("target", IOException.class,
+                retryable -> !retryable.getMessage().equals("not_found"), attemptNumber -> {
+                    attempts.incrementAndGet();
+                    throw notFound;
+                }));
+
+        assertSame(failure, notFound);
+        assertEquals(attempts.get(), 1);
+    }
+
+    @Test
+    public void failureOfAnotherTypeIsThrownRightAway() {
+        var policy = policy(breaker(), 5, LONG_BUDGET);
+        var attempts = new AtomicInteger();
+
+        expectThrows(IllegalStateException.class, () -> policy.retryOn("target", IOException.class,
+                retryable -> true, attemptNumber -> {
+                    attempts.incrementAndGet();
+                    throw new IllegalStateException("Unreadable line");
+                }));
+
+        assertEquals(attempts.get(), 1);
+    }
+
+    @Test
+    public void retryingStopsOnceTheCircuitOpens() {
+        var breaker = new CircuitBreaker("Remote", 2, Duration.ofMinutes(1));
+        var policy = policy(breaker, 10, LONG_BUDGET);
+        var attempts = new AtomicInteger();
+
+        expectThrows(IOException.class, () -> policy.retryOn("target", IOException.class, retryable -> true,
+                attemptNumber -> {
+                    attempts.incrementAndGet();
+                    throw new IOException("Connection reset");
+                }));
+
+        assertEquals(attempts.get(), 2);
+        assertEquals(breaker.getState(), CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void invalidBoundsAreRejected() {
+        expectThrows(IllegalArgumentException.class, () -> policy(breaker(), 0, LONG_BUDGET));
+        expectThrows(IllegalArgumentException.class, () -> new RetryPolicy("Operation", breaker(), 3,
+                Duration.ofSeconds(2), Duration.ofSeconds(1), LONG_BUDGET));
+    }
+
+    private static CircuitBreaker breaker() {
+        return new CircuitBreaker("Remote", 100, Duration.ofMinutes(1));
+    }
+
+    private static RetryPolicy policy(CircuitBreaker breaker, int maxAttempts, Duration timeBudget) {
+        return new RetryPolicy("Operation", breaker, maxAttempts, NO_DELAY, NO_DELAY, timeBudget);
+    }
+}
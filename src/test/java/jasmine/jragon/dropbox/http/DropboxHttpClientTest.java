@@ -0,0 +1,213 @@
+package jasmine.jragon.dropbox.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
+
+/**
+ * Runs the client against a local {@link HttpServer} standing in for both Dropbox endpoints
+ */
+public class DropboxHttpClientTest {
+    private static final String BASE = "/Apps/onyx-knote/onyx/NoteAir2/Notepads";
+    private static final String CONTENT_HASH = "0f".repeat(32);
+
+    private HttpServer server;
+    private DropboxHttpClient client;
+    private final AtomicInteger batchChecks = new AtomicInteger();
+    private final AtomicReference<String> lastAuthorization = new AtomicReference<>();
+    private final AtomicReference<String> lastApiArgument = new AtomicReference<>();
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        batchChecks.set(0);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/2/files/list_folder", this::listFolder);
+        server.createContext("/2/files/download", this::download);
+        server.createContext("/2/files/delete_batch", this::deleteBatch);
+        server.start();
+
+        var endpoint = URI.create("http://localhost:" + server.getAddress().getPort() + "/2/");
+        client = new DropboxHttpClient("token", endpoint, endpoint);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void everyPageOfAListingIsHandedOver() throws Exception {
+        List<DbxLongListFileInfo> entries = new ArrayList<>();
+        client.listFolder(BASE, true, entries::add);
+
+        assertEquals(entries.size(), 3);
+        assertTrue(entries.get(0).isFolder());
+        assertEquals(entries.get(1).toString(), BASE + "/Physics/a.pdf");
+        assertEquals(entries.get(1).getCurrentFileHash(), "0123456789abcdef01234");
+        assertEquals(entries.get(1).getContentHash(), CONTENT_HASH);
+        assertEquals(entries.get(1).getFileSize(), 1.5);
+        assertEquals(entries.get(2).toString(), BASE + "/Physics/b.pdf");
+        assertEquals(lastAuthorization.get(), "Bearer token");
+    }
+
+    @Test
+    public void routeErrorCarriesTheSummary() {
+        var error = expectThrows(DropboxApiException.class, () -> client.listFolder("/missing", false, entry -> {
+        }));
+
+        assertEquals(error.getStatusCode(), 409);
+        assertEquals(error.getErrorSummary(), "path/not_found/..");
+        assertTrue(error.isNotFound());
+        assertFalse(error.isTransient());
+    }
+
+    @Test
+    public void emptyFolderIsTold() throws Exception {
+        assertTrue(client.isEmptyFolder("/empty"));
+        assertFalse(client.isEmptyFolder(BASE));
+    }
+
+    @Test
+    public void downloadGoesToTheFileAndNonAsciiIsEscapedInTheHeader() throws Exception {
+        var destination = Files.createTempFile("download", ".pdf");
+        try {
+            var metadata = client.download(BASE + "/Übung.pdf", destination);
+
+            assertEquals(Files.readString(destination), "%PDF-1.7");
+            assertEquals(metadata.getString("rev"), "0123456789abcdef01234");
+            assertTrue(lastApiArgument.get().contains("\\u00dc"), lastApiArgument.get());
+        } finally {
+            Files.deleteIfExists(destination);
+        }
+    }
+
+    @Test
+    public void failedDownloadLeavesNoFile() throws Exception {
+        var destination = Files.createTempFile("download", ".pdf");
+
+        var error = expectThrows(DropboxApiException.class, () -> client.download("/missing.pdf", destination));
+
+        assertTrue(error.isNotFound());
+        assertFalse(Files.exists(destination));
+    }
+
+    @Test
+    public void batchIsPolledUntilCompleteAndFailuresComeBackByPath() throws Exception {
+        var failures = client.deleteBatch(List.of("/a.pdf", "/b.pdf"));
+
+        assertEquals(failures, Map.of("/b.pdf", "path_lookup/not_found"));
+        assertEquals(batchChecks.get(), 2);
+    }
+
+    private void listFolder(HttpExchange exchange) throws IOException {
+        lastAuthorization.set(exchange.getRequestHeaders().getFirst("Authorization"));
+        var request = readJson(exchange);
+
+        if (exchange.getRequestURI().getPath().endsWith("/continue")) {
+            respond(exchange, 200, new JSONObject()
+                    .put("entries", new JSONArray().put(fileEntry("/Physics/b.pdf", 2048)))
+                    .put("has_more", false));
+            return;
+        }
+
+        switch (request.getString("path")) {
+            case "/missing" -> respond(exchange, 409, new JSONObject().put("error_summary", "path/not_found/.."));
+            case "/empty" -> respond(exchange, 200, new JSONObject()
+                    .put("entries", new JSONArray())
+                    .put("has_more", false));
+            default -> respond(exchange, 200, new JSONObject()
+                    .put("entries", new JSONArray()
+                            .put(new JSONObject().put(".tag", "folder").put("path_display", BASE + "/Physics"))
+                            .put(fileEntry("/Physics/a.pdf", 1536 * 1024)))
+                    .put("has_more", true)
+                    .put("cursor", "next"));
+        }
+    }
+
+    private void download(HttpExchange exchange) throws IOException {
+        var argument = exchange.getRequestHeaders().getFirst("Dropbox-API-Arg");
+        lastApiArgument.set(argument);
+
+        if (new JSONObject(argument).getString("path").startsWith("/missing")) {
+            respond(exchange, 409, new JSONObject().put("error_summary", "path/not_found/.."));
+            return;
+        }
+
+        exchange.getResponseHeaders().add("Dropbox-API-Result",
+                new JSONObject().put("rev", "0123456789abcdef01234").toString());
+        var body = "%PDF-1.7".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (var output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private void deleteBatch(HttpExchange exchange) throws IOException {
+        var request = readJson(exchange);
+
+        if (!exchange.getRequestURI().getPath().endsWith("/check")) {
+            assertEquals(request.getJSONArray("entries").length(), 2);
+            respond(exchange, 200, new JSONObject().put(".tag", "async_job_id").put("async_job_id", "job"));
+        } else if (batchChecks.incrementAndGet() < 2) {
+            respond(exchange, 200, new JSONObject().put(".tag", "in_progress"));
+        } else {
+            respond(exchange, 200, new JSONObject()
+                    .put(".tag", "complete")
+                    .put("entries", new JSONArray()
+                            .put(new JSONObject().put(".tag", "success"))
+                            .put(new JSONObject().put(".tag", "failure").put("failure", new JSONObject()
+                                    .put(".tag", "path_lookup")
+                                    .put("path_lookup", new JSONObject().put(".tag", "not_found"))))));
+        }
+    }
+
+    private static JSONObject fileEntry(String subPath, long size) {
+        return new JSONObject()
+                .put(".tag", "file")
+                .put("path_display", BASE + subPath)
+                .put("rev", "0123456789abcdef01234")
+                .put("size", size)
+                .put("server_modified", Instant.now().minusSeconds(3 * 86_400).toString().replaceAll("\\.\\d+", ""))
+                .put("content_hash", CONTENT_HASH);
+    }
+
+    private static JSONObject readJson(HttpExchange exchange) throws IOException {
+        try (var input = exchange.getRequestBody()) {
+            var body = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+            return body.isEmpty() ?
+                    new JSONObject() :
+                    new JSONObject(body);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, JSONObject body) throws IOException {
+        var bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (var output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package jasmine.jragon.dropbox.http;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class DropboxMetadataTest {
+    @Test
+    public void exactHalvesGoToTheEvenDigitLikeGo() {
+        //1.25 and 1.75 KiB are exact in binary, so Go's %.1f rounds them to the even tenth
+        assertEquals(DropboxMetadata.roundFileSize(1280), 1.2);
+        assertEquals(DropboxMetadata.roundFileSize(1792), 1.8);
+        //12.5 and 13.5 KiB with %.0f
+        assertEquals(DropboxMetadata.roundFileSize(12_800), 12.0);
+        assertEquals(DropboxMetadata.roundFileSize(13_824), 14.0);
+    }
+
+    @Test
+    public void sizesOffTheHalfRoundToTheNearest() {
+        assertEquals(DropboxMetadata.roundFileSize(1300), 1.3);
+        assertEquals(DropboxMetadata.roundFileSize(1536 * 1024), 1.5);
+        assertEquals(DropboxMetadata.roundFileSize(200 * 1024 * 1024 + 700 * 1024), 201.0);
+    }
+}
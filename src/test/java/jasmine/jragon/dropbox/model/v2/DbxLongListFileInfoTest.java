@@ -0,0 +1,86 @@
+package jasmine.jragon.dropbox.model.v2;
+
+import org.testng.annotations.Test;
+
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
+
+public class DbxLongListFileInfoTest {
+    private static final String FILE_LINE = "0123456789abcdef01234 1.5 MiB     3 days ago   " +
+            IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH + "/Physics/Übung (2).pdf";
+
+    @Test
+    public void fileLineIsReadFieldByField() {
+        var info = new DbxLongListFileInfo(FILE_LINE);
+
+        assertTrue(info.isFile());
+        assertEquals(info.getCurrentFileHash(), "0123456789abcdef01234");
+        assertEquals(info.getFileSize(), 1.5);
+        assertEquals(info.getFileSizePrefix(), DbxLongListFileInfo.FileSizeType.MEBIBYTES);
+        assertEquals(info.getModificationAge(), 3);
+        assertEquals(info.getModificationAgeUnit(), ChronoUnit.DAYS);
+        assertEquals(info.toString(), IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH + "/Physics/Übung (2).pdf");
+        assertEquals(info.getFileName(), "Übung (2).pdf");
+        assertEquals(info.getNoteFileSubdirectory(), "/Physics/Übung (2).pdf");
+    }
+
+    @Test
+    public void folderLineHasNoSizeOrAge() {
+        var info = new DbxLongListFileInfo("-       -       -         /Apps/onyx-knote/Some Folder");
+
+        assertTrue(info.isFolder());
+        assertEquals(info.getFileSize(), -1.0);
+        assertNull(info.getFileSizePrefix());
+        assertEquals(info.getModificationAge(), -1);
+        assertNull(info.getModificationAgeUnit());
+        assertEquals(info.getDropboxDirectoryList(), java.util.List.of("Apps", "onyx-knote", "Some Folder"));
+    }
+
+    @Test
+    public void blankAndForeignLinesAreRejected() {
+        var blank = expectThrows(IllegalArgumentException.class, () -> new DbxLongListFileInfo("   "));
+        assertEquals(blank.getMessage(), "Argument should not be blank");
+
+        var outsideBase = FILE_LINE.replace(IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH, "/Apps/other");
+        var foreign = expectThrows(IllegalArgumentException.class, () -> new DbxLongListFileInfo(outsideBase));
+        assertEquals(foreign.getMessage(),
+                "Argument doesn't match dropbox folder or file expression: " + outsideBase);
+    }
+
+    /**
+     * Valid lines and one-character edits of them go through the old regex parsing and the lexer, which have to
+     * agree on every field and every error message
+     */
+    @Test
+    public void lexerMatchesTheRegexParsing() {
+        var random = new Random(20_240_314L);
+        int checked = 0;
+
+        for (var line : ListingLines.generate(20_000, 42L)) {
+            assertSameOutcome(line);
+            assertSameOutcome(ListingLines.mutate(line, random));
+            checked += 2;
+        }
+        assertEquals(checked, 40_000);
+    }
+
+    private static void assertSameOutcome(String line) {
+        Object expected, actual;
+        try {
+            expected = LegacyLongListParser.parse(line);
+        } catch (RuntimeException e) {
+            expected = e.getClass().getName() + ": " + e.getMessage();
+        }
+        try {
+            actual = LegacyLongListParser.of(new DbxLongListFileInfo(line));
+        } catch (RuntimeException e) {
+            actual = e.getClass().getName() + ": " + e.getMessage();
+        }
+        assertEquals(actual, expected, line);
+    }
+}
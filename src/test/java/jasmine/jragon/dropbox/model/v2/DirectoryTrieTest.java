@@ -0,0 +1,116 @@
+package jasmine.jragon.dropbox.model.v2;
+
+import jasmine.jragon.dropbox.model.v2.movement.simple.FileMove;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class DirectoryTrieTest {
+    private static final String OLD_BASE = IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH;
+    private static final String NEW_BASE = IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH;
+
+    @Test
+    public void emptySubtreesAreReportedDeepestLevelFirst() {
+        var files = List.of(file(NEW_BASE + "/Physics/a.pdf"));
+        var folders = List.of(
+                folder(NEW_BASE),
+                folder(NEW_BASE + "/Physics"),
+                folder(NEW_BASE + "/Physics/Empty"),
+                folder(NEW_BASE + "/Empty"),
+                folder(NEW_BASE + "/Nested"),
+                folder(NEW_BASE + "/Nested/Empty")
+        );
+
+        var emptyFolders = emptyFolderPaths(DirectoryTrie.of(files, folders));
+
+        assertEquals(emptyFolders, List.of(
+                List.of(NEW_BASE + "/Nested/Empty", NEW_BASE + "/Physics/Empty"),
+                List.of(NEW_BASE + "/Empty", NEW_BASE + "/Nested")
+        ));
+    }
+
+    @Test
+    public void foldersLeftEmptyByARemovedFileAreReported() {
+        var file = file(NEW_BASE + "/Physics/Week 1/a.pdf");
+        var trie = DirectoryTrie.of(List.of(file),
+                List.of(folder(NEW_BASE + "/Physics"), folder(NEW_BASE + "/Physics/Week 1")));
+        assertTrue(trie.findEmptyFoldersByDepth().isEmpty());
+
+        assertTrue(trie.removeFile(file));
+        assertEquals(emptyFolderPaths(trie), List.of(
+                List.of(NEW_BASE + "/Physics/Week 1"),
+                List.of(NEW_BASE + "/Physics")
+        ));
+    }
+
+    @Test
+    public void baseDirectoriesAreNeverReported() {
+        var trie = DirectoryTrie.of(List.of(), List.of(folder(OLD_BASE), folder(NEW_BASE)));
+
+        assertTrue(trie.findEmptyFoldersByDepth().isEmpty());
+    }
+
+    @Test
+    public void movesWithRepeatedFolderNamesAreFound() {
+        var moves = moveCandidates(
+                file(OLD_BASE + "/Physics/Physics/a.pdf"),
+                file(NEW_BASE + "/Physics/Physics/Week 1/a.pdf")
+        );
+
+        assertEquals(moves.size(), 1);
+        assertTrue(moves.get(0).isValidMove());
+    }
+
+    @Test
+    public void renamedFolderIsFoundAtItsOwnLevel() {
+        var moves = moveCandidates(
+                file(NEW_BASE + "/Physics/Week 1/a.pdf"),
+                file(NEW_BASE + "/Physics 2/Week 1/a.pdf")
+        );
+
+        assertEquals(moves.size(), 1);
+    }
+
+    @Test
+    public void reorderedFoldersAreNotAMove() {
+        var first = file(OLD_BASE + "/Physics/Week 1/a.pdf");
+        var second = file(NEW_BASE + "/Week 1/Physics/Lab/a.pdf");
+
+        assertTrue(moveCandidates(first, second).isEmpty());
+        assertFalse(new FileMove(first, second).isValidMove());
+    }
+
+    private static List<FileMove> moveCandidates(DbxLongListFileInfo... files) {
+        List<FileMove> moves = new ArrayList<>();
+        DirectoryTrie.of(List.of(files), List.of()).forEachMoveCandidate((left, right) -> {
+            var move = new FileMove(left, right);
+            if (move.isValidMove() && !moves.contains(move)) {
+                moves.add(move);
+            }
+        });
+        return moves;
+    }
+
+    private static DbxLongListFileInfo file(String path) {
+        return new DbxLongListFileInfo("0123456789abcdef01234 1.5 MiB     3 days ago   " + path);
+    }
+
+    private static DbxLongListFileInfo folder(String path) {
+        return new DbxLongListFileInfo("-       -       -         " + path);
+    }
+
+    private static List<List<String>> emptyFolderPaths(DirectoryTrie trie) {
+        return trie.findEmptyFoldersByDepth()
+                .stream()
+                .map(level -> level.stream()
+                        .map(DbxLongListFileInfo::toString)
+                        .sorted()
+                        .toList())
+                .toList();
+    }
+}
@@ -0,0 +1,65 @@
+package jasmine.jragon.dropbox.model.v2;
+
+import java.time.temporal.ChronoUnit;
+import java.util.stream.Stream;
+
+/**
+ * The regex and split parsing {@link DbxLongListFileInfo} did before the {@link LongListLineLexer}, kept as the
+ * reference the lexer is checked and measured against
+ */
+final class LegacyLongListParser {
+    private static final String FOLDER_REGEX = "-\\s+-\\s+-\\s+[a-zA-Z\\d+ /-]+";
+    private static final String BASE_DIRECTORY = "[a-f0-9]{21} +\\d+(?:\\.\\d)? [KM]iB\\s+\\d{1,2} " +
+            "(month|day|second|hour|minute|year|week)s? ago\\s+%s/[a-zA-Z\\d+ /\\-äöüÄÖÜ.()]+\\.pdf";
+    private static final String OLD_FILE_REGEX =
+            String.format(BASE_DIRECTORY, IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH);
+    private static final String SECOND_FILE_REGEX =
+            String.format(BASE_DIRECTORY, IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH);
+
+    private LegacyLongListParser() {
+    }
+
+    static Entry parse(String line) {
+        if (line.isBlank()) {
+            throw new IllegalArgumentException("Argument should not be blank");
+        }
+
+        boolean noExpressionMatched = Stream.of(FOLDER_REGEX, OLD_FILE_REGEX, SECOND_FILE_REGEX)
+                .noneMatch(line::matches);
+        if (noExpressionMatched) {
+            throw new IllegalArgumentException("Argument doesn't match dropbox folder or file expression: " + line);
+        }
+
+        var path = line.substring(line.indexOf('/'));
+        if (line.charAt(0) == '-') {
+            return new Entry("-", -1, null, -1, null, path);
+        }
+
+        var splitArray = line.split("\\s+", 7);
+        var prefix = splitArray[2].contains(DbxLongListFileInfo.FileSizeType.KIBIBYTES.getAbbreviation()) ?
+                DbxLongListFileInfo.FileSizeType.KIBIBYTES :
+                DbxLongListFileInfo.FileSizeType.MEBIBYTES;
+        return new Entry(splitArray[0], Double.parseDouble(splitArray[1]), prefix,
+                Integer.parseInt(splitArray[3]), extractTimeUnit(splitArray[4]), path);
+    }
+
+    private static ChronoUnit extractTimeUnit(String word) {
+        return Stream.of(ChronoUnit.SECONDS, ChronoUnit.MINUTES, ChronoUnit.HOURS, ChronoUnit.DAYS,
+                        ChronoUnit.WEEKS, ChronoUnit.MONTHS, ChronoUnit.YEARS)
+                .filter(unit -> {
+                    var name = unit.toString().toLowerCase();
+                    return word.contains(name.substring(0, name.length() - 1));
+                })
+                .findFirst()
+                .orElse(null);
+    }
+
+    static Entry of(DbxLongListFileInfo info) {
+        return new Entry(info.getCurrentFileHash(), info.getFileSize(), info.getFileSizePrefix(),
+                info.getModificationAge(), info.getModificationAgeUnit(), info.toString());
+    }
+
+    record Entry(String hash, double fileSize, DbxLongListFileInfo.FileSizeType fileSizePrefix,
+                 int modificationAge, ChronoUnit modificationAgeUnit, String path) {
+    }
+}
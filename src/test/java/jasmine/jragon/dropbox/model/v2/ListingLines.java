@@ -0,0 +1,65 @@
+package jasmine.jragon.dropbox.model.v2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Seeded listing lines in the shape {@code dbxcli ls -l} prints them, for the lexer test and benchmark
+ */
+final class ListingLines {
+    private static final String HEX = "0123456789abcdef";
+    private static final String[] UNITS = {"second", "minute", "hour", "day", "week", "month", "year"};
+    private static final String[] NAMES = {"Physics", "Calculus II", "Lab (Notes)", "Übung", "ML-Week 3", "misc"};
+
+    private ListingLines() {
+    }
+
+    static List<String> generate(int count, long seed) {
+        var random = new Random(seed);
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(random.nextInt(10) == 0 ? folderLine(random) : fileLine(random));
+        }
+        return lines;
+    }
+
+    static String fileLine(Random random) {
+        var hash = new StringBuilder();
+        for (int i = 0; i < 21; i++) {
+            hash.append(HEX.charAt(random.nextInt(HEX.length())));
+        }
+
+        var size = random.nextBoolean() ?
+                Integer.toString(random.nextInt(1000)) :
+                random.nextInt(100) + "." + random.nextInt(10);
+        int age = 1 + random.nextInt(59);
+        var unit = UNITS[random.nextInt(UNITS.length)] + (age > 1 ? "s" : "");
+        var base = random.nextBoolean() ?
+                IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH :
+                IntermediateFile.SECOND_DROPBOX_NOTE_BASE_PATH;
+
+        return String.format("%s %s %s     %d %s ago   %s/%s/%s %d.pdf", hash, size,
+                random.nextBoolean() ? "KiB" : "MiB", age, unit, base,
+                NAMES[random.nextInt(NAMES.length)], NAMES[random.nextInt(NAMES.length)], random.nextInt(100));
+    }
+
+    static String folderLine(Random random) {
+        return "-       -       -         " + IntermediateFile.OLD_DROPBOX_NOTE_BASE_PATH + "/Folder-" +
+                random.nextInt(100);
+    }
+
+    /**
+     * Deletes, inserts or replaces one character, which lands on either side of the grammar
+     */
+    static String mutate(String line, Random random) {
+        var alphabet = " -./0123456789abcfgKMiBxyzäÖ()\t";
+        int position = random.nextInt(line.length());
+        char replacement = alphabet.charAt(random.nextInt(alphabet.length()));
+        return switch (random.nextInt(3)) {
+            case 0 -> line.substring(0, position) + line.substring(position + 1);
+            case 1 -> line.substring(0, position) + replacement + line.substring(position);
+            default -> line.substring(0, position) + replacement + line.substring(position + 1);
+        };
+    }
+}
@@ -0,0 +1,49 @@
+package jasmine.jragon.dropbox.model.v2;
+
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Times a 100k-line listing through the old regex and split parsing and through the {@link LongListLineLexer}.
+ * Each side gets a warm-up round, then the best of 5 rounds is kept.
+ * <p>
+ * Run with {@code ./gradlew benchmark}.
+ */
+@Slf4j
+public class LongListLineLexerBenchmark {
+    private static final int LINE_COUNT = 100_000;
+    private static final int ROUNDS = 5;
+
+    @Test(groups = "benchmark")
+    public void lexerParsesAListingManyTimesFasterThanTheRegexes() {
+        var lines = ListingLines.generate(LINE_COUNT, 7L);
+
+        long regexMillis = bestOf(lines, LegacyLongListParser::parse);
+        long lexerMillis = bestOf(lines, DbxLongListFileInfo::new);
+
+        log.info("{} listing lines: {} ms with regex+split -> {} ms with the lexer", LINE_COUNT,
+                regexMillis, lexerMillis);
+        assertTrue(lexerMillis * 5 < regexMillis,
+                String.format("%d ms is not a fifth of %d ms", lexerMillis, regexMillis));
+    }
+
+    private static long bestOf(List<String> lines, Consumer<String> parser) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            lines.forEach(parser);
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+            //Round 0 only warms up the JIT
+            if (round > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best;
+    }
+}
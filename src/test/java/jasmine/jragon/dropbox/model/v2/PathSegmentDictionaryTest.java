@@ -0,0 +1,37 @@
+package jasmine.jragon.dropbox.model.v2;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.expectThrows;
+
+public class PathSegmentDictionaryTest {
+    @Test
+    public void sameSegmentGetsTheSameIdFromEveryThread() {
+        var segments = IntStream.range(0, 2_000)
+                .mapToObj(i -> "segment-test-" + i)
+                .toList();
+
+        List<int[]> idsPerThread = IntStream.range(0, 8)
+                .parallel()
+                .mapToObj(thread -> segments.stream().mapToInt(PathSegmentDictionary::intern).toArray())
+                .toList();
+
+        var ids = idsPerThread.get(0);
+        for (var otherIds : idsPerThread) {
+            assertEquals(otherIds, ids);
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            assertEquals(PathSegmentDictionary.valueOf(ids[i]), segments.get(i));
+        }
+        assertEquals(IntStream.of(ids).distinct().count(), segments.size());
+    }
+
+    @Test
+    public void unknownIdIsRejected() {
+        expectThrows(IndexOutOfBoundsException.class, () -> PathSegmentDictionary.valueOf(-1));
+    }
+}
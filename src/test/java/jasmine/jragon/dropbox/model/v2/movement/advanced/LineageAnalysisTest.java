@@ -0,0 +1,141 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class LineageAnalysisTest {
+    private static final LocalDateTime MOD_TIME = LocalDateTime.of(2024, 3, 14, 15, 9, 26);
+
+    private PageGraph graph;
+
+    @BeforeMethod
+    public void setUp() {
+        graph = new PageGraph(0);
+    }
+
+    @Test
+    public void unrelatedDocumentsHaveNoOlderVersions() {
+        addDocument("/notes/a.pdf", 0, 1, 2, 3);
+        addDocument("/notes/b.pdf", 1, 4, 5, 6);
+
+        assertTrue(LineageAnalysis.groupChangedDocuments(graph).isEmpty());
+    }
+
+    @Test
+    public void sharedPageMakesTheOlderDocumentAVersion() {
+        addDocument("/notes/old.pdf", 0, 1, 2);
+        addDocument("/notes/new.pdf", 1, 1, 2, 3);
+
+        var groups = LineageAnalysis.groupChangedDocuments(graph);
+
+        assertEquals(groups.size(), 1);
+        assertEquals(groups.get(0).youngestCitation().getAbsolutePath(), "/notes/new.pdf");
+        assertEquals(groups.get(0).olderPaths(), List.of("/notes/old.pdf"));
+    }
+
+    @Test
+    public void chainOfVersionsIsOneGroup() {
+        addDocument("/notes/v1.pdf", 0, 1, 2);
+        addDocument("/notes/v2.pdf", 1, 2, 3);
+        addDocument("/notes/v3.pdf", 2, 3, 4);
+        addDocument("/notes/other.pdf", 0, 8, 9);
+
+        var groups = LineageAnalysis.groupChangedDocuments(graph);
+
+        assertEquals(groups.size(), 1);
+        assertEquals(groups.get(0).youngestCitation().getAbsolutePath(), "/notes/v3.pdf");
+        assertEquals(groups.get(0).olderPaths().stream().sorted().toList(),
+                List.of("/notes/v1.pdf", "/notes/v2.pdf"));
+    }
+
+    @Test
+    public void olderPathIsEmittedOnceNoMatterHowManyPagesItShares() {
+        addDocument("/notes/old.pdf", 0, 1, 2, 3, 4, 5);
+        addDocument("/notes/new.pdf", 1, 1, 2, 3, 4, 5, 6);
+
+        var groups = LineageAnalysis.groupChangedDocuments(graph);
+
+        assertEquals(groups.get(0).olderPaths(), List.of("/notes/old.pdf"));
+    }
+
+    @Test
+    public void pageChainThatLoopsBackFinishes() {
+        addDocument("/notes/old.pdf", 0, 1, 2, 1, 2);
+        addDocument("/notes/new.pdf", 1, 2, 1);
+
+        var groups = LineageAnalysis.groupChangedDocuments(graph);
+
+        assertEquals(groups.size(), 1);
+        assertEquals(groups.get(0).youngestCitation().getAbsolutePath(), "/notes/new.pdf");
+        assertEquals(groups.get(0).olderPaths(), List.of("/notes/old.pdf"));
+    }
+
+    @Test
+    public void nearDuplicateJoinsTheNewerLineage() {
+        var similarityIndex = new NotebookSimilarityIndex(0.45);
+        addSimilarDocument(similarityIndex, "/notes/old.pdf", 0, 0, 100);
+        addSimilarDocument(similarityIndex, "/notes/new.pdf", 1, 0, 160);
+
+        var groups = LineageAnalysis.groupChangedDocuments(graph, similarityIndex);
+
+        assertEquals(groups.size(), 1);
+        assertEquals(groups.get(0).youngestCitation().getAbsolutePath(), "/notes/new.pdf");
+        assertEquals(groups.get(0).olderPaths(), List.of("/notes/old.pdf"));
+    }
+
+    @Test
+    public void nearDuplicatesAreNotChained() {
+        var similarityIndex = new NotebookSimilarityIndex(0.45);
+        //a~b and b~c, but a and c only share a quarter of their content
+        addSimilarDocument(similarityIndex, "/notes/a.pdf", 0, 0, 100);
+        addSimilarDocument(similarityIndex, "/notes/b.pdf", 1, 0, 160);
+        addSimilarDocument(similarityIndex, "/notes/c.pdf", 2, 60, 160);
+
+        var groups = LineageAnalysis.groupChangedDocuments(graph, similarityIndex);
+
+        assertEquals(groups.size(), 1);
+        assertEquals(groups.get(0).youngestCitation().getAbsolutePath(), "/notes/c.pdf");
+        assertEquals(groups.get(0).olderPaths(), List.of("/notes/b.pdf"));
+    }
+
+    @Test
+    public void withoutASimilarityIndexOnlyExactPagesCount() {
+        var similarityIndex = new NotebookSimilarityIndex(0.45);
+        addSimilarDocument(similarityIndex, "/notes/old.pdf", 0, 0, 100);
+        addSimilarDocument(similarityIndex, "/notes/new.pdf", 1, 0, 160);
+
+        assertTrue(LineageAnalysis.groupChangedDocuments(graph).isEmpty());
+    }
+
+    /**
+     * A one-page document with nothing in common with the others page-wise, whose content tokens run from the
+     * first token up to the last one
+     */
+    private void addSimilarDocument(NotebookSimilarityIndex similarityIndex, String path, int age,
+                                    int firstToken, int lastToken) {
+        addDocument(path, age, path.hashCode());
+        similarityIndex.addDocument(graph.internPath(path), IntStream.range(firstToken, lastToken));
+    }
+
+    /**
+     * Every page of a document is cited with the same mod time, which is offset by the age of the document
+     */
+    private void addDocument(String path, int age, int... pageHashes) {
+        int pathId = graph.internPath(path);
+        int previous = PageGraph.NONE;
+        for (int page = 0; page < pageHashes.length; page++) {
+            int cluster = graph.addPage(pageHashes[page], pathId, page + 1, MOD_TIME.plusDays(age));
+            if (previous != PageGraph.NONE) {
+                graph.linkClusters(previous, cluster);
+            }
+            previous = cluster;
+        }
+    }
+}
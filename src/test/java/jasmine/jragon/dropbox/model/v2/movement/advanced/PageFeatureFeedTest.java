@@ -0,0 +1,118 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationSquare;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceDictionary;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
+import org.json.JSONObject;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class PageFeatureFeedTest {
+    private File feedFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        feedFile = File.createTempFile("page-features", ".jsonl");
+        Files.delete(feedFile.toPath());
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(feedFile.toPath());
+    }
+
+    /**
+     * Both pages carry the same annotation, so their cluster hashes are equal, like 2 pages whose hashes collide
+     */
+    @Test
+    public void pagesWithTheSameClusterHashAreToldApartByWhatsDrawnOnThem() throws IOException {
+        try (var document = createDocument(200, 300)) {
+            var fingerprint = fingerprint("/notes/a.pdf", document);
+            assertEquals(fingerprint.pages().get(0).getClusterHash(), fingerprint.pages().get(1).getClusterHash());
+
+            new PageFeatureFeed(feedFile).appendNewPages(fingerprint, document.getPages());
+        }
+
+        var fingerprints = readFingerprints();
+        assertEquals(fingerprints.size(), 2);
+        assertNotEquals(fingerprints.get(0), fingerprints.get(1));
+        assertTrue(fingerprints.stream().allMatch(fingerprint -> fingerprint.matches("[0-9a-f]{64}")));
+    }
+
+    @Test
+    public void pageAlreadyInTheFeedIsNotWrittenAgain() throws IOException {
+        try (var document = createDocument(200)) {
+            new PageFeatureFeed(feedFile).appendNewPages(fingerprint("/notes/a.pdf", document),
+                    document.getPages());
+        }
+        try (var document = createDocument(200, 300)) {
+            new PageFeatureFeed(feedFile).appendNewPages(fingerprint("/notes/b.pdf", document),
+                    document.getPages());
+        }
+
+        assertEquals(readFingerprints().size(), 2);
+    }
+
+    /**
+     * One page per height, each with a line drawn to that height and the same square annotation on it
+     */
+    private static PDDocument createDocument(int... lineHeights) throws IOException {
+        var document = new PDDocument();
+        for (int height : lineHeights) {
+            var page = new PDPage();
+            document.addPage(page);
+            try (var contents = new PDPageContentStream(document, page)) {
+                contents.moveTo(10, 10);
+                contents.lineTo(100, height);
+                contents.stroke();
+            }
+
+            var appearanceStream = new PDAppearanceStream(document);
+            appearanceStream.setBBox(new PDRectangle(0, 0, 20, 20));
+            try (var stroke = appearanceStream.getCOSObject().createOutputStream()) {
+                stroke.write("0 0 m 20 20 l S".getBytes(StandardCharsets.US_ASCII));
+            }
+            var appearance = new PDAppearanceDictionary();
+            appearance.setNormalAppearance(appearanceStream);
+
+            var annotation = new PDAnnotationSquare();
+            annotation.setRectangle(new PDRectangle(50, 50, 20, 20));
+            annotation.setAppearance(appearance);
+            page.getAnnotations().add(annotation);
+        }
+        return document;
+    }
+
+    private static DocumentFingerprint fingerprint(String path, PDDocument document) throws IOException {
+        List<GraphicsCluster> pages = new ArrayList<>();
+        for (int page = 0; page < document.getNumberOfPages(); page++) {
+            List<PDAnnotation> annotations = document.getPage(page).getAnnotations();
+            pages.add(new GraphicsCluster(page + 1, annotations));
+        }
+        return new DocumentFingerprint(path, List.copyOf(pages));
+    }
+
+    private List<String> readFingerprints() throws IOException {
+        return Files.readAllLines(feedFile.toPath(), StandardCharsets.UTF_8)
+                .stream()
+                .map(line -> new JSONObject(line).getString("fingerprint"))
+                .toList();
+    }
+}
@@ -0,0 +1,161 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import lombok.extern.slf4j.Slf4j;
+import org.testng.annotations.Test;
+import speiger.src.collections.ints.maps.impl.customHash.Int2ObjectLinkedOpenCustomHashMap;
+import speiger.src.collections.ints.maps.interfaces.Int2ObjectMap;
+import speiger.src.collections.ints.utils.IntStrategy;
+
+import java.lang.ref.Reference;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Measures the heap the page graph keeps alive per indexed page, with the columnar {@link PageGraph} next to the
+ * object graph it replaced. The old layout is rebuilt here field for field, since it's gone from the main source.
+ * <p>
+ * Run with {@code ./gradlew benchmark}. Numbers are read off the heap after a GC, so they're estimates, but the
+ * gap between the layouts is far wider than the noise.
+ */
+@Slf4j
+public class PageGraphFootprintBenchmark {
+    private static final int NOTEBOOK_COUNT = 400;
+    private static final int PAGES_PER_NOTEBOOK = 20;
+    /**
+     * Every other notebook is a newer version of the one before it, with the first pages unchanged
+     */
+    private static final int SHARED_PAGES = 15;
+    private static final LocalDateTime MOD_TIME = LocalDateTime.of(2024, 3, 14, 15, 9, 26);
+
+    @Test(groups = "benchmark")
+    public void columnarGraphKeepsAFractionOfTheObjectGraph() {
+        for (int annotationsPerPage : new int[]{2, 12}) {
+            double legacyBytes = bytesPerPage(() -> buildLegacyGraph(annotationsPerPage));
+            double columnarBytes = bytesPerPage(PageGraphFootprintBenchmark::buildPageGraph);
+
+            log.info("{} annotation(s)/page: {} -> {} bytes per indexed page", annotationsPerPage,
+                    Math.round(legacyBytes), Math.round(columnarBytes));
+            assertTrue(columnarBytes * 4 < legacyBytes,
+                    String.format("%.0f bytes/page is not a quarter of %.0f", columnarBytes, legacyBytes));
+        }
+    }
+
+    private static double bytesPerPage(Supplier<Object> build) {
+        long before = usedHeap();
+        var graph = build.get();
+        long after = usedHeap();
+        Reference.reachabilityFence(graph);
+        return (double) (after - before) / (NOTEBOOK_COUNT * PAGES_PER_NOTEBOOK);
+    }
+
+    private static long usedHeap() {
+        var runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static int pageHash(int notebook, int page) {
+        int lineage = notebook / 2;
+        boolean isShared = notebook % 2 == 0 || page < SHARED_PAGES;
+        return 31 * (31 * lineage + page) + (isShared ? 1 : notebook) + 1;
+    }
+
+    private static PageGraph buildPageGraph() {
+        var graph = new PageGraph(0);
+        for (int notebook = 0; notebook < NOTEBOOK_COUNT; notebook++) {
+            int pathId = graph.internPath("/storage/emulated/0/note/notebook-" + notebook + ".pdf");
+            int previous = PageGraph.NONE;
+            for (int page = 0; page < PAGES_PER_NOTEBOOK; page++) {
+                int cluster = graph.addPage(pageHash(notebook, page), pathId, page + 1,
+                        MOD_TIME.plusMinutes(notebook));
+                if (previous != PageGraph.NONE) {
+                    graph.linkClusters(previous, cluster);
+                }
+                previous = cluster;
+            }
+        }
+        return graph;
+    }
+
+    private static Int2ObjectMap<LegacyCluster> buildLegacyGraph(int annotationsPerPage) {
+        Int2ObjectMap<LegacyCluster> indexMap = new Int2ObjectLinkedOpenCustomHashMap<>(2500, 0.99f,
+                IntStrategy.NORMAL);
+        for (int notebook = 0; notebook < NOTEBOOK_COUNT; notebook++) {
+            var path = "/storage/emulated/0/note/notebook-" + notebook + ".pdf";
+            LegacyCluster previous = null;
+            for (int page = 0; page < PAGES_PER_NOTEBOOK; page++) {
+                int hash = pageHash(notebook, page);
+                var cluster = new LegacyCluster(path, page + 1, hash, annotationsPerPage,
+                        MOD_TIME.plusMinutes(notebook));
+
+                var existing = indexMap.get(hash);
+                if (existing == null) {
+                    indexMap.put(hash, cluster);
+                } else {
+                    existing.foundPaths.addAll(cluster.foundPaths);
+                    cluster = existing;
+                }
+
+                if (previous != null) {
+                    previous.outgoingNodes.add(cluster);
+                    cluster.incomingNodes.add(previous);
+                }
+                previous = cluster;
+            }
+        }
+        return indexMap;
+    }
+
+    /**
+     * The fields the old {@code GraphicsCluster} kept alive for every distinct page
+     */
+    private static final class LegacyCluster {
+        private final Set<LegacyCluster> incomingNodes = new HashSet<>(3, 1.0f);
+        private final Set<LegacyCluster> outgoingNodes = new HashSet<>(3, 1.0f);
+        private final Set<LegacyCitation> foundPaths = new TreeSet<>();
+        private final int pageNumber;
+        private final List<LegacyNode> graphicsNodes;
+        private final int clusterHash;
+
+        private LegacyCluster(String path, int pageNumber, int clusterHash, int annotationCount,
+                              LocalDateTime modTime) {
+            this.pageNumber = pageNumber;
+            this.clusterHash = clusterHash;
+            List<LegacyNode> nodes = new ArrayList<>(annotationCount);
+            for (int i = 0; i < annotationCount; i++) {
+                nodes.add(new LegacyNode(
+                        String.format("%060d", (long) clusterHash * 1000 + i),
+                        new float[]{i, i + 1, i + 2, i + 3},
+                        modTime
+                ));
+            }
+            graphicsNodes = List.copyOf(nodes);
+            foundPaths.add(new LegacyCitation(path, pageNumber, modTime));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * clusterHash + pageNumber;
+        }
+    }
+
+    private record LegacyNode(String compressedStreamSample, float[] location, LocalDateTime modTime) {
+    }
+
+    private record LegacyCitation(String absolutePath, int pageNumber, LocalDateTime modTime)
+            implements Comparable<LegacyCitation> {
+        @Override
+        public int compareTo(LegacyCitation o) {
+            return modTime.compareTo(o.modTime);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class PageGraphTest {
+    private static final LocalDateTime MOD_TIME = LocalDateTime.of(2024, 3, 14, 15, 9, 26);
+
+    private PageGraph graph;
+
+    @BeforeMethod
+    public void setUp() {
+        graph = new PageGraph(0);
+    }
+
+    @Test
+    public void internPathHandsOutOneIdPerPath() {
+        int first = graph.internPath("/notes/a.pdf");
+        int second = graph.internPath("/notes/b.pdf");
+
+        assertEquals(graph.internPath("/notes/a.pdf"), first);
+        assertNotEquals(second, first);
+        assertEquals(graph.pathCount(), 2);
+        assertEquals(graph.path(second), "/notes/b.pdf");
+    }
+
+    @Test
+    public void samePageHashSharesOneCluster() {
+        int a = graph.internPath("/notes/a.pdf");
+        int b = graph.internPath("/notes/b.pdf");
+
+        int first = graph.addPage(42, a, 1, MOD_TIME);
+        int other = graph.addPage(7, a, 2, MOD_TIME);
+        int repeat = graph.addPage(42, b, 1, MOD_TIME.plusDays(1));
+
+        assertEquals(repeat, first);
+        assertEquals(first, 0);
+        assertEquals(other, 1);
+        assertEquals(graph.clusterCount(), 2);
+        assertEquals(graph.getClusterHash(other), 7);
+        assertEquals(citationPaths(first), List.of("/notes/b.pdf", "/notes/a.pdf"));
+    }
+
+    @Test
+    public void citationWithRepeatedModTimeIsDropped() {
+        int a = graph.internPath("/notes/a.pdf");
+        int b = graph.internPath("/notes/b.pdf");
+
+        int cluster = graph.addPage(42, a, 1, MOD_TIME);
+        graph.addPage(42, b, 3, MOD_TIME);
+
+        assertEquals(citationPaths(cluster), List.of("/notes/a.pdf"));
+        assertFalse(graph.hasMultipleConnections(cluster));
+    }
+
+    @Test
+    public void duplicateEdgesAreLinkedOnce() {
+        int a = graph.internPath("/notes/a.pdf");
+        int from = graph.addPage(1, a, 1, MOD_TIME);
+        int to = graph.addPage(2, a, 2, MOD_TIME);
+        int elsewhere = graph.addPage(3, a, 3, MOD_TIME);
+
+        graph.linkClusters(from, to);
+        graph.linkClusters(from, to);
+        assertEquals(edgeTargets(from), List.of(to));
+        assertFalse(graph.hasMultipleConnections(from));
+
+        graph.linkClusters(from, elsewhere);
+        assertEquals(edgeTargets(from), List.of(elsewhere, to));
+        assertTrue(graph.hasMultipleConnections(from));
+    }
+
+    @Test
+    public void anchorIsTheFirstClusterTheDocumentCites() {
+        int a = graph.internPath("/notes/a.pdf");
+        assertEquals(graph.pathAnchorCluster(a), PageGraph.NONE);
+
+        int first = graph.addPage(9, a, 1, MOD_TIME);
+        graph.addPage(10, a, 2, MOD_TIME);
+
+        assertEquals(graph.pathAnchorCluster(a), first);
+    }
+
+    @Test
+    public void arraysGrowPastTheInitialCapacity() {
+        int pageCount = 1000;
+        int previous = PageGraph.NONE;
+        for (int page = 0; page < pageCount; page++) {
+            int pathId = graph.internPath("/notes/" + page + ".pdf");
+            int cluster = graph.addPage(page + 1, pathId, 1, MOD_TIME.plusSeconds(page));
+            if (previous != PageGraph.NONE) {
+                graph.linkClusters(previous, cluster);
+            }
+            previous = cluster;
+        }
+
+        assertEquals(graph.clusterCount(), pageCount);
+        assertEquals(graph.pathCount(), pageCount);
+        for (int cluster = 0; cluster < pageCount; cluster++) {
+            assertEquals(graph.getClusterHash(cluster), cluster + 1);
+            assertEquals(citationPaths(cluster), List.of("/notes/" + cluster + ".pdf"));
+            assertEquals(edgeTargets(cluster), cluster + 1 < pageCount ? List.of(cluster + 1) : List.of());
+        }
+    }
+
+    @Test
+    public void citationUnpacksToTheInternedPath() {
+        int a = graph.internPath("/notes/a.pdf");
+        int cluster = graph.addPage(42, a, 5, MOD_TIME);
+
+        var citation = graph.citation(graph.firstCitation(cluster));
+
+        assertSame(citation.getAbsolutePath(), graph.path(a));
+        assertEquals(citation, new GraphicsCluster.PageCitation("/notes/a.pdf", 5, MOD_TIME));
+    }
+
+    private List<String> citationPaths(int cluster) {
+        List<String> paths = new ArrayList<>();
+        for (int c = graph.firstCitation(cluster); c != PageGraph.NONE; c = graph.nextCitation(c)) {
+            paths.add(graph.path(graph.citationPathId(c)));
+        }
+        return paths;
+    }
+
+    private List<Integer> edgeTargets(int cluster) {
+        List<Integer> targets = new ArrayList<>();
+        for (int e = graph.firstEdge(cluster); e != PageGraph.NONE; e = graph.nextEdge(e)) {
+            targets.add(graph.edgeTarget(e));
+        }
+        return targets;
+    }
+}
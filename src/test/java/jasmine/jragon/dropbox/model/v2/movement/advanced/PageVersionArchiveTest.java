@@ -0,0 +1,115 @@
+package jasmine.jragon.dropbox.model.v2.movement.advanced;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class PageVersionArchiveTest {
+    private Path archiveDirectory;
+    private PageVersionArchive archive;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        archiveDirectory = Files.createTempDirectory("version-archive");
+        archive = new PageVersionArchive(archiveDirectory.toFile());
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(archiveDirectory)) {
+            paths.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void pagesWithoutAnnotationsAreKeyedByWhatsDrawnOnThem() throws IOException {
+        try (var document = createDocument(10, 200)) {
+            archive.storeVersion(fingerprint("/notes/a.pdf", document), document.getPages());
+        }
+
+        var pageKeys = archive.listVersions("/notes/a.pdf").get(0).pageKeys();
+        assertEquals(pageKeys.size(), 2);
+        assertNotEquals(pageKeys.get(0), pageKeys.get(1));
+        assertEquals(storedPageCount(), 2);
+    }
+
+    @Test
+    public void unchangedPagesAreStoredOnce() throws IOException {
+        try (var document = createDocument(10, 200)) {
+            archive.storeVersion(fingerprint("/notes/a.pdf", document), document.getPages());
+        }
+        try (var document = createDocument(10, 300)) {
+            archive.storeVersion(fingerprint("/notes/a.pdf", document), document.getPages());
+        }
+
+        var versions = archive.listVersions("/notes/a.pdf");
+        assertEquals(versions.size(), 2);
+        assertEquals(versions.get(1).pageKeys().get(0), versions.get(0).pageKeys().get(0));
+        assertNotEquals(versions.get(1).pageKeys().get(1), versions.get(0).pageKeys().get(1));
+        assertEquals(storedPageCount(), 3);
+    }
+
+    @Test
+    public void versionIsRebuiltFromItsPages() throws IOException {
+        try (var document = createDocument(10, 200)) {
+            archive.storeVersion(fingerprint("/notes/a.pdf", document), document.getPages());
+        }
+        var version = archive.listVersions("/notes/a.pdf").get(0);
+        var outputFile = archiveDirectory.resolve("rebuilt.pdf").toFile();
+
+        assertTrue(archive.rebuildVersion(version.versionId(), outputFile));
+        try (var rebuilt = Loader.loadPDF(outputFile)) {
+            assertEquals(rebuilt.getNumberOfPages(), 2);
+        }
+    }
+
+    /**
+     * A document of 2 pages with no annotations, each with a single line drawn to the given height
+     */
+    private static PDDocument createDocument(int... lineHeights) throws IOException {
+        var document = new PDDocument();
+        for (int height : lineHeights) {
+            var page = new PDPage();
+            document.addPage(page);
+            try (var contents = new PDPageContentStream(document, page)) {
+                contents.moveTo(10, 10);
+                contents.lineTo(100, height);
+                contents.stroke();
+            }
+        }
+        return document;
+    }
+
+    private static DocumentFingerprint fingerprint(String path, PDDocument document) {
+        List<GraphicsCluster> pages = new ArrayList<>();
+        for (int page = 1; page <= document.getNumberOfPages(); page++) {
+            pages.add(new GraphicsCluster(page, List.of()));
+        }
+        return new DocumentFingerprint(path, List.copyOf(pages));
+    }
+
+    private long storedPageCount() throws IOException {
+        try (Stream<Path> pages = Files.list(archiveDirectory.resolve("pages"))) {
+            return pages.count();
+        }
+    }
+}
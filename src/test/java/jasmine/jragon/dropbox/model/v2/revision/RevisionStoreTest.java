@@ -0,0 +1,74 @@
+package jasmine.jragon.dropbox.model.v2.revision;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.temporal.ChronoUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class RevisionStoreTest {
+    private static final String BASE = "/Apps/onyx-knote/onyx/NoteAir2/Notepads";
+    private static final String FIRST_REVISION = "0123456789abcdef01234", SECOND_REVISION = "0123456789abcdef05678",
+            THIRD_REVISION = "0123456789abcdef09abc";
+
+    private File logFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        logFile = File.createTempFile("revision-log", ".txt");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(logFile.toPath());
+    }
+
+    @Test
+    public void recordsSurviveAReopen() throws IOException {
+        try (var store = RevisionStore.open(logFile)) {
+            store.recordTransfer(file("/a.pdf", FIRST_REVISION));
+        }
+
+        try (var store = RevisionStore.open(logFile)) {
+            assertTrue(store.isTransferredAt(FIRST_REVISION, BASE + "/a.pdf"));
+        }
+    }
+
+    @Test
+    public void unterminatedLastLineIsBrokenEvenIfItLooksWhole() throws IOException {
+        Files.writeString(logFile.toPath(),
+                "T\t" + FIRST_REVISION + "\t" + BASE + "/a.pdf\n" +
+                        "T\t" + SECOND_REVISION + "\t" + BASE + "/b",
+                StandardCharsets.UTF_8);
+
+        try (var store = RevisionStore.open(logFile)) {
+            assertTrue(store.containsRevision(FIRST_REVISION));
+            assertFalse(store.containsRevision(SECOND_REVISION));
+
+            store.recordTransfer(file("/c.pdf", THIRD_REVISION));
+        }
+
+        var lines = Files.readAllLines(logFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(lines.size(), 2);
+        assertTrue(lines.stream().allMatch(line -> line.matches("T\t[0-9a-f]{21}\t/.*\\.pdf")), lines.toString());
+
+        try (var store = RevisionStore.open(logFile)) {
+            assertTrue(store.isTransferredAt(FIRST_REVISION, BASE + "/a.pdf"));
+            assertTrue(store.isTransferredAt(THIRD_REVISION, BASE + "/c.pdf"));
+        }
+    }
+
+    private static DbxLongListFileInfo file(String subPath, String revision) {
+        return DbxLongListFileInfo.ofFile(BASE + subPath, revision, 1.5,
+                DbxLongListFileInfo.FileSizeType.MEBIBYTES, 3, ChronoUnit.DAYS);
+    }
+}
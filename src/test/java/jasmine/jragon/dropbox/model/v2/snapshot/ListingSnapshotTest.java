@@ -0,0 +1,97 @@
+package jasmine.jragon.dropbox.model.v2.snapshot;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Optional;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ListingSnapshotTest {
+    private static final String BASE = "/Apps/onyx-knote/onyx/NoteAir2/Notepads";
+    private static final String FIRST_REVISION = "0123456789abcdef01234", SECOND_REVISION = "0123456789abcdef05678";
+    private static final String FIRST_CONTENT = "a".repeat(64), SECOND_CONTENT = "b".repeat(64);
+
+    @Test
+    public void movedRevisionIsAMove() {
+        var previous = ListingSnapshot.of(List.of(file("/Math/Old.pdf", FIRST_REVISION, null)));
+        var current = ListingSnapshot.of(List.of(file("/Archive/Math/New.pdf", FIRST_REVISION, null)));
+
+        var delta = current.diff(previous);
+
+        assertEquals(delta.moved(), List.of(new ListingDelta.Move(BASE + "/Math/Old.pdf",
+                BASE + "/Archive/Math/New.pdf")));
+        assertTrue(delta.added().isEmpty());
+        assertTrue(delta.removed().isEmpty());
+    }
+
+    @Test
+    public void sameContentUnderANewRevisionIsAMove() {
+        var previous = ListingSnapshot.of(List.of(file("/Math/Old.pdf", FIRST_REVISION, FIRST_CONTENT)));
+        var current = ListingSnapshot.of(List.of(file("/Archive/New.pdf", SECOND_REVISION, FIRST_CONTENT)));
+
+        assertEquals(current.diff(previous).moved().size(), 1);
+    }
+
+    @Test
+    public void differentContentIsNoMoveWhateverTheRevision() {
+        var previous = ListingSnapshot.of(List.of(file("/Math/Old.pdf", FIRST_REVISION, FIRST_CONTENT)));
+        var current = ListingSnapshot.of(List.of(file("/Archive/New.pdf", FIRST_REVISION, SECOND_CONTENT)));
+
+        var delta = current.diff(previous);
+
+        assertTrue(delta.moved().isEmpty());
+        assertEquals(delta.added(), List.of(BASE + "/Archive/New.pdf"));
+        assertEquals(delta.removed(), List.of(BASE + "/Math/Old.pdf"));
+    }
+
+    @Test
+    public void pathStillListedIsNeverTheSourceOfAMove() {
+        var previous = ListingSnapshot.of(List.of(file("/Math/Old.pdf", FIRST_REVISION, FIRST_CONTENT)));
+        var current = ListingSnapshot.of(List.of(
+                file("/Math/Old.pdf", FIRST_REVISION, FIRST_CONTENT),
+                file("/Archive/Copy.pdf", SECOND_REVISION, FIRST_CONTENT)
+        ));
+
+        var delta = current.diff(previous);
+
+        assertTrue(delta.moved().isEmpty());
+        assertEquals(delta.added(), List.of(BASE + "/Archive/Copy.pdf"));
+    }
+
+    @Test
+    public void contentHashesAndRevisionsSurviveTheFile() throws IOException {
+        var snapshotFile = File.createTempFile("listing-snapshot", ".bin");
+        try {
+            var snapshot = ListingSnapshot.of(List.of(
+                    file("/Math/Old.pdf", FIRST_REVISION, FIRST_CONTENT),
+                    file("/Math/Other.pdf", SECOND_REVISION, null)
+            ));
+            snapshot.write(snapshotFile);
+            var read = ListingSnapshot.read(snapshotFile);
+
+            assertEquals(read.size(), 2);
+            assertEquals(read.findRevision(BASE + "/Math/Old.pdf"), Optional.of(FIRST_REVISION));
+            assertEquals(read.findRevision(BASE + "/Math/Missing.pdf"), Optional.empty());
+
+            var moved = ListingSnapshot.of(List.of(file("/New.pdf", SECOND_REVISION, FIRST_CONTENT),
+                    file("/Math/Other.pdf", SECOND_REVISION, null)));
+            assertEquals(moved.diff(read).moved(), List.of(new ListingDelta.Move(BASE + "/Math/Old.pdf",
+                    BASE + "/New.pdf")));
+        } finally {
+            Files.deleteIfExists(snapshotFile.toPath());
+        }
+    }
+
+    private static DbxLongListFileInfo file(String subPath, String revision, @Nullable String contentHash) {
+        return DbxLongListFileInfo.ofFile(BASE + subPath, revision, contentHash, 1.5,
+                DbxLongListFileInfo.FileSizeType.MEBIBYTES, 3, ChronoUnit.DAYS);
+    }
+}
@@ -0,0 +1,89 @@
+package jasmine.jragon.mega;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Without Mega CMD around, every root listing fails, so every folder starts out missing
+ */
+public class MegaDirectoryTreeTest {
+    @Test
+    public void folderIsCreatedOnceAndRemembered() {
+        var tree = new MegaDirectoryTree();
+        var creations = new AtomicInteger();
+
+        assertTrue(tree.ensureDirectories(List.of("/Root/Notes/Physics", "Root/Notes"), directory -> {
+            creations.incrementAndGet();
+            return true;
+        }).isEmpty());
+        assertTrue(tree.ensureDirectory("Root/Notes/Physics/", directory -> creations.incrementAndGet() < 0));
+
+        assertEquals(creations.get(), 1);
+        assertTrue(tree.contains("Root/Notes"));
+    }
+
+    @Test
+    public void folderThatCouldNotBeCreatedIsTriedAgain() {
+        var tree = new MegaDirectoryTree();
+
+        assertEquals(tree.ensureDirectories(List.of("Root/Notes/Physics"), directory -> false),
+                List.of("Root/Notes/Physics"));
+        assertFalse(tree.contains("Root/Notes/Physics"));
+        assertTrue(tree.ensureDirectory("Root/Notes/Physics", directory -> true));
+    }
+
+    @Test
+    public void folderUnderARootThatCouldNotBeListedIsNotVouchedFor() {
+        var tree = new MegaDirectoryTree();
+
+        assertFalse(tree.isListed("Root/Notes/Physics"));
+        assertFalse(tree.isListed("Root/Notes"));
+        assertFalse(tree.contains("Root/Notes/Physics"));
+    }
+
+    @Test(timeOut = 10_000)
+    public void slowCreationOnlyHoldsUpWhoeverNeedsTheSameFolder() throws Exception {
+        var tree = new MegaDirectoryTree();
+        var isCreating = new CountDownLatch(1);
+        var mayFinish = new CountDownLatch(1);
+        var creations = new AtomicInteger();
+
+        var first = CompletableFuture.supplyAsync(() -> tree.ensureDirectory("Root/Notes/Physics", directory -> {
+            creations.incrementAndGet();
+            isCreating.countDown();
+            await(mayFinish);
+            return true;
+        }));
+        assertTrue(isCreating.await(5, TimeUnit.SECONDS));
+        var second = CompletableFuture.supplyAsync(() -> tree.ensureDirectory("Root/Notes/Physics",
+                directory -> creations.incrementAndGet() > 0));
+
+        //Other folders go through while the first creation is underway
+        assertTrue(tree.ensureDirectory("Root/Notes/Chemistry", directory -> true));
+        tree.move("Root/Notes/Chemistry", "Root/Notes/Biology");
+        assertTrue(tree.contains("Root/Notes/Biology"));
+        assertFalse(second.isDone());
+
+        mayFinish.countDown();
+        assertTrue(first.get());
+        assertTrue(second.get());
+        assertEquals(creations.get(), 1);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package jasmine.jragon.mega;
+
+import jasmine.jragon.dropbox.model.v2.DbxLongListFileInfo;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public class MegaUploadManifestTest {
+    private static final String BASE = "/Apps/onyx-knote/onyx/NoteAir2/Notepads";
+    private static final String REVISION = "0123456789abcdef01234", CONTENT_HASH = "a".repeat(64);
+    private static final String NOTES = "Castle in the Sky/Boox-Notes";
+
+    private File manifestFile;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        manifestFile = File.createTempFile("mega-manifest", ".txt");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(manifestFile.toPath());
+    }
+
+    @Test
+    public void fingerprintIsTheContentHashWhenListed() {
+        assertEquals(MegaUploadManifest.fingerprintOf(file(CONTENT_HASH)), CONTENT_HASH);
+        assertEquals(MegaUploadManifest.fingerprintOf(file(null)), REVISION);
+    }
+
+    @Test
+    public void movesAndRemovalsSurviveAReopen() throws IOException {
+        try (var manifest = MegaUploadManifest.open(manifestFile)) {
+            manifest.recordUpload(NOTES + "/Math/a.pdf", CONTENT_HASH, 100);
+            manifest.recordUpload(NOTES + "/Math/Algebra/b.pdf", CONTENT_HASH, 200);
+            manifest.recordUpload(NOTES + "/Mathematics/c.pdf", CONTENT_HASH, 300);
+            manifest.recordUpload(NOTES + "/d.pdf", REVISION, 400);
+
+            manifest.recordMove(NOTES + "/Math", NOTES + "/Maths");
+            manifest.recordRemovals(List.of(NOTES + "/d.pdf"));
+        }
+
+        //Reopening compacts the manifest down to the latest entry of every path
+        MegaUploadManifest.open(manifestFile).close();
+        var lines = Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8)
+                .stream()
+                .sorted()
+                .toList();
+
+        assertEquals(lines, List.of(
+                CONTENT_HASH + "\t200\t" + NOTES + "/Maths/Algebra/b.pdf",
+                CONTENT_HASH + "\t300\t" + NOTES + "/Mathematics/c.pdf",
+                CONTENT_HASH + "\t100\t" + NOTES + "/Maths/a.pdf"
+        ).stream().sorted().toList());
+    }
+
+    private static DbxLongListFileInfo file(String contentHash) {
+        return DbxLongListFileInfo.ofFile(BASE + "/Math/a.pdf", REVISION, contentHash, 1.5,
+                DbxLongListFileInfo.FileSizeType.MEBIBYTES, 3, ChronoUnit.DAYS);
+    }
+}